@@ -0,0 +1,4 @@
+#!/bin/sh
+set -e
+sudo ant -f build_assign1.xml
+java -cp assign1.jar:assign1-submit.jar -server -mx2000m edu.berkeley.nlp.assignments.assign1.student.LmBenchmark "$@"
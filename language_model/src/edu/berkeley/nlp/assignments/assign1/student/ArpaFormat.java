@@ -0,0 +1,444 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Reads and writes LanguageModel as an ARPA backoff model, the text format
+ * SRILM and KenLM exchange:
+ *
+ *   \data\
+ *   ngram 1=<count>
+ *   ...
+ *
+ *   \1-grams:
+ *   <log10 p>  <word>  [<log10 backoff>]
+ *   ...
+ *   \end\
+ *
+ * A written model scores exactly like its finalized self: the n-gram
+ * probabilities are the interpolated ones finalizeProbabilities stores, and
+ * the backoff weights are the Kneser-Ney backoff mass of each context. A
+ * count-based model is exported without being changed.
+ *
+ * A read model is a finalized LanguageModel without counts, its tables sized
+ * from the \data\ section so nothing is rehashed while loading. Log
+ * probabilities of -99 or less (what ARPA writes for log 0) are read as
+ * log 0, and a missing backoff weight as log 1.
+ */
+class ArpaFormat {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final double LN_10 = Math.log(10);
+    static final double LOG10_ZERO = -99;
+
+    public static void write(LanguageModel lm, File file) throws IOException {
+        StringIndexer indexer = EnglishWordIndexer.getIndexer();
+        int vocabulary = Math.min(indexer.size(),
+                lm.finalized ? lm.unigramLogProbs.length : lm.unigramFertility.length);
+        int unigrams = 0;
+        for (int w = 0; w < vocabulary; w++) {
+            if (hasUnigram(lm, w)) unigrams++;
+        }
+        BigramCounter bigrams = lm.bigrams;
+        TrigramCounter trigrams = lm.trigrams;
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8), 1 << 16);
+        try {
+            out.write("\n\\data\\\n");
+            out.write("ngram 1=" + unigrams + "\n");
+            out.write("ngram 2=" + bigrams.assigned + "\n");
+            out.write("ngram 3=" + trigrams.assigned + "\n");
+
+            StringBuilder line = new StringBuilder();
+            out.write("\n\\1-grams:\n");
+            for (int w = 0; w < vocabulary; w++) {
+                if (!hasUnigram(lm, w)) continue;
+                line.setLength(0);
+                appendLog10(line, unigramLogProbability(lm, w));
+                line.append('\t').append(indexer.get(w));
+                appendBackoff(line, lm.finalized ? lm.unigramLogBackoffs[w] : Math.log(lm.bigramBackoff(w)));
+                out.append(line).append('\n');
+            }
+
+            int[] ngram = new int[3];
+            out.write("\n\\2-grams:\n");
+            for (int i = 0; i < bigrams.keys.length; i++) {
+                long key = bigrams.keys[i];
+                if (key == Counter.EMPTY) continue;
+                ngram[0] = (int)(key >>> 32);
+                ngram[1] = (int)(key & Counter.WORD_MASK);
+                line.setLength(0);
+                appendLog10(line, lm.finalized ? bigrams.logProbs[i] : lm.getNgramLogProbability(ngram, 0, 2));
+                line.append('\t').append(indexer.get(ngram[0])).append(' ').append(indexer.get(ngram[1]));
+                appendBackoff(line, lm.finalized ? bigrams.logBackoffs[i] : Math.log(lm.trigramBackoff(key)));
+                out.append(line).append('\n');
+            }
+
+            long[] contexts = bigrams.keysById();
+            out.write("\n\\3-grams:\n");
+            for (int i = 0; i < trigrams.keys.length; i++) {
+                long key = trigrams.keys[i];
+                if (key == Counter.EMPTY) continue;
+                long context = contexts[(int)(key >>> 32)];
+                ngram[0] = (int)(context >>> 32);
+                ngram[1] = (int)(context & Counter.WORD_MASK);
+                ngram[2] = (int)(key & Counter.WORD_MASK);
+                line.setLength(0);
+                appendLog10(line, lm.finalized ? trigrams.logProbs[i] : lm.getNgramLogProbability(ngram, 0, 3));
+                line.append('\t').append(indexer.get(ngram[0])).append(' ').append(indexer.get(ngram[1]))
+                        .append(' ').append(indexer.get(ngram[2]));
+                out.append(line).append('\n');
+            }
+            out.write("\n\\end\\\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    // Every word with a probability is written, and START, which has none
+    // but is the context of the first words of every sentence
+    private static boolean hasUnigram(LanguageModel lm, int word) {
+        return word == lm.startWord || unigramLogProbability(lm, word) > Double.NEGATIVE_INFINITY;
+    }
+
+    // Not through getNgramLogProbability, which doesn't take START
+    private static double unigramLogProbability(LanguageModel lm, int word) {
+        if (lm.finalized) return lm.unigramLogProbs[word];
+        return Math.log(lm.unigramFertility[word] / (double)lm.bigrams.bigramTypeCount);
+    }
+
+    // Float.toString is the shortest text that reads back as the same float
+    private static void appendLog10(StringBuilder line, double logProbability) {
+        if (logProbability == Double.NEGATIVE_INFINITY) line.append((int)LOG10_ZERO);
+        else line.append((float)(logProbability / LN_10));
+    }
+
+    private static void appendBackoff(StringBuilder line, double logBackoff) {
+        if (logBackoff == 0) return;
+        line.append('\t');
+        appendLog10(line, logBackoff);
+    }
+
+    public static LanguageModel read(File file) throws IOException {
+        ArpaReader in = new ArpaReader(file);
+        try {
+            while (!in.lineIs("\\data\\")) {
+                if (!in.nextLine()) throw in.error("no \\data\\ section");
+            }
+            int[] counts = new int[4];
+            while (in.nextLine() && in.startsWith("ngram ")) {
+                in.skip("ngram ".length());
+                int order = in.integer('=');
+                if (order < 1 || order > 3) throw in.error("only models up to trigrams can be read, not order " + order);
+                counts[order] = in.integer(0);
+            }
+            if (counts[1] == 0) throw in.error("no unigrams");
+
+            LanguageModel lm = new LanguageModel();
+            lm.bigrams = new BigramCounter(counts[2]);
+            lm.trigrams = new TrigramCounter(counts[3]);
+            boolean[] listed = readUnigrams(in, lm, counts[1]);
+            if (counts[2] > 0) readBigrams(in, lm, listed, counts[2]);
+            if (counts[3] > 0) readTrigrams(in, lm, listed, counts[3]);
+            lm.finalized = true;
+            System.out.println(String.format("Read %d unigrams, %d bigrams and %d trigrams from %s",
+                    counts[1], counts[2], counts[3], file));
+            return lm;
+        } finally {
+            in.close();
+        }
+    }
+
+    // Moves to the first n-gram of the section of the given order
+    private static void section(ArpaReader in, int order) throws IOException {
+        String header = "\\" + order + "-grams:";
+        while (!in.lineIs(header)) {
+            if (!in.nextLine()) throw in.error("no " + header + " section");
+            if (in.hasField() && !in.startsWith("\\")) throw in.error("more n-grams than the \\data\\ section says");
+        }
+    }
+
+    // Moves to the next n-gram line, skipping blank ones
+    private static void entry(ArpaReader in) throws IOException {
+        do {
+            if (!in.nextLine()) throw in.error("fewer n-grams than the \\data\\ section says");
+        } while (!in.hasField());
+    }
+
+    private static float logProbability(ArpaReader in) throws IOException {
+        double log10 = in.number();
+        return log10 <= LOG10_ZERO ? Float.NEGATIVE_INFINITY : (float)(log10 * LN_10);
+    }
+
+    private static float logBackoff(ArpaReader in) throws IOException {
+        return in.hasField() ? logProbability(in) : 0;
+    }
+
+    // Returns which word ids are listed
+    private static boolean[] readUnigrams(ArpaReader in, LanguageModel lm, int count) throws IOException {
+        section(in, 1);
+        int[] words = new int[count];
+        float[] logProbs = new float[count];
+        float[] logBackoffs = new float[count];
+        int maxWord = 0;
+        for (int i = 0; i < count; i++) {
+            entry(in);
+            logProbs[i] = logProbability(in);
+            words[i] = in.word();
+            logBackoffs[i] = logBackoff(in);
+            maxWord = Math.max(maxWord, words[i]);
+        }
+        // Ids come from the shared indexer, so they needn't be dense
+        lm.expandArrays(maxWord);
+        lm.unigramLogProbs = new float[lm.unigramFertility.length];
+        lm.unigramLogBackoffs = new float[lm.unigramFertility.length];
+        Arrays.fill(lm.unigramLogProbs, Float.NEGATIVE_INFINITY);
+        boolean[] listed = new boolean[lm.unigramFertility.length];
+        for (int i = 0; i < count; i++) {
+            if (listed[words[i]]) throw in.error("repeated unigram " + EnglishWordIndexer.getIndexer().get(words[i]));
+            listed[words[i]] = true;
+            lm.unigramLogProbs[words[i]] = logProbs[i];
+            lm.unigramLogBackoffs[words[i]] = logBackoffs[i];
+        }
+        return listed;
+    }
+
+    private static void readBigrams(ArpaReader in, LanguageModel lm, boolean[] listed, int count) throws IOException {
+        section(in, 2);
+        BigramCounter bigrams = lm.bigrams;
+        bigrams.logProbs = new float[bigrams.keys.length];
+        bigrams.logBackoffs = new float[bigrams.keys.length];
+        for (int i = 0; i < count; i++) {
+            entry(in);
+            float logProbability = logProbability(in);
+            long key = Counter.bigramKey(knownWord(in, listed), knownWord(in, listed));
+            int assigned = bigrams.assigned;
+            int slot = bigrams.slotFor(key);
+            if (bigrams.assigned == assigned) throw in.error("repeated bigram");
+            bigrams.logProbs[slot] = logProbability;
+            bigrams.logBackoffs[slot] = logBackoff(in);
+        }
+    }
+
+    private static void readTrigrams(ArpaReader in, LanguageModel lm, boolean[] listed, int count) throws IOException {
+        section(in, 3);
+        BigramCounter bigrams = lm.bigrams;
+        TrigramCounter trigrams = lm.trigrams;
+        trigrams.logProbs = new float[trigrams.keys.length];
+        for (int i = 0; i < count; i++) {
+            entry(in);
+            float logProbability = logProbability(in);
+            int contextSlot = bigrams.slotOf(Counter.bigramKey(knownWord(in, listed), knownWord(in, listed)));
+            if (contextSlot < 0) throw in.error("trigram whose context is not among the bigrams");
+            long key = Counter.trigramKey(bigrams.ids[contextSlot], knownWord(in, listed));
+            if (!trigrams.add(key, 0)) throw in.error("repeated trigram");
+            trigrams.logProbs[trigrams.slotOf(key)] = logProbability;
+        }
+    }
+
+    // Id of the next word, which has to be among the unigrams
+    private static int knownWord(ArpaReader in, boolean[] listed) throws IOException {
+        int word = in.word();
+        if (word >= listed.length || !listed[word]) {
+            throw in.error("word " + EnglishWordIndexer.getIndexer().get(word) + " is not among the unigrams");
+        }
+        return word;
+    }
+}
+
+/**
+ * Line by line reader of an ARPA file that works on the bytes: the current
+ * line is a slice of a reused buffer, fields are parsed in place, and words
+ * are looked up through a ByteSliceIndexer, so a String is only created the
+ * first time a word type is seen. The file has to be UTF-8 (or ASCII).
+ */
+class ArpaReader implements Closeable {
+
+    final File file;
+    final FileChannel channel;
+    final ByteSliceIndexer indexer = new ByteSliceIndexer();
+
+    ByteBuffer buffer = ByteBuffer.allocate(CorpusReader.BUFFER_BYTES);
+    byte[] bytes = buffer.array();
+    int limit;
+    boolean endOfFile;
+    // The current line is bytes[lineStart, lineEnd), without its newline,
+    // and fields are read from cursor on
+    int lineStart;
+    int lineEnd;
+    int cursor;
+    int next;
+    int lineNumber;
+
+    ArpaReader(File file) throws IOException {
+        this.file = file;
+        channel = new FileInputStream(file).getChannel();
+    }
+
+    // Moves to the next line, false at end of file
+    boolean nextLine() throws IOException {
+        int start = next;
+        int end = start;
+        while (true) {
+            if (end == limit) {
+                if (endOfFile) {
+                    if (end == start) return false;
+                    break;
+                }
+                int shift = fill(start);
+                start -= shift;
+                end -= shift;
+                continue;
+            }
+            if (bytes[end] == '\n') break;
+            end++;
+        }
+        next = end < limit ? end + 1 : end;
+        if (end > start && bytes[end - 1] == '\r') end--;
+        lineStart = cursor = start;
+        lineEnd = end;
+        lineNumber++;
+        return true;
+    }
+
+    // Moves the bytes from start on to the front of the buffer, growing it if
+    // they fill it, and reads more after them. Returns how far they moved.
+    private int fill(int start) throws IOException {
+        if (start == 0 && limit == bytes.length) {
+            // A single line fills the whole buffer
+            buffer = ByteBuffer.wrap(Arrays.copyOf(bytes, 2 * bytes.length));
+            bytes = buffer.array();
+        } else {
+            System.arraycopy(bytes, start, bytes, 0, limit - start);
+        }
+        limit -= start;
+        buffer.clear();
+        buffer.position(limit);
+        int read = 0;
+        while (read == 0) read = channel.read(buffer);
+        if (read < 0) endOfFile = true;
+        else limit += read;
+        return start;
+    }
+
+    private void skipSpace() {
+        while (cursor < lineEnd && CorpusReader.isSpace(bytes[cursor])) cursor++;
+    }
+
+    // Whether the rest of the line has another field
+    boolean hasField() {
+        skipSpace();
+        return cursor < lineEnd;
+    }
+
+    // Whether the line is text, give or take surrounding space
+    boolean lineIs(String text) {
+        int start = lineStart, end = lineEnd;
+        while (start < end && CorpusReader.isSpace(bytes[start])) start++;
+        while (end > start && CorpusReader.isSpace(bytes[end - 1])) end--;
+        return end - start == text.length() && startsWith(start, text);
+    }
+
+    boolean startsWith(String prefix) {
+        return lineEnd - lineStart >= prefix.length() && startsWith(lineStart, prefix);
+    }
+
+    private boolean startsWith(int start, String prefix) {
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[start + i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    void skip(int n) {
+        cursor += n;
+    }
+
+    // Reads a non-negative int followed by terminator, or by space or the
+    // end of the line if that is 0
+    int integer(int terminator) throws IOException {
+        skipSpace();
+        long value = 0;
+        int digits = 0;
+        while (cursor < lineEnd && isDigit(bytes[cursor])) {
+            value = 10 * value + (bytes[cursor++] - '0');
+            if (value > Integer.MAX_VALUE) throw error("number too large");
+            digits++;
+        }
+        if (digits == 0) throw error("expected a number");
+        if (terminator != 0) {
+            if (cursor == lineEnd || bytes[cursor] != terminator) throw error("expected " + (char)terminator);
+            cursor++;
+        } else if (cursor < lineEnd && !CorpusReader.isSpace(bytes[cursor])) {
+            throw error("expected a number");
+        }
+        return (int)value;
+    }
+
+    // Reads a decimal number such as -1.234567e-05. Digits past the 18th
+    // only scale the value, which is plenty for the 7 digits of a float.
+    double number() throws IOException {
+        skipSpace();
+        boolean negative = false;
+        if (cursor < lineEnd && (bytes[cursor] == '-' || bytes[cursor] == '+')) negative = bytes[cursor++] == '-';
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        for (; cursor < lineEnd && isDigit(bytes[cursor]); cursor++, digits++) {
+            if (mantissa < 100000000000000000L) mantissa = 10 * mantissa + (bytes[cursor] - '0');
+            else exponent++;
+        }
+        if (cursor < lineEnd && bytes[cursor] == '.') {
+            for (cursor++; cursor < lineEnd && isDigit(bytes[cursor]); cursor++, digits++) {
+                if (mantissa < 100000000000000000L) {
+                    mantissa = 10 * mantissa + (bytes[cursor] - '0');
+                    exponent--;
+                }
+            }
+        }
+        if (digits == 0) throw error("expected a number");
+        if (cursor < lineEnd && (bytes[cursor] == 'e' || bytes[cursor] == 'E')) {
+            cursor++;
+            boolean negativeExponent = false;
+            if (cursor < lineEnd && (bytes[cursor] == '-' || bytes[cursor] == '+')) {
+                negativeExponent = bytes[cursor++] == '-';
+            }
+            int e = 0;
+            if (cursor == lineEnd || !isDigit(bytes[cursor])) throw error("expected an exponent");
+            while (cursor < lineEnd && isDigit(bytes[cursor])) e = Math.min(10000, 10 * e + (bytes[cursor++] - '0'));
+            exponent += negativeExponent ? -e : e;
+        }
+        if (cursor < lineEnd && !CorpusReader.isSpace(bytes[cursor])) throw error("expected a number");
+        // Powers of ten up to 10^22 are exact doubles, so dividing by one
+        // rounds once where multiplying by 10^-k would round twice
+        double value = exponent < 0 ? mantissa / Math.pow(10, -exponent) : mantissa * Math.pow(10, exponent);
+        return negative ? -value : value;
+    }
+
+    // Id of the next whitespace separated word
+    int word() throws IOException {
+        skipSpace();
+        int start = cursor;
+        while (cursor < lineEnd && !CorpusReader.isSpace(bytes[cursor])) cursor++;
+        if (cursor == start) throw error("expected a word");
+        return indexer.indexOf(bytes, start, cursor - start);
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    IOException error(String message) {
+        return new IOException(file + ":" + lineNumber + ": " + message);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,165 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.*;
+
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+
+/**
+ * Puts a bounded cache of recent scores in front of any model, for decoders
+ * that ask for the same n-grams over and over. Every thread has its own
+ * QueryCache, so there is nothing to lock or contend on, and a lookup
+ * allocates nothing.
+ *
+ * Queries of up to three words are cached, keyed by the packed (word1,
+ * word2) context and word3; longer ones go straight to the model. The model
+ * must not change while it is cached, so a LanguageModel is frozen here.
+ *
+ * A cache is 24 bytes an entry, so MAX_BITS keeps it at 24 MB a thread.
+ * Like LmMetrics, the caches of threads that have ended are dropped the
+ * next time a thread gets one or the counters are read, and only their
+ * counters are kept, so pools that come and go don't hold on to them.
+ */
+class CachingLanguageModel implements NgramLanguageModel {
+
+    // Stands for the missing words of a context of a unigram or bigram query
+    static final long NO_WORD = Counter.WORD_MASK;
+    static final int MAX_BITS = 20;
+
+    final NgramLanguageModel lm;
+    final int bits;
+    // The cache of every live thread, for the hit counters, and the summed
+    // counters of those that are gone. All guarded by caches.
+    final List<QueryCache> caches = new ArrayList<QueryCache>();
+    long retiredHits;
+    long retiredMisses;
+    final ThreadLocal<QueryCache> cache = new ThreadLocal<QueryCache>() {
+        protected QueryCache initialValue() {
+            QueryCache cache = new QueryCache(bits, Thread.currentThread());
+            synchronized (caches) {
+                retireDeadThreads();
+                caches.add(cache);
+            }
+            return cache;
+        }
+    };
+
+    // Caches up to 2^bits scores per thread
+    CachingLanguageModel(NgramLanguageModel lm, int bits) {
+        if (bits < 1 || bits > MAX_BITS)
+            throw new IllegalArgumentException("Cache bits must be between 1 and " + MAX_BITS + ": " + bits);
+        if (lm instanceof LanguageModel) ((LanguageModel)lm).freeze();
+        this.lm = lm;
+        this.bits = bits;
+    }
+
+    public int getOrder() {
+        return lm.getOrder();
+    }
+
+    public double getNgramLogProbability(int[] ngram, int from, int to) {
+        int order = to - from;
+        if (order < 1 || order > 3) return lm.getNgramLogProbability(ngram, from, to);
+        int word3 = ngram[to-1];
+        long word2 = order >= 2 ? ngram[to-2] : NO_WORD;
+        long word1 = order == 3 ? ngram[to-3] : NO_WORD;
+        long context = (word1 << 32) | word2;
+
+        QueryCache cache = this.cache.get();
+        long[] entries = cache.entries;
+        int base = cache.entry(context, word3);
+        if (entries[base] == context && entries[base + 1] == word3) {
+            cache.hits++;
+            return Double.longBitsToDouble(entries[base + 2]);
+        }
+        cache.misses++;
+        double logProbability = lm.getNgramLogProbability(ngram, from, to);
+        entries[base] = context;
+        entries[base + 1] = word3;
+        entries[base + 2] = Double.doubleToRawLongBits(logProbability);
+        return logProbability;
+    }
+
+    public long getCount(int[] ngram) {
+        return lm.getCount(ngram);
+    }
+
+    // Keeps the counters of the caches of threads that have terminated and
+    // drops the caches. A thread found dead by isAlive has made all its
+    // writes visible. Callers hold the lock on caches.
+    private void retireDeadThreads() {
+        for (Iterator<QueryCache> it = caches.iterator(); it.hasNext();) {
+            QueryCache cache = it.next();
+            if (cache.owner.isAlive()) continue;
+            retiredHits += cache.hits;
+            retiredMisses += cache.misses;
+            it.remove();
+        }
+    }
+
+    // The counters are summed over every thread without synchronizing with
+    // them, so they are exact only once scoring has stopped.
+    long hits() {
+        synchronized (caches) {
+            retireDeadThreads();
+            long hits = retiredHits;
+            for (QueryCache cache : caches) hits += cache.hits;
+            return hits;
+        }
+    }
+
+    long misses() {
+        synchronized (caches) {
+            retireDeadThreads();
+            long misses = retiredMisses;
+            for (QueryCache cache : caches) misses += cache.misses;
+            return misses;
+        }
+    }
+
+    // Caches of live threads
+    int threads() {
+        synchronized (caches) {
+            retireDeadThreads();
+            return caches.size();
+        }
+    }
+
+    double hitRate() {
+        long hits = hits();
+        long lookups = hits + misses();
+        return lookups == 0 ? 0 : hits / (double)lookups;
+    }
+
+    public String toString() {
+        return String.format("CachingLanguageModel[%d live threads, 2^%d entries each, %d hits, %d misses, hit rate %.3f]",
+                threads(), bits, hits(), misses(), hitRate());
+    }
+}
+
+/**
+ * One thread's direct-mapped cache: a query has one entry it can be in, and
+ * a miss overwrites whatever is there. Entries are three longs, context,
+ * word and the score's bits, next to each other in one array.
+ */
+class QueryCache {
+
+    final long[] entries;
+    final int mask;
+    final Thread owner;
+    long hits;
+    long misses;
+
+    QueryCache(int bits, Thread owner) {
+        this.owner = owner;
+        int size = 1 << bits;
+        mask = size - 1;
+        entries = new long[3 * size];
+        // No word is negative, so these entries match nothing
+        for (int i = 1; i < entries.length; i += 3) entries[i] = -1;
+    }
+
+    // Index of the first long of the entry of (context, word)
+    int entry(long context, int word) {
+        return 3 * (Counter.rehash(context ^ (word * 0x9e3779b97f4a7c15L)) & mask);
+    }
+}
@@ -0,0 +1,136 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.Arrays;
+
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+
+/**
+ * Class-based trigram model over word classes, e.g. from WordClustering:
+ *
+ *   p(w3 | w1 w2) = p(c3 | c1 c2) p(w3 | c3)
+ *
+ * The class probability comes from a Kneser-Ney LanguageModel whose "words"
+ * are class ids, counted by mapping every bigram and trigram count of the
+ * word model through the classes, which gives exactly the counts of the
+ * corpus rewritten as classes. p(w | c) is N(w) / N(c) over word
+ * occurrences. START and STOP are classes of their own; the other classes
+ * get ids from firstClass on, past both.
+ *
+ * A word without a class ends the context: the query is scored on the words
+ * after it, and as LanguageModel.LOG_ZERO if it is the predicted word. The
+ * class model is frozen, so scoring is safe from several threads.
+ */
+class ClassLanguageModel implements NgramLanguageModel {
+
+    final LanguageModel classes;
+    final int firstClass;
+    // Class id in the class model of each word id, -1 for words without one
+    final int[] classOf;
+    // log p(w | c(w)) by word id
+    final float[] logMembership;
+    final ThreadLocal<int[]> mapped = new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[3];
+        }
+    };
+
+    // wordClasses gives the class, 0 up, of each word id, or -1
+    ClassLanguageModel(LanguageModel words, int[] wordClasses) {
+        if (words.finalized) throw new IllegalArgumentException("The class model needs a count-based model");
+        int start = words.startWord;
+        int stop = EnglishWordIndexer.getIndexer().addAndGetIndex(NgramLanguageModel.STOP);
+        firstClass = Math.max(start, stop) + 1;
+        int vocabulary = Math.max(words.unigramFertility.length, wordClasses.length);
+        classOf = new int[vocabulary];
+        Arrays.fill(classOf, -1);
+        int maxClass = 0;
+        for (int w = 0; w < wordClasses.length; w++) {
+            if (wordClasses[w] < 0) continue;
+            classOf[w] = firstClass + wordClasses[w];
+            maxClass = Math.max(maxClass, classOf[w]);
+        }
+        classOf[start] = start;
+        classOf[stop] = stop;
+
+        // Occurrences of every word and class: every word but START follows some word
+        BigramCounter bigrams = words.bigrams;
+        long[] wordCounts = new long[vocabulary];
+        long[] classCounts = new long[maxClass + 1];
+        for (int slot = 0; slot < bigrams.keys.length; slot++) {
+            long key = bigrams.keys[slot];
+            if (key == Counter.EMPTY) continue;
+            int w = (int)(key & Counter.WORD_MASK);
+            wordCounts[w] += bigrams.counts[slot];
+            if (classOf[w] >= 0) classCounts[classOf[w]] += bigrams.counts[slot];
+        }
+        logMembership = new float[vocabulary];
+        for (int w = 0; w < vocabulary; w++) {
+            if (classOf[w] < 0 || wordCounts[w] == 0) continue;
+            logMembership[w] = (float)Math.log(wordCounts[w] / (double)classCounts[classOf[w]]);
+        }
+
+        // Bigrams first, so the trigrams find their contexts, as in LanguageModel.merge
+        classes = new LanguageModel();
+        for (int slot = 0; slot < bigrams.keys.length; slot++) {
+            long key = bigrams.keys[slot];
+            if (key == Counter.EMPTY || bigrams.counts[slot] == 0) continue;
+            int c1 = classOf[(int)(key >>> 32)];
+            int c2 = classOf[(int)(key & Counter.WORD_MASK)];
+            if (c1 >= 0 && c2 >= 0) classes.addBigramCount(Counter.bigramKey(c1, c2), bigrams.counts[slot]);
+        }
+        TrigramCounter trigrams = words.trigrams;
+        long[] contexts = bigrams.keysById();
+        for (int slot = 0; slot < trigrams.keys.length; slot++) {
+            long key = trigrams.keys[slot];
+            if (key == Counter.EMPTY) continue;
+            long context = contexts[(int)(key >>> 32)];
+            int c1 = classOf[(int)(context >>> 32)];
+            int c2 = classOf[(int)(context & Counter.WORD_MASK)];
+            int c3 = classOf[(int)(key & Counter.WORD_MASK)];
+            int count = trigrams.value(slot);
+            if (c1 >= 0 && c2 >= 0 && c3 >= 0 && count > 0)
+                classes.addTrigramCount(Counter.bigramKey(c1, c2), c3, count);
+        }
+        classes.setDiscounts(words.bigramDiscounts, words.trigramDiscounts);
+        classes.freeze();
+        System.out.println("Class model: " + (maxClass + 1 - firstClass) + " classes, "
+                + classes.bigrams.assigned + " bigrams, " + classes.trigrams.assigned + " trigrams");
+    }
+
+    public int getOrder() {
+        return 3;
+    }
+
+    int classOf(int word) {
+        return word < classOf.length ? classOf[word] : -1;
+    }
+
+    public double getNgramLogProbability(int[] ngram, int from, int to) {
+        int word = ngram[to-1];
+        int[] classNgram = mapped.get();
+        int length = 0;
+        for (int i = to - 1; i >= Math.max(from, to - 3); i--) {
+            int c = classOf(ngram[i]);
+            if (c < 0) break;
+            classNgram[2 - length++] = c;
+        }
+        if (length == 0) return LanguageModel.LOG_ZERO;
+        return classes.getNgramLogProbability(classNgram, 3 - length, 3) + logMembership[word];
+    }
+
+    // Count of the class n-gram
+    public long getCount(int[] ngram) {
+        int[] classNgram = new int[ngram.length];
+        for (int i = 0; i < ngram.length; i++) {
+            classNgram[i] = classOf(ngram[i]);
+            if (classNgram[i] < 0) return 0;
+        }
+        return classes.getCount(classNgram);
+    }
+
+    // Bytes of the class tables and the per-word arrays
+    long bytes() {
+        return LmBenchmark.tableBytes(classes) + 8L * classOf.length;
+    }
+}
@@ -0,0 +1,347 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.*;
+
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+
+/**
+ * Read-only trie version of a trained LanguageModel.
+ *
+ * Bigrams are sorted by (w1, w2) and trigrams by (w1, w2, w3), so the
+ * successors of every context form one contiguous range found through an
+ * offsets array. Within a range the word ids are bit-packed and looked up by
+ * binary search. Every entry also stores its interpolated log-probability,
+ * and every context its backoff weight, quantized to a codebook of 2^bits
+ * values. Unigram values are kept as floats. Counts are bit-packed at the
+ * same index as the word ids, as wide as the largest count of the order
+ * needs, so getCount answers like the source model.
+ *
+ * Scores are those of the source model up to quantization error.
+ */
+class CompactLanguageModel implements NgramLanguageModel {
+
+    static final double LOG_ZERO = LanguageModel.LOG_ZERO;
+
+    final int vocabulary;
+    final float[] unigramLogProbs;
+    final float[] unigramLogBackoffs;
+
+    // bigramStarts[w1] .. bigramStarts[w1 + 1] is the range of bigrams (w1, *)
+    final int[] bigramStarts;
+    final BitArray bigramWords;
+    final BitArray bigramCounts;
+    final BitArray bigramLogProbs;
+    final BitArray bigramLogBackoffs;
+    final Quantizer bigramProbCodes;
+    final Quantizer bigramBackoffCodes;
+
+    // trigramStarts[b] .. trigramStarts[b + 1] is the range of trigrams extending bigram b
+    final int[] trigramStarts;
+    final BitArray trigramWords;
+    final BitArray trigramCounts;
+    final BitArray trigramLogProbs;
+    final Quantizer trigramProbCodes;
+
+    public CompactLanguageModel(LanguageModel lm, int bits) {
+        vocabulary = Math.min(EnglishWordIndexer.getIndexer().size(), lm.unigramFertility.length);
+        int wordBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(vocabulary - 1));
+
+        unigramLogProbs = new float[vocabulary];
+        unigramLogBackoffs = new float[vocabulary];
+        for (int w = 0; w < vocabulary; w++) {
+            unigramLogProbs[w] = (float)Math.log(lm.unigramFertility[w] / (double)lm.bigrams.bigramTypeCount);
+            unigramLogBackoffs[w] = (float)Math.log(lm.bigramBackoff(w));
+        }
+
+        long[] bigramKeys = sortedKeys(lm.bigrams.keys, lm.bigrams.assigned);
+        int bigramCount = bigramKeys.length;
+        bigramStarts = new int[vocabulary + 1];
+        bigramWords = new BitArray(bigramCount, wordBits);
+        int[] counts = new int[bigramCount];
+        for (int i = 0; i < bigramCount; i++) counts[i] = lm.bigrams.getCount(bigramKeys[i]);
+        bigramCounts = packed(counts);
+        double[] logProbs = new double[bigramCount];
+        double[] logBackoffs = new double[bigramCount];
+        int[] ngram = new int[3];
+        for (int i = 0; i < bigramCount; i++) {
+            long key = bigramKeys[i];
+            ngram[0] = (int)(key >>> 32);
+            ngram[1] = (int)(key & Counter.WORD_MASK);
+            bigramStarts[ngram[0] + 1]++;
+            bigramWords.set(i, ngram[1]);
+            logProbs[i] = lm.getNgramLogProbability(ngram, 0, 2);
+            logBackoffs[i] = Math.log(lm.trigramBackoff(key));
+        }
+        for (int w = 0; w < vocabulary; w++) bigramStarts[w + 1] += bigramStarts[w];
+        bigramProbCodes = new Quantizer(logProbs, bits);
+        bigramBackoffCodes = new Quantizer(logBackoffs, bits);
+        bigramLogProbs = bigramProbCodes.encode(logProbs);
+        bigramLogBackoffs = bigramBackoffCodes.encode(logBackoffs);
+
+        // Trigram keys hold the id of their context bigram. Keyed by the
+        // position of the context in bigramKeys instead, they sort into trie order.
+        long[] contexts = lm.bigrams.keysById();
+        long[] trigramKeys = sortedKeys(lm.trigrams.keys, lm.trigrams.assigned);
+        for (int i = 0; i < trigramKeys.length; i++) {
+            long key = trigramKeys[i];
+            int context = Arrays.binarySearch(bigramKeys, contexts[(int)(key >>> 32)]);
+            trigramKeys[i] = Counter.trigramKey(context, (int)(key & Counter.WORD_MASK));
+        }
+        Arrays.sort(trigramKeys);
+        int trigramCount = trigramKeys.length;
+        trigramStarts = new int[bigramCount + 1];
+        trigramWords = new BitArray(trigramCount, wordBits);
+        logProbs = new double[trigramCount];
+        counts = new int[trigramCount];
+        for (int i = 0; i < trigramCount; i++) {
+            long key = trigramKeys[i];
+            int context = (int)(key >>> 32);
+            trigramStarts[context + 1]++;
+            ngram[0] = (int)(bigramKeys[context] >>> 32);
+            ngram[1] = (int)(bigramKeys[context] & Counter.WORD_MASK);
+            ngram[2] = (int)(key & Counter.WORD_MASK);
+            trigramWords.set(i, ngram[2]);
+            logProbs[i] = lm.getNgramLogProbability(ngram, 0, 3);
+            counts[i] = (int)lm.getCount(ngram);
+        }
+        trigramCounts = packed(counts);
+        for (int b = 0; b < bigramCount; b++) trigramStarts[b + 1] += trigramStarts[b];
+        trigramProbCodes = new Quantizer(logProbs, bits);
+        trigramLogProbs = trigramProbCodes.encode(logProbs);
+    }
+
+    // counts in as few bits each as the largest needs
+    static BitArray packed(int[] counts) {
+        int max = 0;
+        for (int count : counts) max = Math.max(max, count);
+        BitArray packed = new BitArray(counts.length, Math.max(1, 32 - Integer.numberOfLeadingZeros(max)));
+        for (int i = 0; i < counts.length; i++) packed.set(i, counts[i]);
+        return packed;
+    }
+
+    static long[] sortedKeys(long[] table, int assigned) {
+        long[] keys = new long[assigned];
+        int n = 0;
+        for (long key : table) {
+            if (key != Counter.EMPTY) keys[n++] = key;
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    // Position of word in words[from, to), or -1.
+    static int search(BitArray words, int from, int to, int word) {
+        int low = from, high = to - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = words.get(mid);
+            if (value < word) low = mid + 1;
+            else if (value > word) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    int findBigram(int word1, int word2) {
+        if (word1 >= vocabulary) return -1;
+        return search(bigramWords, bigramStarts[word1], bigramStarts[word1 + 1], word2);
+    }
+
+    public int getOrder() {
+        return 3;
+    }
+
+    double unigramLogProbability(int word) {
+        return word < vocabulary ? unigramLogProbs[word] : Double.NEGATIVE_INFINITY;
+    }
+
+    double bigramLogProbability(int word2, int word3) {
+        int bigram = findBigram(word2, word3);
+        double logProb;
+        if (bigram >= 0) {
+            logProb = bigramProbCodes.decode(bigramLogProbs.get(bigram));
+        } else {
+            double backoff = word2 < vocabulary ? unigramLogBackoffs[word2] : Double.NEGATIVE_INFINITY;
+            logProb = backoff + unigramLogProbability(word3);
+        }
+        return logProb == Double.NEGATIVE_INFINITY ? LOG_ZERO : logProb;
+    }
+
+    public double getNgramLogProbability(int[] ngram, int from, int to) {
+        int order = to - from;
+        int word3 = ngram[to-1];
+        if (order == 1) return unigramLogProbability(word3);
+
+        int word2 = ngram[to-2];
+        if (order == 2) return bigramLogProbability(word2, word3);
+
+        int context = findBigram(ngram[to-3], word2);
+        if (context < 0) return bigramLogProbability(word2, word3);
+        int trigram = search(trigramWords, trigramStarts[context], trigramStarts[context + 1], word3);
+        double logProb;
+        if (trigram >= 0) {
+            logProb = trigramProbCodes.decode(trigramLogProbs.get(trigram));
+        } else {
+            logProb = bigramBackoffCodes.decode(bigramLogBackoffs.get(context))
+                    + bigramLogProbability(word2, word3);
+        }
+        return logProb == Double.NEGATIVE_INFINITY ? LOG_ZERO : logProb;
+    }
+
+    // Like LanguageModel, counts of bigrams and trigrams only
+    public long getCount(int[] ngram) {
+        if (ngram.length == 2) {
+            int bigram = findBigram(ngram[0], ngram[1]);
+            return bigram < 0 ? 0 : bigramCounts.get(bigram);
+        }
+        if (ngram.length == 3) {
+            int context = findBigram(ngram[0], ngram[1]);
+            if (context < 0) return 0;
+            int trigram = search(trigramWords, trigramStarts[context], trigramStarts[context + 1], ngram[2]);
+            return trigram < 0 ? 0 : trigramCounts.get(trigram);
+        }
+        return 0;
+    }
+
+    long bigramBytes() {
+        return 4L * bigramStarts.length + bigramWords.bytes() + bigramCounts.bytes() + bigramLogProbs.bytes()
+                + bigramLogBackoffs.bytes() + bigramProbCodes.bytes() + bigramBackoffCodes.bytes();
+    }
+
+    long trigramBytes() {
+        return 4L * trigramStarts.length + trigramWords.bytes() + trigramCounts.bytes() + trigramLogProbs.bytes()
+                + trigramProbCodes.bytes();
+    }
+
+    // Bytes per n-gram of the hash tables in lm against this model built from it.
+    static String memoryReport(LanguageModel lm, CompactLanguageModel compact) {
+        BigramCounter bigrams = lm.bigrams;
+        TrigramCounter trigrams = lm.trigrams;
+        long hashBigramBytes = (long)bigrams.keys.length * (8 + 4 + 4 + 2 + 2);
+        long hashTrigramBytes = (long)trigrams.keys.length * (8 + 2);
+        long hashUnigramBytes = 3L * 4 * lm.unigramFertility.length;
+        long compactUnigramBytes = 2L * 4 * compact.vocabulary;
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-10s %12s %12s %12s%n", "", "unigrams", "bigrams", "trigrams"));
+        out.append(String.format("%-10s %12d %12d %12d%n", "entries", compact.vocabulary,
+                bigrams.assigned, trigrams.assigned));
+        out.append(String.format("%-10s %12.2f %12.2f %12.2f  bytes/n-gram, %d MB%n", "hash",
+                hashUnigramBytes / (double)compact.vocabulary,
+                hashBigramBytes / (double)bigrams.assigned,
+                hashTrigramBytes / (double)trigrams.assigned,
+                (hashUnigramBytes + hashBigramBytes + hashTrigramBytes) >> 20));
+        out.append(String.format("%-10s %12.2f %12.2f %12.2f  bytes/n-gram, %d MB%n", "compact",
+                compactUnigramBytes / (double)compact.vocabulary,
+                compact.bigramBytes() / (double)bigrams.assigned,
+                compact.trigramBytes() / (double)trigrams.assigned,
+                (compactUnigramBytes + compact.bigramBytes() + compact.trigramBytes()) >> 20));
+        return out.toString();
+    }
+}
+
+/**
+ * Fixed width unsigned integers packed into a long[]. Values may straddle
+ * two words.
+ */
+class BitArray {
+
+    final long[] words;
+    final int width;
+    final long mask;
+
+    BitArray(int size, int width) {
+        assert width > 0 && width < 64;
+        this.width = width;
+        this.mask = (1L << width) - 1;
+        this.words = new long[(int)(((long)size * width + 63) >>> 6)];
+    }
+
+    long get(int index) {
+        long bit = (long)index * width;
+        int word = (int)(bit >>> 6);
+        int offset = (int)(bit & 63);
+        long value = words[word] >>> offset;
+        if (offset + width > 64) value |= words[word + 1] << (64 - offset);
+        return value & mask;
+    }
+
+    void set(int index, long value) {
+        assert (value & ~mask) == 0 : value + " doesn't fit in " + width + " bits";
+        long bit = (long)index * width;
+        int word = (int)(bit >>> 6);
+        int offset = (int)(bit & 63);
+        words[word] = (words[word] & ~(mask << offset)) | (value << offset);
+        if (offset + width > 64) {
+            int spill = 64 - offset;
+            words[word + 1] = (words[word + 1] & ~(mask >>> spill)) | (value >>> spill);
+        }
+    }
+
+    long bytes() {
+        return 8L * words.length;
+    }
+}
+
+/**
+ * Codebook for log values. Finite values are split into 2^bits bins holding
+ * the same number of values each and every bin is represented by its mean.
+ * Negative infinity, if present, gets code 0 to itself so zero probabilities
+ * and weights survive quantization exactly.
+ */
+class Quantizer {
+
+    final int bits;
+    final float[] centers;
+
+    Quantizer(double[] values, int bits) {
+        if (bits < 1 || bits > 16) throw new IllegalArgumentException("Quantize to 1 to 16 bits: " + bits);
+        this.bits = bits;
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int infinite = 0;
+        while (infinite < sorted.length && sorted[infinite] == Double.NEGATIVE_INFINITY) infinite++;
+        int finite = sorted.length - infinite;
+        int codes = (1 << bits) - (infinite > 0 ? 1 : 0);
+        codes = Math.max(1, Math.min(codes, finite));
+        centers = new float[codes + (infinite > 0 ? 1 : 0)];
+        int c = 0;
+        if (infinite > 0) centers[c++] = Float.NEGATIVE_INFINITY;
+        for (int bin = 0; bin < codes && finite > 0; bin++) {
+            int from = infinite + (int)((long)bin * finite / codes);
+            int to = infinite + (int)((long)(bin + 1) * finite / codes);
+            double sum = 0;
+            for (int i = from; i < to; i++) sum += sorted[i];
+            centers[c++] = (float)(sum / (to - from));
+        }
+    }
+
+    int encode(double value) {
+        if (value == Double.NEGATIVE_INFINITY && centers[0] == Float.NEGATIVE_INFINITY) return 0;
+        int low = centers[0] == Float.NEGATIVE_INFINITY ? 1 : 0;
+        int high = centers.length - 1;
+        if (low > high) return 0;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (centers[mid] < value) low = mid + 1;
+            else high = mid;
+        }
+        if (low > 0 && centers[low - 1] != Float.NEGATIVE_INFINITY
+                && value - centers[low - 1] < centers[low] - value) low--;
+        return low;
+    }
+
+    BitArray encode(double[] values) {
+        BitArray codes = new BitArray(values.length, bits);
+        for (int i = 0; i < values.length; i++) codes.set(i, encode(values[i]));
+        return codes;
+    }
+
+    double decode(long code) {
+        return centers[(int)code];
+    }
+
+    long bytes() {
+        return 4L * centers.length;
+    }
+}
@@ -0,0 +1,235 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Sentences as word ids with START and STOP around them, read one at a time
+ * into a buffer that is reused, so counting allocates nothing per sentence.
+ */
+abstract class IdSentences {
+    int[] words = new int[64];
+    int length;
+
+    // Reads the next sentence into words[0, length), false once there are no more.
+    abstract boolean next() throws IOException;
+
+    final void add(int word) {
+        if (length == words.length) words = Arrays.copyOf(words, 2 * length);
+        words[length++] = word;
+    }
+}
+
+/**
+ * Adapts the sentence collections of the LanguageModelFactory interface.
+ */
+class IndexedSentences extends IdSentences {
+    final Iterator<List<String>> sentences;
+    final StringIndexer indexer = EnglishWordIndexer.getIndexer();
+    final int start = indexer.addAndGetIndex(NgramLanguageModel.START);
+    final int stop = indexer.addAndGetIndex(NgramLanguageModel.STOP);
+
+    IndexedSentences(Iterable<List<String>> sentences) {
+        this.sentences = sentences.iterator();
+    }
+
+    boolean next() {
+        if (!sentences.hasNext()) return false;
+        length = 0;
+        add(start);
+        for (String word : sentences.next()) add(indexer.addAndGetIndex(word));
+        add(stop);
+        return true;
+    }
+}
+
+/**
+ * Streams a corpus file with one whitespace tokenized sentence per line,
+ * straight from the bytes: tokens are looked up by their byte slice in a
+ * ByteSliceIndexer, so a String is only created the first time a word type
+ * is seen. Blank lines are skipped. The file has to be UTF-8 (or ASCII).
+ */
+class CorpusReader extends IdSentences implements Closeable {
+
+    static final int BUFFER_BYTES = 1 << 20;
+
+    final FileChannel channel;
+    final ByteSliceIndexer indexer;
+    final int start;
+    final int stop;
+
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+    int position;
+    int limit;
+    boolean endOfFile;
+
+    CorpusReader(File file) throws IOException {
+        this(file, new ByteSliceIndexer());
+    }
+
+    // Shares indexer with an earlier reader, so a second pass over the same
+    // file finds every word type in it instead of decoding them again
+    CorpusReader(File file, ByteSliceIndexer indexer) throws IOException {
+        this.indexer = indexer;
+        channel = new FileInputStream(file).getChannel();
+        StringIndexer words = EnglishWordIndexer.getIndexer();
+        start = words.addAndGetIndex(NgramLanguageModel.START);
+        stop = words.addAndGetIndex(NgramLanguageModel.STOP);
+    }
+
+    static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0b;
+    }
+
+    // Buffers more bytes after position, keeping the token that starts at
+    // tokenStart (-1 for none) and returning where it starts afterwards.
+    // Nothing is added at end of file.
+    private int fill(int tokenStart) throws IOException {
+        if (endOfFile) return tokenStart;
+        int keep = tokenStart < 0 ? position : tokenStart;
+        byte[] bytes = buffer.array();
+        if (keep == 0 && limit == bytes.length) {
+            // A single token fills the whole buffer
+            buffer = ByteBuffer.wrap(Arrays.copyOf(bytes, 2 * bytes.length));
+            bytes = buffer.array();
+        } else {
+            System.arraycopy(bytes, keep, bytes, 0, limit - keep);
+        }
+        limit -= keep;
+        position -= keep;
+        buffer.clear();
+        buffer.position(limit);
+        int read = 0;
+        while (read == 0) read = channel.read(buffer);
+        if (read < 0) endOfFile = true;
+        else limit += read;
+        return tokenStart < 0 ? -1 : 0;
+    }
+
+    boolean next() throws IOException {
+        length = 0;
+        add(start);
+        int tokenStart = -1;
+        while (true) {
+            if (position == limit) {
+                tokenStart = fill(tokenStart);
+                if (position == limit) {
+                    // End of file: finish the last token and line, if any
+                    if (tokenStart >= 0) add(indexer.indexOf(buffer.array(), tokenStart, position - tokenStart));
+                    if (length > 1) break;
+                    return false;
+                }
+            }
+            byte b = buffer.array()[position];
+            if (b == '\n' || isSpace(b)) {
+                if (tokenStart >= 0) {
+                    add(indexer.indexOf(buffer.array(), tokenStart, position - tokenStart));
+                    tokenStart = -1;
+                }
+                position++;
+                if (b == '\n' && length > 1) break;
+            } else {
+                if (tokenStart < 0) tokenStart = position;
+                position++;
+            }
+        }
+        add(stop);
+        return true;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+/**
+ * Maps UTF-8 byte slices to EnglishWordIndexer ids. The bytes of every type
+ * are copied into one pool, and a lookup compares the slice against the pool
+ * without decoding it.
+ */
+class ByteSliceIndexer {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    final StringIndexer indexer = EnglishWordIndexer.getIndexer();
+
+    // Entry index + 1 per slot, 0 for empty
+    int[] slots = new int[1 << 10];
+    int[] hashes = new int[1 << 9];
+    int[] offsets = new int[1 << 9];
+    int[] lengths = new int[1 << 9];
+    int[] ids = new int[1 << 9];
+    int size;
+    byte[] pool = new byte[1 << 12];
+    int poolSize;
+
+    static int hash(byte[] bytes, int offset, int length) {
+        int h = 0x811c9dc5;
+        for (int i = offset; i < offset + length; i++) {
+            h ^= bytes[i];
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    int indexOf(byte[] bytes, int offset, int length) {
+        int h = hash(bytes, offset, length);
+        int mask = slots.length - 1;
+        int slot = h & mask;
+        while (slots[slot] != 0) {
+            int entry = slots[slot] - 1;
+            if (hashes[entry] == h && lengths[entry] == length && equal(bytes, offset, entry)) return ids[entry];
+            slot = (slot + 1) & mask;
+        }
+        return add(bytes, offset, length, h, slot);
+    }
+
+    private boolean equal(byte[] bytes, int offset, int entry) {
+        int start = offsets[entry];
+        for (int i = 0; i < lengths[entry]; i++) {
+            if (pool[start + i] != bytes[offset + i]) return false;
+        }
+        return true;
+    }
+
+    private int add(byte[] bytes, int offset, int length, int h, int slot) {
+        int id = indexer.addAndGetIndex(new String(bytes, offset, length, UTF8));
+        if (size == ids.length) {
+            hashes = Arrays.copyOf(hashes, 2 * size);
+            offsets = Arrays.copyOf(offsets, 2 * size);
+            lengths = Arrays.copyOf(lengths, 2 * size);
+            ids = Arrays.copyOf(ids, 2 * size);
+        }
+        while (poolSize + length > pool.length) pool = Arrays.copyOf(pool, 2 * pool.length);
+        System.arraycopy(bytes, offset, pool, poolSize, length);
+        hashes[size] = h;
+        offsets[size] = poolSize;
+        lengths[size] = length;
+        ids[size] = id;
+        poolSize += length;
+        slots[slot] = ++size;
+        // Keep the table at most half full
+        if (2 * size > slots.length) rehash();
+        return id;
+    }
+
+    private void rehash() {
+        slots = new int[2 * slots.length];
+        int mask = slots.length - 1;
+        for (int entry = 0; entry < size; entry++) {
+            int slot = hashes[entry] & mask;
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            slots[slot] = entry + 1;
+        }
+    }
+}
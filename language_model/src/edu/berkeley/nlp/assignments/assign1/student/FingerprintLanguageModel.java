@@ -0,0 +1,144 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+
+/**
+ * Count-based LanguageModel whose trigram counts come from a
+ * FingerprintTrigramTable instead of the exact TrigramCounter. Unigrams,
+ * bigrams and contexts stay exact, so only trigram counts can be wrong: an
+ * unseen trigram can pick up the count of a stored one whose fingerprint
+ * matches (a false positive), and a stored one can get the count of an
+ * earlier entry in its probe run.
+ *
+ * The model is counted exactly first; the saving is in serving it, where
+ * the trigram keys dominate. The source model is frozen, and the caller may
+ * drop its trigrams afterwards since scoring here never reads them.
+ */
+class FingerprintLanguageModel implements NgramLanguageModel {
+
+    final LanguageModel lm;
+    final FingerprintTrigramTable trigrams;
+
+    FingerprintLanguageModel(LanguageModel lm, int fingerprintBits) {
+        if (lm.finalized) throw new IllegalArgumentException("Fingerprints need a count-based model");
+        this.lm = lm.freeze();
+        trigrams = new FingerprintTrigramTable(lm.trigrams, fingerprintBits);
+    }
+
+    public int getOrder() {
+        return 3;
+    }
+
+    public double getNgramLogProbability(int[] ngram, int from, int to) {
+        // Below trigrams the source model doesn't look at its trigram table
+        if (to - from < 3) return lm.getNgramLogProbability(ngram, from, to);
+        int word2 = ngram[to-2];
+        int word3 = ngram[to-1];
+        double pBigram = lm.bigramProbability(word2, word3, lm.bigrams.slotOf(Counter.bigramKey(word2, word3)));
+        int contextSlot = lm.bigrams.slotOf(Counter.bigramKey(ngram[to-3], word2));
+        return lm.countLogProbability(contextSlot, trigramCount(contextSlot, word3), pBigram);
+    }
+
+    // Approximate count of the trigram (context, word3) given the slot of the context
+    int trigramCount(int contextSlot, int word3) {
+        return contextSlot < 0 ? 0 : trigrams.get(Counter.trigramKey(lm.bigrams.ids[contextSlot], word3));
+    }
+
+    public long getCount(int[] ngram) {
+        if (ngram.length != 3) return lm.getCount(ngram);
+        return trigramCount(lm.bigrams.slotOf(Counter.bigramKey(ngram[0], ngram[1])), ngram[2]);
+    }
+}
+
+/**
+ * Read-only trigram counts keyed by a fingerprint of the packed key instead
+ * of the key itself. Each slot is one bit-packed entry, fingerprint above
+ * VALUE_BITS of count, and fingerprint 0 marks an empty slot. The table is
+ * sized once for LOAD_FACTOR, not to a power of two: the home slot is the
+ * high half of the key's hash scaled to the capacity, the fingerprint comes
+ * from the low half, and collisions probe linearly.
+ *
+ * A lookup compares fingerprints from the home slot up to the next empty
+ * slot, so the false positive rate is about the expected probe length over
+ * 2^fingerprintBits. Counts from SATURATED up are kept exactly, under the
+ * full key, in an OverflowCounter.
+ */
+class FingerprintTrigramTable {
+
+    static final int VALUE_BITS = 8;
+    static final int SATURATED = (1 << VALUE_BITS) - 1;
+    static final double LOAD_FACTOR = 0.8;
+
+    final int fingerprintBits;
+    final long fingerprintMask;
+    final int capacity;
+    final int size;
+    final BitArray entries;
+    final OverflowCounter overflow = new OverflowCounter();
+
+    FingerprintTrigramTable(TrigramCounter trigrams, int fingerprintBits) {
+        if (fingerprintBits < 1 || fingerprintBits > 32)
+            throw new IllegalArgumentException("Fingerprints must have 1 to 32 bits: " + fingerprintBits);
+        this.fingerprintBits = fingerprintBits;
+        fingerprintMask = (1L << fingerprintBits) - 1;
+        size = trigrams.assigned;
+        // At least one slot stays empty, so every probe ends
+        capacity = Math.max(size + 1, (int)Math.ceil(size / LOAD_FACTOR));
+        entries = new BitArray(capacity, fingerprintBits + VALUE_BITS);
+        for (int i = 0; i < trigrams.keys.length; i++) {
+            long key = trigrams.keys[i];
+            if (key != Counter.EMPTY) put(key, trigrams.value(i));
+        }
+    }
+
+    private int home(long hash) {
+        return (int)(((hash >>> 32) * capacity) >>> 32);
+    }
+
+    private long fingerprint(long hash) {
+        long fingerprint = hash & fingerprintMask;
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    private void put(long key, int count) {
+        long hash = Counter.mix(key);
+        int slot = home(hash);
+        while (entries.get(slot) != 0) {
+            if (++slot == capacity) slot = 0;
+        }
+        if (count >= SATURATED) {
+            overflow.add(key, count);
+            count = SATURATED;
+        }
+        entries.set(slot, (fingerprint(hash) << VALUE_BITS) | count);
+    }
+
+    // Count of the first entry in the probe run of key with its fingerprint
+    int get(long key) {
+        long hash = Counter.mix(key);
+        long fingerprint = fingerprint(hash);
+        int slot = home(hash);
+        long entry;
+        while ((entry = entries.get(slot)) != 0) {
+            if (entry >>> VALUE_BITS == fingerprint) {
+                int count = (int)(entry & SATURATED);
+                return count == SATURATED ? overflow.get(key) : count;
+            }
+            if (++slot == capacity) slot = 0;
+        }
+        return 0;
+    }
+
+    // The documented false positive rate: the occupied slots an unsuccessful
+    // lookup compares under linear probing, 1/2 (1 + 1/(1 - load)^2) - 1
+    // (Knuth), over 2^fingerprintBits
+    double falsePositiveBound() {
+        double load = size / (double)capacity;
+        double probes = 0.5 * (1 + 1 / ((1 - load) * (1 - load))) - 1;
+        return probes / Math.pow(2, fingerprintBits);
+    }
+
+    long bytes() {
+        return entries.bytes() + 12L * overflow.keys.length;
+    }
+}
@@ -0,0 +1,43 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+/**
+ * HyperLogLog sketch of the number of distinct 64-bit hashes added to it,
+ * in 2^bits one-byte registers: the top bits of a hash pick a register,
+ * which keeps the longest run of leading zeros seen in the rest. The
+ * standard error is about 1.04 / 2^(bits/2), 0.8% at 14 bits. Small counts
+ * are estimated by linear counting over the empty registers instead, as in
+ * Flajolet et al. Hashes are 64 bits, so no large range correction is needed.
+ */
+class HyperLogLog {
+
+    final int bits;
+    final byte[] registers;
+
+    HyperLogLog(int bits) {
+        if (bits < 4 || bits > 24) throw new IllegalArgumentException("Sketches must have 4 to 24 bits: " + bits);
+        this.bits = bits;
+        registers = new byte[1 << bits];
+    }
+
+    // hash has to be well mixed, e.g. Counter.mix of a key
+    void add(long hash) {
+        int register = (int)(hash >>> (64 - bits));
+        // The marker bit caps the rank at 64 - bits + 1
+        int rank = Long.numberOfLeadingZeros((hash << bits) | (1L << (bits - 1))) + 1;
+        if (rank > registers[register]) registers[register] = (byte)rank;
+    }
+
+    double estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte rank : registers) {
+            sum += 1.0 / (1L << rank);
+            if (rank == 0) zeros++;
+        }
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) estimate = m * Math.log(m / (double)zeros);
+        return estimate;
+    }
+}
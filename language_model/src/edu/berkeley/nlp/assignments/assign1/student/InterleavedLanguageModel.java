@@ -0,0 +1,161 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.Arrays;
+
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+
+/**
+ * Count-based LanguageModel whose bigram lookups go through an
+ * InterleavedBigramTable instead of the column arrays of BigramCounter.
+ * Unigrams and trigrams come from the source model, which is frozen.
+ * Scores are exactly those of the source model.
+ */
+class InterleavedLanguageModel implements NgramLanguageModel {
+
+    final LanguageModel lm;
+    final InterleavedBigramTable bigrams;
+
+    InterleavedLanguageModel(LanguageModel lm) {
+        if (lm.finalized) throw new IllegalArgumentException("The interleaved table needs a count-based model");
+        this.lm = lm.freeze();
+        bigrams = new InterleavedBigramTable(lm);
+    }
+
+    public int getOrder() {
+        return 3;
+    }
+
+    public double getNgramLogProbability(int[] ngram, int from, int to) {
+        if (to - from == 1) return lm.getNgramLogProbability(ngram, from, to);
+        int word2 = ngram[to-2];
+        int word3 = ngram[to-1];
+        int bigramSlot = bigrams.slotOf(Counter.bigramKey(word2, word3));
+        double pBigram = lm.continuationProbability(word2, word3, bigramSlot < 0 ? 0 : bigrams.fertility(bigramSlot));
+        if (to - from == 2) return Math.log(pBigram);
+
+        int contextSlot = bigrams.slotOf(Counter.bigramKey(ngram[to-3], word2));
+        if (contextSlot < 0) return Math.log(pBigram);
+        int count = lm.trigrams.get(Counter.trigramKey(bigrams.id(contextSlot), word3));
+        return lm.interpolatedLogProbability(count, bigrams.backoffMass(contextSlot), bigrams.count(contextSlot), pBigram);
+    }
+
+    public long getCount(int[] ngram) {
+        return lm.getCount(ngram);
+    }
+}
+
+/**
+ * Read-only copy of a model's BigramCounter with everything scoring reads
+ * about a bigram next to its key: STRIDE longs per slot, so two slots share
+ * a 64 byte cache line and a probe that finds its key needs no other load.
+ *
+ *   key
+ *   count, id                           low and high int
+ *   N1+(* w1 w2), probe distance        low and high int
+ *   backoff mass of (w1 w2) as a context, see LanguageModel.trigramBackoffMass
+ *
+ * The backoff mass is worked out once from the post fertility, the pruned
+ * count and the discounts, which can't change once the model is frozen.
+ * Values are full ints, so no OverflowCounter is needed.
+ *
+ * Slots are filled Robin Hood style: an insertion takes the slot of any
+ * key closer to its home slot than the inserted key is to its own, and
+ * that key moves on. Probe distances stay short and even, and a lookup of
+ * a missing key stops at the first slot whose key is closer to home than
+ * the probe, instead of running to the next empty slot.
+ */
+class InterleavedBigramTable {
+
+    static final int STRIDE = 4;
+
+    final long[] slots;
+    final int mask;
+    final int size;
+    int maxDistance;
+
+    InterleavedBigramTable(LanguageModel lm) {
+        BigramCounter bigrams = lm.bigrams;
+        size = bigrams.assigned;
+        int capacity = Counter.MIN_CAPACITY;
+        while (size > capacity * Counter.loadFactor) capacity <<= 1;
+        mask = capacity - 1;
+        slots = new long[STRIDE * capacity];
+        for (int slot = 0; slot < capacity; slot++) slots[STRIDE * slot] = Counter.EMPTY;
+        for (int i = 0; i < bigrams.keys.length; i++) {
+            long key = bigrams.keys[i];
+            if (key == Counter.EMPTY) continue;
+            insert(key, (bigrams.counts[i] & Counter.WORD_MASK) | ((long)bigrams.ids[i] << 32),
+                    bigrams.fertility(i), Double.doubleToRawLongBits(lm.trigramBackoffMass(i)));
+        }
+    }
+
+    private void insert(long key, long countAndId, int fertility, long backoffMass) {
+        int slot = Counter.rehash(key) & mask;
+        int distance = 0;
+        long[] entry = { key, countAndId, 0, backoffMass };
+        while (true) {
+            int base = STRIDE * slot;
+            entry[2] = (fertility & Counter.WORD_MASK) | ((long)distance << 32);
+            if (slots[base] == Counter.EMPTY) {
+                System.arraycopy(entry, 0, slots, base, STRIDE);
+                maxDistance = Math.max(maxDistance, distance);
+                return;
+            }
+            int residentDistance = (int)(slots[base + 2] >>> 32);
+            if (residentDistance < distance) {
+                // Take the slot and carry on inserting its previous key
+                long[] resident = Arrays.copyOfRange(slots, base, base + STRIDE);
+                System.arraycopy(entry, 0, slots, base, STRIDE);
+                maxDistance = Math.max(maxDistance, distance);
+                entry = resident;
+                fertility = (int)resident[2];
+                distance = residentDistance;
+            }
+            slot = (slot + 1) & mask;
+            distance++;
+        }
+    }
+
+    // Slot of key, or -1
+    int slotOf(long key) {
+        int slot = Counter.rehash(key) & mask;
+        for (int distance = 0; ; distance++) {
+            int base = STRIDE * slot;
+            long k = slots[base];
+            if (k == key) return slot;
+            if (k == Counter.EMPTY || (int)(slots[base + 2] >>> 32) < distance) return -1;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    // Number of slots slotOf looks at for key
+    int probes(long key) {
+        int slot = Counter.rehash(key) & mask;
+        for (int distance = 0; ; distance++) {
+            int base = STRIDE * slot;
+            long k = slots[base];
+            if (k == key || k == Counter.EMPTY || (int)(slots[base + 2] >>> 32) < distance) return distance + 1;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    int count(int slot) {
+        return (int)slots[STRIDE * slot + 1];
+    }
+
+    int id(int slot) {
+        return (int)(slots[STRIDE * slot + 1] >>> 32);
+    }
+
+    int fertility(int slot) {
+        return (int)slots[STRIDE * slot + 2];
+    }
+
+    double backoffMass(int slot) {
+        return Double.longBitsToDouble(slots[STRIDE * slot + 3]);
+    }
+
+    long bytes() {
+        return 8L * slots.length;
+    }
+}
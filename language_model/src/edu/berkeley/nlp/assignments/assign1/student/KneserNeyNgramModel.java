@@ -0,0 +1,304 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.*;
+
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Interpolated Kneser-Ney model of any order from 2 to 5.
+ *
+ * Every n-gram (n > 1) is keyed by (context id, word), where the context id is
+ * the id of its (n-1)-gram prefix and unigram ids are the word ids. That keeps
+ * every key in one long whatever the order. Ids are handed out densely by
+ * NgramCounter and index the per-order statistics arrays; unlike slots they
+ * don't move when a table is rehashed.
+ *
+ * The highest order uses raw counts, lower orders use continuation counts
+ * N1+(* g), and each order k has its own discount. Nothing precedes START,
+ * so n-grams that begin with it use their raw counts at every order, as in
+ * SRILM and KenLM; otherwise p(w | <s>) would always back off to p(w).
+ */
+class KneserNeyNgramModel implements NgramLanguageModel {
+
+    static final int MAX_ORDER = 5;
+    static final double ZERO = LanguageModel.ZERO;
+
+    final int order;
+    final double[] discounts;
+
+    // tables[k] maps (context id, word) to the id of a k-gram, k >= 2
+    final NgramCounter[] tables;
+    // Indexed by [k][id of a k-gram]. For k = 1 the id is the word id.
+    int[][] counts;
+    // N1+(* g), or the count of g if it begins with START
+    int[][] continuations;
+    // Denominator of g as a context: sum of the (continuation) counts of its extensions
+    int[][] contextTotals;
+    // N1+(g *), counting only extensions that are used at the next order
+    int[][] contextTypes;
+    // N1+(* *), the unigram denominator
+    long bigramTypes;
+    // Ids of the k-grams ending at the previous and the current word, reused
+    // from sentence to sentence
+    int[] previous;
+    int[] current;
+
+    public KneserNeyNgramModel(Iterable<List<String>> sentenceCollection, int order) {
+        this(order);
+        System.out.println("Building " + order + "-gram KneserNeyNgramModel...");
+        StringIndexer indexer = EnglishWordIndexer.getIndexer();
+        int start = indexer.addAndGetIndex(START);
+        int stop = indexer.addAndGetIndex(STOP);
+        int sent = 0;
+        int[] words = new int[64];
+        for (List<String> sentence : sentenceCollection) {
+            sent++;
+            if (sent % 1000000 == 0) System.out.println("On sentence " + sent);
+            if (words.length < sentence.size() + 2) words = new int[2 * (sentence.size() + 2)];
+            int length = 0;
+            words[length++] = start;
+            for (String word : sentence) words[length++] = indexer.addAndGetIndex(word);
+            words[length++] = stop;
+            countSentence(words, length);
+        }
+        computeContextStatistics();
+        System.out.println("Sentences: " + sent);
+    }
+
+    KneserNeyNgramModel(int order) {
+        if (order < 2 || order > MAX_ORDER)
+            throw new IllegalArgumentException("Order must be between 2 and " + MAX_ORDER + ": " + order);
+        this.order = order;
+        discounts = new double[order + 1];
+        Arrays.fill(discounts, LanguageModel.D);
+        tables = new NgramCounter[order + 1];
+        counts = new int[order + 1][];
+        continuations = new int[order + 1][];
+        contextTotals = new int[order + 1][];
+        contextTypes = new int[order + 1][];
+        previous = new int[order + 1];
+        current = new int[order + 1];
+        for (int k = 1; k <= order; k++) {
+            if (k > 1) tables[k] = new NgramCounter();
+            counts[k] = new int[Counter.DEFAULT_CAPACITY];
+            continuations[k] = new int[Counter.DEFAULT_CAPACITY];
+            contextTotals[k] = new int[Counter.DEFAULT_CAPACITY];
+            contextTypes[k] = new int[Counter.DEFAULT_CAPACITY];
+        }
+    }
+
+    static long pack(int context, int word) {
+        return ((long)context << 32) | word;
+    }
+
+    static int[] grow(int[] array, int index) {
+        if (index < array.length) return array;
+        return Arrays.copyOf(array, Math.max(index + 1, array.length << 1));
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    // A single discount per order keeps the model normalized only as long as
+    // no count drops below 0, so it has to be between 0 and 1.
+    public void setDiscount(int k, double discount) {
+        if (k < 2 || k > order) throw new IllegalArgumentException("No discount for order " + k);
+        if (!(discount >= 0 && discount <= 1))
+            throw new IllegalArgumentException("Discounts must be between 0 and 1: " + discount);
+        discounts[k] = discount;
+    }
+
+    // Counts one sentence of word ids, START and STOP included.
+    void countSentence(int[] words, int length) {
+        // previous[k - 1] is only read once the previous word has set it
+        for (int i = 0; i < length; i++) {
+            int word = words[i];
+            counts[1] = grow(counts[1], word);
+            counts[1][word]++;
+            current[1] = word;
+            for (int k = 2; k <= order && k <= i + 1; k++) {
+                int context = previous[k - 1];
+                long key = pack(context, word);
+                int id = tables[k].find(key);
+                if (id < 0) {
+                    id = tables[k].add(key);
+                    // A new k-gram type is one more left extension of its suffix
+                    continuations[k - 1] = grow(continuations[k - 1], current[k - 1]);
+                    continuations[k - 1][current[k - 1]]++;
+                    if (k == 2) bigramTypes++;
+                }
+                counts[k] = grow(counts[k], id);
+                counts[k][id]++;
+                current[k] = id;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+    }
+
+    // Sums the statistics of every k-gram into its (k-1)-gram context, after
+    // giving the k-grams that begin with START their counts as continuation
+    // counts. Has to run once, when all sentences are counted.
+    void computeContextStatistics() {
+        // Ids of the (k-1)-grams that begin with START: they are the contexts
+        // of the k-grams that do
+        BitSet startContexts = new BitSet();
+        startContexts.set(EnglishWordIndexer.getIndexer().addAndGetIndex(START));
+        for (int k = 2; k <= order; k++) {
+            BitSet starts = new BitSet();
+            int[] totals = new int[Math.max(counts[k - 1].length, Counter.DEFAULT_CAPACITY)];
+            int[] types = new int[totals.length];
+            continuations[k] = grow(continuations[k], tables[k].size);
+            NgramCounter table = tables[k];
+            for (int slot = 0; slot < table.keys.length; slot++) {
+                long key = table.keys[slot];
+                if (key == Counter.EMPTY) continue;
+                int context = (int)(key >>> 32);
+                int id = table.ids[slot];
+                if (startContexts.get(context)) {
+                    starts.set(id);
+                    if (k < order) continuations[k][id] = counts[k][id];
+                }
+                int value = k == order ? counts[k][id] : continuations[k][id];
+                if (value == 0) continue;
+                totals = grow(totals, context);
+                types = grow(types, context);
+                totals[context] += value;
+                types[context]++;
+            }
+            contextTotals[k - 1] = totals;
+            contextTypes[k - 1] = types;
+            startContexts = starts;
+        }
+    }
+
+    static int valueAt(int[] values, int index) {
+        return index < values.length ? values[index] : 0;
+    }
+
+    // Id of the n-gram ngram[from..to), or -1 if it was never seen.
+    int find(int[] ngram, int from, int to) {
+        int id = ngram[from];
+        for (int i = from + 1; i < to && id >= 0; i++) {
+            id = tables[i - from + 1].find(pack(id, ngram[i]));
+        }
+        return id;
+    }
+
+    public double getNgramLogProbability(int[] ngram, int from, int to) {
+        if (to - from > order) from = to - order;
+        int word = ngram[to - 1];
+        double p = bigramTypes == 0 ? 0 : valueAt(continuations[1], word) / (double)bigramTypes;
+        if (to - from == 1) return Math.log(p);
+
+        for (int k = 2; k <= to - from; k++) {
+            int context = find(ngram, to - k, to - 1);
+            // Every longer context ends with this one, so none of them was seen either
+            if (context < 0) break;
+            int total = valueAt(contextTotals[k - 1], context);
+            if (total == 0) break;
+            int id = tables[k].find(pack(context, word));
+            int count = id < 0 ? 0 : (k == order ? counts[k][id] : continuations[k][id]);
+            double d = discounts[k];
+            double interpolated = count > d ? count - d : 0;
+            interpolated += d * valueAt(contextTypes[k - 1], context) * p;
+            p = interpolated / total;
+        }
+        if (p == 0) p = ZERO;
+        return Math.log(p);
+    }
+
+    public long getCount(int[] ngram) {
+        if (ngram.length == 0 || ngram.length > order) return 0;
+        if (ngram.length == 1) return valueAt(counts[1], ngram[0]);
+        int id = find(ngram, 0, ngram.length);
+        return id < 0 ? 0 : counts[ngram.length][id];
+    }
+}
+
+/**
+ * Open addressing map from a packed (context id, word) key to a dense id,
+ * laid out like the other counters. Ids are assigned in insertion order.
+ */
+class NgramCounter extends Counter {
+
+    public int[] ids;
+    public int size;
+    public int assigned;
+    private int resizeThreshold;
+
+    public NgramCounter() {
+        allocateBuffers(DEFAULT_CAPACITY);
+    }
+
+    public int find(long key) {
+        final int mask = keys.length - 1;
+        int slot = rehash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (((key) == (keys[slot]))) {
+                return ids[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Inserts a key that isn't in the table yet and returns its new id.
+    public int add(long key) {
+        if (assigned >= resizeThreshold)
+            expandAndRehash();
+
+        final int mask = keys.length - 1;
+        int slot = rehash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            assert key != keys[slot] : "Key already present";
+            slot = (slot + 1) & mask;
+        }
+
+        assigned++;
+        keys[slot] = key;
+        ids[slot] = size;
+        return size++;
+    }
+
+    private void expandAndRehash() {
+        final long[] oldKeys = this.keys;
+        final int[] oldIds = this.ids;
+
+        assert assigned >= resizeThreshold;
+        allocateBuffers(nextCapacity(keys.length));
+
+        final int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                final long key = oldKeys[i];
+                int slot = rehash(key) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                ids[slot] = oldIds[i];
+            }
+        }
+    }
+
+    private void allocateBuffers(int capacity) {
+        this.keys = new long[capacity];
+        Arrays.fill(this.keys, EMPTY);
+        this.ids = new int[capacity];
+
+        this.resizeThreshold = (int) (capacity * loadFactor);
+    }
+
+    protected String keyAsString(long key) {
+        return (key >>> 32) + "_" + (key & 0xffffffffL);
+    }
+
+    protected String valuesAsString(int i) {
+        return Integer.toString(ids[i]);
+    }
+}
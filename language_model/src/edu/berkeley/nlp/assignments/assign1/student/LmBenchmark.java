@@ -0,0 +1,643 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Benchmarks for LanguageModel, run from lm_benchmark.sh:
+ *
+ *   suite <corpus> [sizes] [json]   construction, scoring and memory for
+ *                                   prefixes of the corpus; sizes is a comma
+ *                                   separated list of sentence counts (0 is
+ *                                   the whole corpus), results are also
+ *                                   written to the json file if given
+ *   batch <corpus> [heldout]        per-call against batch scoring
+ *   prune <corpus> <heldout> [min counts] [entropy thresholds]
+ *                                   table size and held-out perplexity
+ *                                   after count pruning with each minimum
+ *                                   count and entropy pruning with each
+ *                                   threshold (comma separated lists)
+ *   fingerprint <corpus> <heldout> [bits]
+ *                                   trigram table size, false positive
+ *                                   rate, wrong counts and held-out
+ *                                   perplexity of FingerprintLanguageModel
+ *                                   with each fingerprint width against the
+ *                                   exact model
+ *   layout <corpus> [heldout]       trigram scoring with BigramCounter's
+ *                                   column arrays against the interleaved
+ *                                   Robin Hood table: ns/query, probes per
+ *                                   bigram lookup and cache lines of the
+ *                                   bigram tables touched per query
+ *   cache <corpus> [heldout] [bits]
+ *                                   per-thread query cache in front of the
+ *                                   model: ns/query and hit rate when every
+ *                                   sentence is rescored DECODER_PASSES times
+ *   gc <corpus> [heldout]           garbage collection pauses of a decoding
+ *                                   run and of full collections with the
+ *                                   tables on the heap and off heap
+ *   build <corpus> [threads]        build time, peak heap and table sizes
+ *                                   of the one-pass and the presized
+ *                                   two-pass build, streamed from the file;
+ *                                   resizes too with -Dlm.metrics=true
+ *   remap <corpus> [heldout]        ns/query of the model and of its copy
+ *                                   renumbered by frequency, on the
+ *                                   held-out queries in order and as a
+ *                                   decoder rescores them, count-based and
+ *                                   finalized, and the bits of the stored ids
+ *
+ * Each timing is the mean over ITERATIONS runs after WARMUP untimed ones.
+ */
+public class LmBenchmark {
+
+    static final int WARMUP = 5;
+    static final int ITERATIONS = 10;
+    static final int BATCH = 4096;
+    static final int BUILDS = 3;
+    static final int QUERIES = 100000;
+
+    // Keeps the JIT from discarding the scores
+    static volatile double sink;
+
+    static class Result {
+        final String benchmark;
+        final int sentences;
+        final int order;
+        final double value;
+        final String unit;
+
+        Result(String benchmark, int sentences, int order, double value, String unit) {
+            this.benchmark = benchmark;
+            this.sentences = sentences;
+            this.order = order;
+            this.value = value;
+            this.unit = unit;
+        }
+
+        public String toString() {
+            return String.format("%-12s %10d  order %d  %14.2f %s", benchmark, sentences, order, value, unit);
+        }
+
+        String toJson() {
+            return String.format("{\"benchmark\": \"%s\", \"sentences\": %d, \"order\": %d, \"value\": %s, \"unit\": \"%s\"}",
+                    benchmark, sentences, order, Double.toString(value), unit);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !(args[0].equals("batch") || args[0].equals("suite") || args[0].equals("layout")
+                || args[0].equals("gc") || args[0].equals("cache") || args[0].equals("build")
+                || args[0].equals("remap")
+                || ((args[0].equals("prune") || args[0].equals("fingerprint")) && args.length > 2))) {
+            System.out.println("Usage: LmBenchmark suite <corpus> [sizes] [json]");
+            System.out.println("       LmBenchmark batch <corpus> [heldout]");
+            System.out.println("       LmBenchmark prune <corpus> <heldout> [min counts] [entropy thresholds]");
+            System.out.println("       LmBenchmark fingerprint <corpus> <heldout> [bits]");
+            System.out.println("       LmBenchmark layout <corpus> [heldout]");
+            System.out.println("       LmBenchmark cache <corpus> [heldout] [bits]");
+            System.out.println("       LmBenchmark gc <corpus> [heldout]");
+            System.out.println("       LmBenchmark build <corpus> [threads]");
+            System.out.println("       LmBenchmark remap <corpus> [heldout]");
+            System.exit(1);
+        }
+        if (args[0].equals("build")) {
+            benchmarkBuild(new File(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 1);
+            return;
+        }
+        if (args[0].equals("gc")) {
+            // Streamed, so the heap holds nothing but the model and the queries
+            int[][] queries = queries(LmChecks.readSentences(args.length > 2 ? args[2] : args[1]), 3);
+            benchmarkGc(LanguageModel.fromCorpus(new File(args[1]), 1), queries);
+            return;
+        }
+        List<List<String>> corpus = LmChecks.readSentences(args[1]);
+        if (args[0].equals("fingerprint")) {
+            String bits = args.length > 3 ? args[3] : "8,12,16,20";
+            benchmarkFingerprints(corpus, LmChecks.readSentences(args[2]), bits.split(","));
+            return;
+        }
+        if (args[0].equals("prune")) {
+            String minCounts = args.length > 3 ? args[3] : "1,2,3";
+            String thresholds = args.length > 4 ? args[4] : "1e-9,1e-8,1e-7";
+            benchmarkPruning(corpus, LmChecks.readSentences(args[2]), minCounts.split(","), thresholds.split(","));
+            return;
+        }
+        if (args[0].equals("suite")) {
+            int[] sizes = args.length > 2 ? parseSizes(args[2], corpus.size())
+                    : new int[] { corpus.size() / 4, corpus.size() / 2, corpus.size() };
+            List<Result> results = new ArrayList<Result>();
+            for (int size : sizes) {
+                results.addAll(suite(corpus.subList(0, size)));
+            }
+            if (args.length > 3) writeJson(results, new File(args[3]));
+            return;
+        }
+        List<List<String>> heldout = args.length > 2 ? LmChecks.readSentences(args[2]) : corpus;
+        if (args[0].equals("cache")) {
+            int bits = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+            benchmarkCache(new LanguageModel(corpus), queries(heldout, 3), bits);
+            return;
+        }
+        if (args[0].equals("remap")) {
+            benchmarkRemap(new LanguageModel(corpus), queries(heldout, 3));
+            return;
+        }
+        if (args[0].equals("layout")) {
+            benchmarkLayout(new LanguageModel(corpus), sample(queries(heldout, 3), 3, new Random(0)));
+            return;
+        }
+        LanguageModel lm = new LanguageModel(corpus);
+        int[][] ordered = queries(heldout, 3);
+        int[][] shuffled = ordered.clone();
+        Collections.shuffle(Arrays.asList(shuffled), new Random(0));
+        benchmarkBatch(lm, "corpus order", ordered);
+        benchmarkBatch(lm, "random order", shuffled);
+        lm.finalizeProbabilities();
+        benchmarkBatch(lm, "corpus order, finalized", ordered);
+        benchmarkBatch(lm, "random order, finalized", shuffled);
+    }
+
+    static void benchmarkPruning(List<List<String>> corpus, List<List<String>> heldout,
+                                 String[] minCounts, String[] thresholds) {
+        PerplexityEvaluator evaluator = new PerplexityEvaluator(heldout, Runtime.getRuntime().availableProcessors());
+        try {
+            List<String> settings = new ArrayList<String>();
+            for (String minCount : minCounts) settings.add("count " + minCount.trim());
+            for (String threshold : thresholds) settings.add("entropy " + threshold.trim());
+            List<String> lines = new ArrayList<String>();
+            for (String setting : settings) {
+                LanguageModel lm = new LanguageModel(corpus);
+                String value = setting.substring(setting.indexOf(' ') + 1);
+                if (setting.startsWith("count")) lm.prune(Integer.parseInt(value), 0);
+                else lm.prune(0, Double.parseDouble(value));
+                lines.add(String.format("%-16s %12d %10.1f MB %12.2f", setting, lm.trigrams.assigned,
+                        tableBytes(lm) / (double)(1 << 20), evaluator.perplexity(lm)));
+            }
+            System.out.println(String.format("%-16s %12s %13s %12s", "pruning", "trigrams", "tables", "perplexity"));
+            for (String line : lines) System.out.println(line);
+        } finally {
+            evaluator.close();
+        }
+    }
+
+    static void benchmarkFingerprints(List<List<String>> corpus, List<List<String>> heldout, String[] bits) {
+        PerplexityEvaluator evaluator = new PerplexityEvaluator(heldout, Runtime.getRuntime().availableProcessors());
+        try {
+            LanguageModel lm = new LanguageModel(corpus);
+            Random random = new Random(0);
+            int[][] hits = sample(queries(corpus, 3), 3, random);
+            int[][] misses = misses(lm, hits, random);
+            System.out.println(String.format("%-12s %10s %12s %14s %12s %12s", "trigrams", "MB", "bytes/entry",
+                    "false positive", "wrong count", "perplexity"));
+            System.out.println(String.format("%-12s %10.1f %12.2f %14s %12s %12.2f", "exact",
+                    trigramBytes(lm) / (double)(1 << 20), trigramBytes(lm) / (double)lm.trigrams.assigned,
+                    "-", "-", evaluator.perplexity(lm)));
+            for (String width : bits) {
+                FingerprintLanguageModel approximate = new FingerprintLanguageModel(lm, Integer.parseInt(width.trim()));
+                int falsePositives = 0, absent = 0, wrong = 0;
+                for (int[] miss : misses) {
+                    if (lm.getCount(miss) > 0) continue;
+                    absent++;
+                    if (approximate.getCount(miss) > 0) falsePositives++;
+                }
+                for (int[] hit : hits) {
+                    if (approximate.getCount(hit) != lm.getCount(hit)) wrong++;
+                }
+                long bytes = approximate.trigrams.bytes();
+                System.out.println(String.format("%-12s %10.1f %12.2f %14.6f %12.6f %12.2f", width.trim() + " bits",
+                        bytes / (double)(1 << 20), bytes / (double)lm.trigrams.assigned,
+                        falsePositives / (double)absent, wrong / (double)hits.length,
+                        evaluator.perplexity(approximate)));
+            }
+        } finally {
+            evaluator.close();
+        }
+    }
+
+    static void benchmarkLayout(LanguageModel lm, int[][] queries) {
+        BigramCounter columns = lm.bigrams;
+        long columnBytes = (long)columns.keys.length * (8 + 4 + 4 + 2 + 2);
+        InterleavedLanguageModel interleaved = new InterleavedLanguageModel(lm);
+        InterleavedBigramTable table = interleaved.bigrams;
+        long columnProbes = 0, columnLines = 0, interleavedProbes = 0, interleavedLines = 0;
+        for (int[] query : queries) {
+            long bigram = Counter.bigramKey(query[1], query[2]);
+            long context = Counter.bigramKey(query[0], query[1]);
+            // A found bigram reads its fertility, a found context its id,
+            // count and post fertility, each from its own column
+            int probes = columnProbes(columns, bigram);
+            columnProbes += probes;
+            columnLines += lines(columns.homeSlot(bigram), probes, 8) + (columns.slotOf(bigram) >= 0 ? 1 : 0);
+            probes = columnProbes(columns, context);
+            columnProbes += probes;
+            columnLines += lines(columns.homeSlot(context), probes, 8) + (columns.slotOf(context) >= 0 ? 3 : 0);
+            probes = table.probes(bigram);
+            interleavedProbes += probes;
+            interleavedLines += lines(Counter.rehash(bigram) & table.mask, probes, 64 / (8 * InterleavedBigramTable.STRIDE));
+            probes = table.probes(context);
+            interleavedProbes += probes;
+            interleavedLines += lines(Counter.rehash(context) & table.mask, probes, 64 / (8 * InterleavedBigramTable.STRIDE));
+        }
+        double columnNs = nsPerQuery(scoring(lm, queries), queries.length);
+        double interleavedNs = nsPerQuery(scoring(interleaved, queries), queries.length);
+        System.out.println(queries.length + " trigram queries in random order, two bigram lookups each."
+                + " Lines assume 64 byte aligned arrays and a cold cache.");
+        System.out.println(String.format("%-12s %10s %10s %14s %14s", "layout", "MB", "ns/query", "probes/lookup",
+                "lines/query"));
+        System.out.println(String.format("%-12s %10.1f %10.1f %14.3f %14.3f", "columns",
+                columnBytes / (double)(1 << 20), columnNs, columnProbes / (2.0 * queries.length),
+                columnLines / (double)queries.length));
+        System.out.println(String.format("%-12s %10.1f %10.1f %14.3f %14.3f", "interleaved",
+                table.bytes() / (double)(1 << 20), interleavedNs, interleavedProbes / (2.0 * queries.length),
+                interleavedLines / (double)queries.length));
+        System.out.println("Longest Robin Hood probe distance: " + table.maxDistance);
+    }
+
+    // Number of slots BigramCounter.slotOf looks at for key
+    static int columnProbes(BigramCounter bigrams, long key) {
+        int mask = bigrams.keys.length - 1;
+        int slot = bigrams.homeSlot(key);
+        int probes = 1;
+        while (bigrams.keys[slot] != Counter.EMPTY && bigrams.keys[slot] != key) {
+            slot = (slot + 1) & mask;
+            probes++;
+        }
+        return probes;
+    }
+
+    // Cache lines holding probes consecutive slots from slot, perLine slots a line
+    static int lines(int slot, int probes, int perLine) {
+        return (slot + probes - 1) / perLine - slot / perLine + 1;
+    }
+
+    static final int DECODER_PASSES = 8;
+
+    // Queries come sentence by sentence, each sentence DECODER_PASSES times
+    // in a row, the way a decoder rescores the words of its hypotheses.
+    static int[][] decoderTrace(int[][] queries) {
+        List<int[]> repeated = new ArrayList<int[]>();
+        int start = 0;
+        for (int i = 1; i <= queries.length; i++) {
+            // The bigram query of START and the first word begins a sentence
+            if (i < queries.length && queries[i].length > 2) continue;
+            for (int pass = 0; pass < DECODER_PASSES; pass++) {
+                for (int j = start; j < i; j++) repeated.add(queries[j]);
+            }
+            start = i;
+        }
+        return repeated.toArray(new int[repeated.size()][]);
+    }
+
+    static void benchmarkCache(LanguageModel lm, int[][] queries, int bits) {
+        int[][] decoder = decoderTrace(queries);
+        CachingLanguageModel cached = new CachingLanguageModel(lm, bits);
+        double uncachedNs = nsPerQuery(scoring(lm, decoder), decoder.length);
+        double cachedNs = nsPerQuery(scoring(cached, decoder), decoder.length);
+        System.out.println(String.format("%d queries, uncached %.1f ns/query, cached %.1f ns/query", decoder.length,
+                uncachedNs, cachedNs));
+        System.out.println(cached);
+    }
+
+    // Compares lm with its remapped copy, with the count-based scores and
+    // then with lm and the copy finalized
+    static void benchmarkRemap(LanguageModel lm, int[][] queries) {
+        int[][] decoder = decoderTrace(queries);
+        for (int finalized = 0; finalized < 2; finalized++) {
+            if (finalized == 1) lm.finalizeProbabilities();
+            RemappedLanguageModel remapped = new RemappedLanguageModel(lm);
+            System.out.println(String.format("%-10s %10s %12s %12s %16s %16s", "model", "scores", "order ns",
+                    "decoder ns", "bits per word id", "bits per context"));
+            String scores = finalized == 1 ? "finalized" : "counts";
+            System.out.println(String.format("%-10s %10s %12.1f %12.1f %16.2f %16.2f", "original", scores,
+                    nsPerQuery(scoring(lm, queries), queries.length), nsPerQuery(scoring(lm, decoder), decoder.length),
+                    wordIdBits(lm), contextIdBits(lm)));
+            System.out.println(String.format("%-10s %10s %12.1f %12.1f %16.2f %16.2f", "remapped", scores,
+                    nsPerQuery(scoring(remapped, queries), queries.length),
+                    nsPerQuery(scoring(remapped, decoder), decoder.length),
+                    wordIdBits(remapped.model), contextIdBits(remapped.model)));
+        }
+    }
+
+    // Mean significant bits of the word ids in the stored bigram keys,
+    // what a variable length encoding of them would have to store
+    static double wordIdBits(LanguageModel lm) {
+        long bits = 0;
+        for (long key : lm.bigrams.keys) {
+            if (key == Counter.EMPTY) continue;
+            bits += idBits((int)(key >>> 32)) + idBits((int)(key & Counter.WORD_MASK));
+        }
+        return bits / (2.0 * lm.bigrams.assigned);
+    }
+
+    // Same for the bigram ids in the stored trigram keys
+    static double contextIdBits(LanguageModel lm) {
+        long bits = 0;
+        for (long key : lm.trigrams.keys) {
+            if (key != Counter.EMPTY) bits += idBits((int)(key >>> 32));
+        }
+        return bits / (double)lm.trigrams.assigned;
+    }
+
+    static int idBits(int id) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(id));
+    }
+
+    static final int DECODE_ROUNDS = 20;
+    static final int FULL_GCS = 5;
+
+    // Takes lm over: it is measured, then copied off heap and dropped
+    static void benchmarkGc(LanguageModel lm, int[][] queries) {
+        List<String> lines = new ArrayList<String>();
+        lines.add(gcPauses("on heap", lm, queries));
+        NgramLanguageModel offHeap = LmBinaryFormat.copyOffHeap(lm);
+        lm = null;
+        lines.add(gcPauses("off heap", offHeap, queries));
+        System.out.println(String.format("%-10s %10s %12s %14s %14s", "tables", "heap MB", "decode ms",
+                "decode GC ms", "full GC ms"));
+        for (String line : lines) System.out.println(line);
+    }
+
+    // A decoding run scores every query DECODE_ROUNDS times, allocating a
+    // copy of each as a decoder allocates its hypotheses, and reports the
+    // collection time it caused; then the mean pause of FULL_GCS full
+    // collections with the model live.
+    static String gcPauses(String name, NgramLanguageModel lm, int[][] queries) {
+        long heap = usedHeap();
+        long collections = collectionMillis();
+        long start = System.currentTimeMillis();
+        double sum = 0;
+        for (int round = 0; round < DECODE_ROUNDS; round++) {
+            for (int[] query : queries) {
+                int[] hypothesis = Arrays.copyOf(query, query.length);
+                sum += lm.getNgramLogProbability(hypothesis, 0, hypothesis.length);
+            }
+        }
+        sink = sum;
+        long decode = System.currentTimeMillis() - start;
+        long decodeCollections = collectionMillis() - collections;
+        long full = 0;
+        for (int i = 0; i < FULL_GCS; i++) {
+            start = System.nanoTime();
+            System.gc();
+            full += System.nanoTime() - start;
+        }
+        return String.format("%-10s %10.1f %12d %14d %14.1f", name, heap / (double)(1 << 20), decode,
+                decodeCollections, full / 1e6 / FULL_GCS);
+    }
+
+    // Builds the model from the corpus file BUILDS times in one pass and
+    // BUILDS times presized, each after an untimed build.
+    static void benchmarkBuild(File corpus, int threads) throws IOException {
+        System.out.println(String.format("%-10s %10s %14s %10s %12s %12s %10s", "build", "ms", "peak heap MB",
+                "table MB", "bigram slots", "trigram slots", "resizes"));
+        for (int pass = 1; pass <= 2; pass++) {
+            boolean presize = pass == 2;
+            LanguageModel lm = LanguageModel.fromCorpus(corpus, threads, presize);
+            for (int build = 0; build < BUILDS; build++) {
+                lm = null;
+                resetPeakHeap();
+                long resizes = LmMetrics.INSTANCE.getBigramResizes() + LmMetrics.INSTANCE.getTrigramResizes();
+                long start = System.currentTimeMillis();
+                lm = LanguageModel.fromCorpus(corpus, threads, presize);
+                long millis = System.currentTimeMillis() - start;
+                long peak = peakHeap();
+                resizes = LmMetrics.INSTANCE.getBigramResizes() + LmMetrics.INSTANCE.getTrigramResizes() - resizes;
+                System.out.println(String.format("%-10s %10d %14.1f %10.1f %12d %12d %10s",
+                        presize ? "presized" : "one pass", millis, peak / (double)(1 << 20),
+                        tableBytes(lm) / (double)(1 << 20), lm.bigrams.keys.length, lm.trigrams.keys.length,
+                        LmMetrics.ENABLED ? Long.toString(resizes) : "-"));
+            }
+        }
+    }
+
+    // Collects garbage and forgets the peak usage of every heap pool
+    static void resetPeakHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    // Peak bytes used since resetPeakHeap, summed over the heap pools. They
+    // needn't peak at the same time, so this is an upper bound.
+    static long peakHeap() {
+        long bytes = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) bytes += pool.getPeakUsage().getUsed();
+        }
+        return bytes;
+    }
+
+    // Total time spent in every collector so far
+    static long collectionMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    // Bytes of the exact trigram table
+    static long trigramBytes(LanguageModel lm) {
+        return (long)lm.trigrams.keys.length * (8 + 2) + 12L * lm.trigrams.overflow.keys.length;
+    }
+
+    // Bytes of every table the hash table model scores from
+    static long tableBytes(LanguageModel lm) {
+        int bigramSlotBytes = 8 + 4 + 4 + 2 + 2 + (lm.bigrams.prunedCounts != null ? 4 : 0)
+                + (lm.bigrams.singletons != null ? 8 : 0);
+        return (long)lm.bigrams.keys.length * bigramSlotBytes
+                + (long)lm.trigrams.keys.length * (8 + 2)
+                + (lm.unigramSingletons != null ? 5L : 3L) * 4 * lm.unigramFertility.length;
+    }
+
+    static int[] parseSizes(String list, int corpusSize) {
+        String[] fields = list.split(",");
+        int[] sizes = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            int size = Integer.parseInt(fields[i].trim());
+            sizes[i] = size <= 0 ? corpusSize : Math.min(size, corpusSize);
+        }
+        return sizes;
+    }
+
+    static List<Result> suite(List<List<String>> sentences) {
+        List<Result> results = new ArrayList<Result>();
+        int size = sentences.size();
+
+        // Construction, and the heap the finished model holds on to
+        LanguageModel lm = null;
+        long buildTime = 0;
+        long heap = 0;
+        for (int build = 0; build <= BUILDS; build++) {
+            lm = null;
+            long before = usedHeap();
+            long start = System.nanoTime();
+            lm = new LanguageModel(sentences);
+            // The first build warms up the JIT
+            if (build > 0) buildTime += System.nanoTime() - start;
+            heap = usedHeap() - before;
+        }
+        results.add(new Result("build", size, 3, size / (buildTime / 1e9 / BUILDS), "sentences/s"));
+
+        long bigramBytes = (long)lm.bigrams.keys.length * (8 + 4 + 4 + 2 + 2);
+        long trigramBytes = (long)lm.trigrams.keys.length * (8 + 2);
+        long unigramBytes = 3L * 4 * lm.unigramFertility.length;
+        int vocabulary = EnglishWordIndexer.getIndexer().size();
+        results.add(new Result("memory", size, 1, unigramBytes / (double)vocabulary, "bytes/type"));
+        results.add(new Result("memory", size, 2, bigramBytes / (double)lm.bigrams.assigned, "bytes/type"));
+        results.add(new Result("memory", size, 3, trigramBytes / (double)lm.trigrams.assigned, "bytes/type"));
+        results.add(new Result("heap", size, 3,
+                heap / (double)(lm.bigrams.assigned + lm.trigrams.assigned), "bytes/type"));
+
+        Random random = new Random(0);
+        for (int order = 1; order <= 3; order++) {
+            int[][] hits = sample(queries(sentences, order), order, random);
+            results.add(new Result("score-hit", size, order, nsPerQuery(scoring(lm, hits), hits.length), "ns/op"));
+            if (order > 1) {
+                int[][] misses = misses(lm, hits, random);
+                results.add(new Result("score-miss", size, order,
+                        nsPerQuery(scoring(lm, misses), misses.length), "ns/op"));
+                results.add(new Result("count", size, order, nsPerQuery(counting(lm, hits), hits.length), "ns/op"));
+            }
+        }
+        for (Result result : results) System.out.println(result);
+        return results;
+    }
+
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Up to QUERIES shuffled n-grams of exactly the given order
+    static int[][] sample(int[][] queries, int order, Random random) {
+        List<int[]> sample = new ArrayList<int[]>();
+        for (int[] query : queries) {
+            if (query.length == order) sample.add(query);
+        }
+        Collections.shuffle(sample, random);
+        if (sample.size() > QUERIES) sample = sample.subList(0, QUERIES);
+        return sample.toArray(new int[sample.size()][]);
+    }
+
+    // The n-grams of hits with their last word replaced so they aren't in the model
+    static int[][] misses(LanguageModel lm, int[][] hits, Random random) {
+        int vocabulary = EnglishWordIndexer.getIndexer().size();
+        int[][] misses = new int[hits.length][];
+        for (int i = 0; i < hits.length; i++) {
+            int[] miss = hits[i].clone();
+            for (int attempt = 0; attempt < 100 && lm.getCount(miss) > 0; attempt++) {
+                miss[miss.length - 1] = random.nextInt(vocabulary);
+            }
+            misses[i] = miss;
+        }
+        return misses;
+    }
+
+    static Runnable scoring(final NgramLanguageModel lm, final int[][] queries) {
+        return new Runnable() {
+            public void run() {
+                double sum = 0;
+                for (int[] query : queries) sum += lm.getNgramLogProbability(query, 0, query.length);
+                sink = sum;
+            }
+        };
+    }
+
+    static Runnable counting(final NgramLanguageModel lm, final int[][] queries) {
+        return new Runnable() {
+            public void run() {
+                long sum = 0;
+                for (int[] query : queries) sum += lm.getCount(query);
+                sink = sum;
+            }
+        };
+    }
+
+    static void writeJson(List<Result> results, File file) throws IOException {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                out.print("  " + results.get(i).toJson());
+                out.println(i + 1 < results.size() ? "," : "");
+            }
+            out.println("]");
+        } finally {
+            out.close();
+        }
+        System.out.println("Wrote " + results.size() + " results to " + file);
+    }
+
+    // Every n-gram of up to order words ending at each word after START
+    static int[][] queries(List<List<String>> sentences, int order) {
+        StringIndexer indexer = EnglishWordIndexer.getIndexer();
+        List<int[]> queries = new ArrayList<int[]>();
+        for (List<String> sentence : sentences) {
+            int[] words = new int[sentence.size() + 2];
+            words[0] = indexer.addAndGetIndex(NgramLanguageModel.START);
+            for (int i = 0; i < sentence.size(); i++) words[i + 1] = indexer.addAndGetIndex(sentence.get(i));
+            words[words.length - 1] = indexer.addAndGetIndex(NgramLanguageModel.STOP);
+            for (int i = 1; i < words.length; i++) {
+                queries.add(Arrays.copyOfRange(words, Math.max(0, i - order + 1), i + 1));
+            }
+        }
+        return queries.toArray(new int[queries.size()][]);
+    }
+
+    static void benchmarkBatch(final LanguageModel lm, String name, final int[][] queries) {
+        final double[] out = new double[queries.length];
+        double perCall = nsPerQuery(new Runnable() {
+            public void run() {
+                for (int i = 0; i < queries.length; i++)
+                    out[i] = lm.getNgramLogProbability(queries[i], 0, queries[i].length);
+            }
+        }, queries.length);
+        double batch = nsPerQuery(new Runnable() {
+            public void run() {
+                scoreInBatches(lm, queries, out, false);
+            }
+        }, queries.length);
+        double sorted = nsPerQuery(new Runnable() {
+            public void run() {
+                scoreInBatches(lm, queries, out, true);
+            }
+        }, queries.length);
+        System.out.println(String.format("%-26s per call %7.1f ns, batch %7.1f ns, sorted batch %7.1f ns",
+                name, perCall, batch, sorted));
+    }
+
+    static void scoreInBatches(LanguageModel lm, int[][] queries, double[] out, boolean sortBySlot) {
+        int[][] batch = new int[BATCH][];
+        double[] scores = new double[BATCH];
+        for (int from = 0; from < queries.length; from += BATCH) {
+            int n = Math.min(BATCH, queries.length - from);
+            if (n < BATCH) {
+                batch = new int[n][];
+                scores = new double[n];
+            }
+            System.arraycopy(queries, from, batch, 0, n);
+            lm.getNgramLogProbabilities(batch, scores, sortBySlot);
+            System.arraycopy(scores, 0, out, from, n);
+        }
+    }
+
+    // Mean time per query over ITERATIONS runs after WARMUP untimed ones
+    static double nsPerQuery(Runnable benchmark, int queries) {
+        for (int i = 0; i < WARMUP; i++) benchmark.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) benchmark.run();
+        long elapsed = System.nanoTime() - start;
+        sink = elapsed;
+        return elapsed / (double)ITERATIONS / queries;
+    }
+}
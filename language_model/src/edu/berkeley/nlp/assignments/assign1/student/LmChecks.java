@@ -0,0 +1,1105 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Consistency checks for LanguageModel, run from lm_checks.sh:
+ *
+ *   parallel <corpus> [threads]   parallel counting matches the serial build
+ *   streaming <corpus>            training straight from the file with
+ *                                 CorpusReader matches training on the
+ *                                 sentences read as Strings
+ *   overflow [corpus]             counts and fertilities past the 65535 a
+ *                                 short holds survive training, parallel
+ *                                 counting and the binary format; the
+ *                                 generated corpus is also written to the
+ *                                 given file
+ *   concurrent <corpus> [threads] [heldout]
+ *                                 a frozen model scored from many threads
+ *                                 at once (per call, batch and stateful)
+ *                                 gives exactly the single-threaded scores,
+ *                                 with and without finalized probabilities
+ *   incremental <corpus>          adding the second half of the corpus to a
+ *                                 model of the first half, directly and
+ *                                 through a saved delta, matches a rebuild
+ *                                 on the whole, also with modified discounts
+ *   arpa <corpus>                 a model exported as ARPA and read back
+ *                                 scores like the finalized model, and
+ *                                 exports to the same n-grams again
+ *   binary <corpus> [heldout]     a model saved in LmBinaryFormat and mapped
+ *                                 back scores and counts every query
+ *                                 exactly like the saved model, plain, with
+ *                                 modified discounts and pruned
+ *   offheap <corpus> [heldout]    the same for the off-heap copy
+ *   interleaved <corpus> [heldout]
+ *                                 the same for InterleavedLanguageModel
+ *   remap <corpus> [heldout]      the same for RemappedLanguageModel, also
+ *                                 from finalized models, with queries of a
+ *                                 word no model has seen and through
+ *                                 scoreWord
+ *   batch <corpus> [heldout]      getNgramLogProbabilities, with and without
+ *                                 sorting by slot, scores exactly like one
+ *                                 query at a time, from counts and finalized
+ *   cache <corpus> [heldout] [threads]
+ *                                 CachingLanguageModel, small enough to
+ *                                 evict, scores and counts a decoder-like
+ *                                 trace exactly like the model, and threads
+ *                                 scoring at once only hit their own entries
+ *   mixture <corpus> [heldout] [threads]
+ *                                 MixtureLanguageModel of models of the first
+ *                                 half and of the whole corpus scores the
+ *                                 weighted sum of the components' scores,
+ *                                 and EM tunes it to the same weights on one
+ *                                 and on several threads
+ *   fingerprint <corpus> [heldout]
+ *                                 FingerprintLanguageModel with 32 bit
+ *                                 fingerprints scores exactly like the
+ *                                 exact model, plain, with modified
+ *                                 discounts and pruned; with 8 to 16 bits
+ *                                 its false positive rate stays within
+ *                                 FingerprintTrigramTable's bound; and
+ *                                 counts past its 8 bit field come back
+ *                                 exactly
+ *   classes <corpus> [classes] [threads]
+ *                                 WordClustering never lowers its
+ *                                 objective F from one iteration to the
+ *                                 next and clusters the same on one and on
+ *                                 several threads, and ClassLanguageModel
+ *                                 over its classes gives probabilities
+ *                                 that sum to 1 after sampled contexts
+ *                                 not ending in START
+ *   metrics <corpus> [heldout] [threads]
+ *                                 run with -Dlm.metrics=true: the counted
+ *                                 model scores and counts exactly like its
+ *                                 off-heap copy, which isn't counted, and
+ *                                 threads that score and end leave exactly
+ *                                 the lookups and queries they issued in
+ *                                 LmMetrics once they are retired
+ *   presize <corpus> [threads]    the presized two-pass build, from the
+ *                                 sentences and streamed from the file, on
+ *                                 one and on several threads, matches the
+ *                                 one-pass build
+ *   kneserney <corpus> [contexts] for KneserNeyNgramModel of every order
+ *                                 from 2 to 5, with the default and with
+ *                                 other discounts, the probabilities of
+ *                                 every word after each of that many
+ *                                 sampled contexts sum to 1, and p(w | <s>)
+ *                                 comes from the count of (<s> w)
+ *
+ * Corpora are plain text, one whitespace tokenized sentence per line.
+ */
+public class LmChecks {
+
+    static final int CONCURRENT_THREADS = 32;
+    static final int CONCURRENT_ROUNDS = 6;
+    static final int KN_CONTEXTS = 200;
+    // Small enough for the trace of the check to evict entries
+    static final int CACHE_BITS = 10;
+    static final double KN_TOLERANCE = 1e-9;
+    // The mixture adds the components' probabilities without taking their
+    // log and exp first, which moves the sum by an ulp or so
+    static final double MIXTURE_TOLERANCE = 1e-12;
+    // Absent trigrams looked up per fingerprint width, enough for about 180
+    // false positives at 16 bits
+    static final int FINGERPRINT_MISSES = 1000000;
+    // The measured false positive rate may exceed the bound by this factor,
+    // which at the expected counts is several standard deviations
+    static final double FINGERPRINT_SLACK = 1.5;
+    static final int CLASSES = 50;
+    // Threads per round of the metrics check, each scoring every query
+    static final int METRICS_THREADS = 8;
+    static final int METRICS_ROUNDS = 2;
+    // F is summed afresh after every iteration, so an iteration that only
+    // gains may still show rounding in the last digits
+    static final double CLUSTER_TOLERANCE = 1e-12;
+    // ClassLanguageModel keeps log p(w | c) as a float
+    static final double CLASS_TOLERANCE = 1e-6;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 && !(args.length == 1 && args[0].equals("overflow"))) {
+            System.out.println("Usage: LmChecks parallel <corpus> [threads]");
+            System.out.println("       LmChecks streaming <corpus>");
+            System.out.println("       LmChecks overflow [corpus]");
+            System.out.println("       LmChecks concurrent <corpus> [threads] [heldout]");
+            System.out.println("       LmChecks incremental <corpus>");
+            System.out.println("       LmChecks arpa <corpus>");
+            System.out.println("       LmChecks binary <corpus> [heldout]");
+            System.out.println("       LmChecks offheap <corpus> [heldout]");
+            System.out.println("       LmChecks interleaved <corpus> [heldout]");
+            System.out.println("       LmChecks remap <corpus> [heldout]");
+            System.out.println("       LmChecks batch <corpus> [heldout]");
+            System.out.println("       LmChecks cache <corpus> [heldout] [threads]");
+            System.out.println("       LmChecks mixture <corpus> [heldout] [threads]");
+            System.out.println("       LmChecks fingerprint <corpus> [heldout]");
+            System.out.println("       LmChecks classes <corpus> [classes] [threads]");
+            System.out.println("       LmChecks metrics <corpus> [heldout] [threads]");
+            System.out.println("       LmChecks presize <corpus> [threads]");
+            System.out.println("       LmChecks kneserney <corpus> [contexts]");
+            System.exit(1);
+        }
+        String check = args[0];
+        boolean ok;
+        if (check.equals("parallel")) {
+            int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+            ok = checkParallel(readSentences(args[1]), Math.max(threads, 2));
+        } else if (check.equals("streaming")) {
+            ok = checkStreaming(new File(args[1]));
+        } else if (check.equals("overflow")) {
+            ok = checkOverflow(args.length > 1 ? new File(args[1]) : null);
+        } else if (check.equals("concurrent")) {
+            int threads = args.length > 2 ? Integer.parseInt(args[2]) : CONCURRENT_THREADS;
+            List<List<String>> sentences = readSentences(args[1]);
+            ok = checkConcurrent(sentences, args.length > 3 ? readSentences(args[3]) : sentences, threads);
+        } else if (check.equals("incremental")) {
+            ok = checkIncremental(readSentences(args[1]));
+        } else if (check.equals("arpa")) {
+            ok = checkArpa(readSentences(args[1]));
+        } else if (check.equals("binary")) {
+            List<List<String>> sentences = readSentences(args[1]);
+            ok = checkBinary(sentences, args.length > 2 ? readSentences(args[2]) : sentences);
+        } else if (check.equals("offheap")) {
+            List<List<String>> sentences = readSentences(args[1]);
+            ok = checkOffHeap(sentences, args.length > 2 ? readSentences(args[2]) : sentences);
+        } else if (check.equals("interleaved")) {
+            List<List<String>> sentences = readSentences(args[1]);
+            ok = checkInterleaved(sentences, args.length > 2 ? readSentences(args[2]) : sentences);
+        } else if (check.equals("remap")) {
+            List<List<String>> sentences = readSentences(args[1]);
+            ok = checkRemap(sentences, args.length > 2 ? readSentences(args[2]) : sentences);
+        } else if (check.equals("batch")) {
+            List<List<String>> sentences = readSentences(args[1]);
+            ok = checkBatch(sentences, args.length > 2 ? readSentences(args[2]) : sentences);
+        } else if (check.equals("cache")) {
+            List<List<String>> sentences = readSentences(args[1]);
+            int threads = args.length > 3 ? Integer.parseInt(args[3]) : CONCURRENT_THREADS;
+            ok = checkCache(sentences, args.length > 2 ? readSentences(args[2]) : sentences, threads);
+        } else if (check.equals("mixture")) {
+            List<List<String>> sentences = readSentences(args[1]);
+            int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+            ok = checkMixture(sentences, args.length > 2 ? readSentences(args[2]) : sentences, Math.max(threads, 2));
+        } else if (check.equals("fingerprint")) {
+            List<List<String>> sentences = readSentences(args[1]);
+            ok = checkFingerprint(sentences, args.length > 2 ? readSentences(args[2]) : sentences);
+        } else if (check.equals("classes")) {
+            int classes = args.length > 2 ? Integer.parseInt(args[2]) : CLASSES;
+            int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+            ok = checkClasses(readSentences(args[1]), classes, Math.max(threads, 2));
+        } else if (check.equals("metrics")) {
+            List<List<String>> sentences = readSentences(args[1]);
+            int threads = args.length > 3 ? Integer.parseInt(args[3]) : METRICS_THREADS;
+            ok = checkMetrics(sentences, args.length > 2 ? readSentences(args[2]) : sentences, threads);
+        } else if (check.equals("presize")) {
+            int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+            ok = checkPresize(new File(args[1]), Math.max(threads, 2));
+        } else if (check.equals("kneserney")) {
+            int contexts = args.length > 2 ? Integer.parseInt(args[2]) : KN_CONTEXTS;
+            ok = checkKneserNey(readSentences(args[1]), contexts);
+        } else {
+            throw new IllegalArgumentException("Unknown check " + check);
+        }
+        System.out.println(check + (ok ? " OK" : " FAILED"));
+        if (!ok) System.exit(1);
+    }
+
+    static List<List<String>> readSentences(String path) throws IOException {
+        List<List<String>> sentences = new ArrayList<List<String>>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0) continue;
+                sentences.add(Arrays.asList(line.split("\\s+")));
+            }
+        } finally {
+            reader.close();
+        }
+        return sentences;
+    }
+
+    static boolean checkParallel(List<List<String>> sentences, int threads) {
+        long start = System.currentTimeMillis();
+        LanguageModel serial = new LanguageModel(sentences, 1);
+        long serialTime = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        LanguageModel parallel = new LanguageModel(sentences, threads);
+        long parallelTime = System.currentTimeMillis() - start;
+        System.out.println("Serial build " + serialTime + "ms, " + threads + " threads " + parallelTime + "ms");
+        String difference = compareStatistics(serial, parallel);
+        if (difference != null) System.out.println(difference);
+        return difference == null;
+    }
+
+    static boolean checkConcurrent(List<List<String>> sentences, List<List<String>> heldout, int threads) {
+        int[][] queries = LmBenchmark.queries(heldout, 3);
+        int[][] words = sentenceWords(heldout, queries);
+        LanguageModel lm = new LanguageModel(sentences);
+        boolean ok = checkConcurrentScoring("counts", lm.freeze(), queries, words, threads);
+        lm = new LanguageModel(sentences);
+        lm.finalizeProbabilities();
+        return checkConcurrentScoring("finalized", lm.freeze(), queries, words, threads) && ok;
+    }
+
+    // Word ids of every held-out sentence, START and STOP included, from the
+    // n-grams queries(heldout, 3) scores, one sentence after the other
+    static int[][] sentenceWords(List<List<String>> heldout, int[][] queries) {
+        int[][] words = new int[heldout.size()][];
+        for (int i = 0, q = 0; i < words.length; i++) {
+            words[i] = new int[heldout.get(i).size() + 2];
+            words[i][0] = queries[q][0];
+            for (int j = 1; j < words[i].length; j++, q++) words[i][j] = queries[q][queries[q].length - 1];
+        }
+        return words;
+    }
+
+    static boolean checkConcurrentScoring(String name, final LanguageModel lm, final int[][] queries,
+                                          final int[][] sentences, int threads) {
+        final double[] expected = new double[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            expected[i] = lm.getNgramLogProbability(queries[i], 0, queries[i].length);
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger mismatches = new AtomicInteger();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            tasks.add(new Callable<Void>() {
+                public Void call() throws InterruptedException {
+                    start.await();
+                    for (int round = 0; round < CONCURRENT_ROUNDS; round++) {
+                        double[] scores = new double[queries.length];
+                        int mode = (thread + round) % 3;
+                        if (mode == 0) {
+                            // Per call, each thread in its own order
+                            Integer[] order = new Integer[queries.length];
+                            for (int i = 0; i < order.length; i++) order[i] = i;
+                            Collections.shuffle(Arrays.asList(order), new Random(thread * 31 + round));
+                            for (int i : order) scores[i] = lm.getNgramLogProbability(queries[i], 0, queries[i].length);
+                        } else if (mode == 1) {
+                            LmBenchmark.scoreInBatches(lm, queries, scores, round % 2 == 0);
+                        } else {
+                            ScoredWord scored = new ScoredWord();
+                            int q = 0;
+                            for (int[] words : sentences) {
+                                long state = lm.startState();
+                                for (int j = 1; j < words.length; j++) {
+                                    lm.scoreWord(state, words[j], scored);
+                                    scores[q++] = scored.logProbability;
+                                    state = scored.state;
+                                }
+                            }
+                        }
+                        for (int i = 0; i < scores.length; i++) {
+                            if (scores[i] != expected[i]) mismatches.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> running = new ArrayList<Future<Void>>();
+            for (Callable<Void> task : tasks) running.add(executor.submit(task));
+            long begin = System.currentTimeMillis();
+            start.countDown();
+            for (Future<Void> future : running) future.get();
+            System.out.println(name + ": " + threads + " threads scored " + (long)threads * CONCURRENT_ROUNDS
+                    * queries.length + " n-grams in " + (System.currentTimeMillis() - begin) + "ms, "
+                    + mismatches.get() + " mismatches");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while scoring", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Scoring thread failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return mismatches.get() == 0;
+    }
+
+    // The n-grams models are compared on: those of orders 2 and 3 of the
+    // held-out sentences, unknown words included, and the unigrams of the
+    // training sentences (an unknown unigram has no probability to compare)
+    static int[][] comparisonQueries(List<List<String>> sentences, List<List<String>> heldout) {
+        List<int[]> queries = new ArrayList<int[]>();
+        queries.addAll(Arrays.asList(LmBenchmark.queries(heldout, 3)));
+        queries.addAll(Arrays.asList(LmBenchmark.queries(heldout, 2)));
+        queries.addAll(Arrays.asList(LmBenchmark.queries(sentences, 1)));
+        return queries.toArray(new int[queries.size()][]);
+    }
+
+    // Whether actual gives exactly the score and count of expected for every query
+    static boolean sameScores(String name, NgramLanguageModel expected, NgramLanguageModel actual, int[][] queries) {
+        int differences = 0;
+        for (int[] query : queries) {
+            double score = expected.getNgramLogProbability(query, 0, query.length);
+            double actualScore = actual.getNgramLogProbability(query, 0, query.length);
+            long count = expected.getCount(query);
+            long actualCount = actual.getCount(query);
+            if (actualScore == score && actualCount == count) continue;
+            if (differences++ == 0) {
+                System.out.println(name + ": " + Arrays.toString(query) + " scores " + actualScore + " with count "
+                        + actualCount + ", expected " + score + " with count " + count);
+            }
+        }
+        System.out.println(name + ": " + queries.length + " queries, " + differences + " differ");
+        return differences == 0;
+    }
+
+    // Models with every optional part of the binary format, and every input
+    // to the backoff mass: none, modified discounts and pruned counts
+    static final String[] VARIANTS = { "plain", "modified discounts", "pruned" };
+
+    static LanguageModel variant(List<List<String>> sentences, String variant) {
+        LanguageModel lm = new LanguageModel(sentences);
+        if (variant.equals("modified discounts")) {
+            lm.setDiscounts(lm.estimateBigramDiscounts(), lm.estimateTrigramDiscounts());
+        } else if (variant.equals("pruned")) {
+            lm.prune(2, 0);
+        }
+        return lm;
+    }
+
+    static boolean checkBinary(List<List<String>> sentences, List<List<String>> heldout) throws IOException {
+        int[][] queries = comparisonQueries(sentences, heldout);
+        boolean ok = true;
+        for (String variant : VARIANTS) {
+            LanguageModel lm = variant(sentences, variant);
+            File file = File.createTempFile("model", ".lmb");
+            file.deleteOnExit();
+            LmBinaryFormat.write(lm, file);
+            ok &= sameScores("mapped, " + variant, lm, LmBinaryFormat.map(file), queries);
+        }
+        return ok;
+    }
+
+    static boolean checkOffHeap(List<List<String>> sentences, List<List<String>> heldout) {
+        int[][] queries = comparisonQueries(sentences, heldout);
+        boolean ok = true;
+        for (String variant : VARIANTS) {
+            LanguageModel lm = variant(sentences, variant);
+            ok &= sameScores("off heap, " + variant, lm, LmBinaryFormat.copyOffHeap(lm), queries);
+        }
+        return ok;
+    }
+
+    static boolean checkInterleaved(List<List<String>> sentences, List<List<String>> heldout) {
+        int[][] queries = comparisonQueries(sentences, heldout);
+        boolean ok = true;
+        for (String variant : VARIANTS) {
+            LanguageModel lm = variant(sentences, variant);
+            ok &= sameScores("interleaved, " + variant, lm, new InterleavedLanguageModel(lm), queries);
+        }
+        return ok;
+    }
+
+    // Remapping needs unpruned counts, so the variants are plain and with
+    // modified discounts, each also finalized
+    static boolean checkRemap(List<List<String>> sentences, List<List<String>> heldout) {
+        List<int[]> queries = new ArrayList<int[]>(Arrays.asList(comparisonQueries(sentences, heldout)));
+        int unknown = EnglishWordIndexer.getIndexer().addAndGetIndex("<lmchecks-unknown>");
+        int[] known = LmBenchmark.queries(sentences.subList(0, 1), 3)[1];
+        queries.add(new int[] { known[1], unknown });
+        queries.add(new int[] { unknown, known[1] });
+        queries.add(new int[] { known[0], known[1], unknown });
+        queries.add(new int[] { unknown, known[0], known[1] });
+        queries.add(new int[] { known[0], unknown, known[1] });
+        int[][] all = queries.toArray(new int[queries.size()][]);
+        int[][] trigrams = LmBenchmark.queries(heldout, 3);
+        int[][] words = sentenceWords(heldout, trigrams);
+
+        boolean ok = true;
+        for (String variant : new String[] { "plain", "modified discounts" }) {
+            for (int pass = 0; pass < 2; pass++) {
+                LanguageModel lm = variant(sentences, variant);
+                if (pass == 1) lm.finalizeProbabilities();
+                RemappedLanguageModel remapped = new RemappedLanguageModel(lm);
+                String name = "remap, " + variant + (pass == 1 ? ", finalized" : "");
+                ok &= sameScores(name, lm, remapped, all);
+                ok &= remapped.getCount(new int[] { unknown }) == 0;
+
+                ScoredWord scored = new ScoredWord();
+                int differences = 0;
+                int q = 0;
+                for (int[] sentence : words) {
+                    long state = remapped.startState();
+                    for (int j = 1; j < sentence.length; j++, q++) {
+                        remapped.scoreWord(state, sentence[j], scored);
+                        state = scored.state;
+                        if (scored.logProbability != lm.getNgramLogProbability(trigrams[q], 0, trigrams[q].length))
+                            differences++;
+                    }
+                }
+                System.out.println(name + ", scoreWord: " + q + " words, " + differences + " differ");
+                ok &= differences == 0;
+            }
+        }
+        return ok;
+    }
+
+    static boolean checkBatch(List<List<String>> sentences, List<List<String>> heldout) {
+        // Shuffled, so every batch mixes unigrams, bigrams and trigrams
+        int[][] queries = comparisonQueries(sentences, heldout);
+        Collections.shuffle(Arrays.asList(queries), new Random(0));
+        double[] out = new double[queries.length];
+        boolean ok = true;
+        for (String variant : VARIANTS) {
+            LanguageModel lm = variant(sentences, variant);
+            for (int pass = 0; pass < 2; pass++) {
+                if (pass == 1) lm.finalizeProbabilities();
+                for (boolean sortBySlot : new boolean[] { false, true }) {
+                    String name = "batch, " + variant + (pass == 1 ? ", finalized" : "")
+                            + (sortBySlot ? ", sorted" : "");
+                    LmBenchmark.scoreInBatches(lm, queries, out, sortBySlot);
+                    int differences = 0;
+                    for (int i = 0; i < queries.length; i++) {
+                        double score = lm.getNgramLogProbability(queries[i], 0, queries[i].length);
+                        if (out[i] == score) continue;
+                        if (differences++ == 0) {
+                            System.out.println(name + ": " + Arrays.toString(queries[i]) + " scores " + out[i]
+                                    + ", expected " + score);
+                        }
+                    }
+                    System.out.println(name + ": " + queries.length + " queries, " + differences + " differ");
+                    ok &= differences == 0;
+                }
+            }
+        }
+        return ok;
+    }
+
+    // Scores the comparison queries and then the held-out sentences the way
+    // LmBenchmark's decoder trace asks for them, several times in a row,
+    // through caches of
+    // CACHE_BITS and of the most bits. Then threads score the distinct
+    // queries twice at once through one more cache: as no thread sees
+    // another's entries, the first pass of each misses every time and the
+    // second hits at least once.
+    static boolean checkCache(List<List<String>> sentences, List<List<String>> heldout, int threads) {
+        LanguageModel lm = new LanguageModel(sentences);
+        List<int[]> all = new ArrayList<int[]>(Arrays.asList(comparisonQueries(sentences, heldout)));
+        all.addAll(Arrays.asList(LmBenchmark.decoderTrace(LmBenchmark.queries(heldout, 3))));
+        int[][] trace = all.toArray(new int[all.size()][]);
+        boolean ok = true;
+        for (int bits : new int[] { CACHE_BITS, CachingLanguageModel.MAX_BITS }) {
+            CachingLanguageModel cached = new CachingLanguageModel(lm, bits);
+            ok &= sameScores("cache of 2^" + bits, lm, cached, trace);
+            System.out.println(cached);
+            ok &= cached.hits() > 0;
+        }
+
+        Map<String, int[]> distinct = new LinkedHashMap<String, int[]>();
+        for (int[] query : trace) distinct.put(Arrays.toString(query), query);
+        final int[][] queries = distinct.values().toArray(new int[distinct.size()][]);
+        final double[] expected = new double[queries.length];
+        for (int i = 0; i < queries.length; i++) expected[i] = lm.getNgramLogProbability(queries[i], 0, queries[i].length);
+        final CachingLanguageModel cached = new CachingLanguageModel(lm, CachingLanguageModel.MAX_BITS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger mismatches = new AtomicInteger();
+        final AtomicInteger foreignHits = new AtomicInteger();
+        final AtomicInteger threadsWithoutHits = new AtomicInteger();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int t = 0; t < threads; t++) {
+            tasks.add(new Callable<Void>() {
+                public Void call() throws InterruptedException {
+                    start.await();
+                    QueryCache own = cached.cache.get();
+                    for (int pass = 0; pass < 2; pass++) {
+                        for (int i = 0; i < queries.length; i++) {
+                            if (cached.getNgramLogProbability(queries[i], 0, queries[i].length) != expected[i])
+                                mismatches.incrementAndGet();
+                        }
+                        if (pass == 0) foreignHits.addAndGet((int)own.hits);
+                        else if (own.hits == 0) threadsWithoutHits.incrementAndGet();
+                    }
+                    return null;
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> running = new ArrayList<Future<Void>>();
+            for (Callable<Void> task : tasks) running.add(executor.submit(task));
+            start.countDown();
+            for (Future<Void> future : running) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while scoring", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Scoring thread failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println(threads + " threads, " + queries.length + " distinct queries twice each: "
+                + mismatches.get() + " mismatches, " + foreignHits.get() + " hits on the first pass, "
+                + threadsWithoutHits.get() + " threads without hits on the second");
+        return ok && mismatches.get() == 0 && foreignHits.get() == 0 && threadsWithoutHits.get() == 0;
+    }
+
+    // Components with every input of a component's score: plain counts,
+    // modified discounts and pruned trigrams. The unigrams compared are
+    // those of the first half, which every component knows.
+    static boolean checkMixture(List<List<String>> sentences, List<List<String>> heldout, int threads) {
+        List<List<String>> half = sentences.subList(0, sentences.size() / 2);
+        LanguageModel[] components = { variant(half, "plain"), variant(sentences, "modified discounts"),
+                variant(sentences, "pruned") };
+        MixtureLanguageModel mixture = new MixtureLanguageModel(components);
+        int[][] queries = comparisonQueries(half, heldout);
+        boolean ok = mixtureScores("equal weights", mixture, queries);
+
+        double[][] tuned = new double[2][];
+        for (int run = 0; run < 2; run++) {
+            mixture.setWeights(new double[] { 1, 1, 1 });
+            PerplexityEvaluator evaluator = new PerplexityEvaluator(heldout, run == 0 ? 1 : threads);
+            try {
+                tuned[run] = evaluator.tuneMixture(mixture);
+            } finally {
+                evaluator.close();
+            }
+        }
+        System.out.println("Weights on 1 thread " + Arrays.toString(tuned[0]) + ", on " + threads + " "
+                + Arrays.toString(tuned[1]));
+        ok &= Arrays.equals(tuned[0], tuned[1]);
+        return ok & mixtureScores("tuned weights", mixture, queries);
+    }
+
+    // Whether mixture scores the weighted sum of its components' scores,
+    // and counts their summed counts, for every query
+    static boolean mixtureScores(String name, MixtureLanguageModel mixture, int[][] queries) {
+        int differences = 0;
+        for (int[] query : queries) {
+            double sum = 0;
+            long count = 0;
+            for (int i = 0; i < mixture.components.length; i++) {
+                LanguageModel component = mixture.components[i];
+                sum += mixture.weights[i] * Math.exp(component.getNgramLogProbability(query, 0, query.length));
+                count += component.getCount(query);
+            }
+            double score = sum == 0 ? LanguageModel.LOG_ZERO : Math.log(sum);
+            double actualScore = mixture.getNgramLogProbability(query, 0, query.length);
+            long actualCount = mixture.getCount(query);
+            if (Math.abs(actualScore - score) <= MIXTURE_TOLERANCE && actualCount == count) continue;
+            if (differences++ == 0) {
+                System.out.println(name + ": " + Arrays.toString(query) + " scores " + actualScore + " with count "
+                        + actualCount + ", expected " + score + " with count " + count);
+            }
+        }
+        System.out.println(name + ": " + queries.length + " queries, " + differences + " differ");
+        return differences == 0;
+    }
+
+    static boolean checkFingerprint(List<List<String>> sentences, List<List<String>> heldout) {
+        int[][] queries = comparisonQueries(sentences, heldout);
+        boolean ok = true;
+        for (String variant : VARIANTS) {
+            LanguageModel lm = variant(sentences, variant);
+            ok &= sameScores("32 bit fingerprints, " + variant, lm, new FingerprintLanguageModel(lm, 32), queries);
+        }
+
+        // Misses with a context the model has seen, so the lookups probe
+        LanguageModel lm = new LanguageModel(sentences);
+        Random random = new Random(0);
+        int[][] trigrams = LmBenchmark.sample(LmBenchmark.queries(sentences, 3), 3, random);
+        int vocabulary = EnglishWordIndexer.getIndexer().size();
+        int[][] misses = new int[FINGERPRINT_MISSES][];
+        for (int i = 0; i < misses.length; ) {
+            int[] miss = trigrams[random.nextInt(trigrams.length)].clone();
+            miss[2] = random.nextInt(vocabulary);
+            if (lm.getCount(miss) == 0) misses[i++] = miss;
+        }
+        for (int bits = 8; bits <= 16; bits += 4) {
+            FingerprintLanguageModel approximate = new FingerprintLanguageModel(lm, bits);
+            int falsePositives = 0;
+            for (int[] miss : misses) {
+                if (approximate.getCount(miss) > 0) falsePositives++;
+            }
+            double rate = falsePositives / (double)misses.length;
+            double bound = approximate.trigrams.falsePositiveBound();
+            System.out.println(bits + " bit fingerprints: false positive rate " + rate + ", bound " + bound);
+            ok &= rate <= FINGERPRINT_SLACK * bound;
+        }
+        return ok & checkFingerprintOverflow();
+    }
+
+    // Trigrams seen 254 to 70000 times, on both sides of the SATURATED count
+    // that sends an entry to the overflow table
+    static boolean checkFingerprintOverflow() {
+        int[] counts = { FingerprintTrigramTable.SATURATED - 1, FingerprintTrigramTable.SATURATED,
+                FingerprintTrigramTable.SATURATED + 1, HEAVY };
+        List<List<String>> sentences = new ArrayList<List<String>>();
+        int[][] ngrams = new int[counts.length][];
+        StringIndexer indexer = EnglishWordIndexer.getIndexer();
+        for (int i = 0; i < counts.length; i++) {
+            List<String> sentence = Arrays.asList("fp" + i, "x", "y");
+            for (int j = 0; j < counts[i]; j++) sentences.add(sentence);
+            ngrams[i] = new int[] { indexer.addAndGetIndex("fp" + i), indexer.addAndGetIndex("x"),
+                    indexer.addAndGetIndex("y") };
+        }
+        LanguageModel lm = new LanguageModel(sentences);
+        FingerprintLanguageModel approximate = new FingerprintLanguageModel(lm, 32);
+        boolean ok = sameScores("fingerprint overflow", lm, approximate, ngrams);
+        for (int i = 0; i < counts.length; i++) {
+            if (approximate.getCount(ngrams[i]) == counts[i]) continue;
+            System.out.println("c" + Arrays.toString(ngrams[i]) + " is " + approximate.getCount(ngrams[i])
+                    + ", expected " + counts[i]);
+            ok = false;
+        }
+        System.out.println("Fingerprint overflow entries: " + approximate.trigrams.overflow.assigned);
+        return ok && approximate.trigrams.overflow.assigned > 0;
+    }
+
+    static boolean checkClasses(List<List<String>> sentences, int classes, int threads) {
+        LanguageModel lm = new LanguageModel(sentences);
+        int[][] wordClasses = new int[2][];
+        boolean ok = true;
+        for (int run = 0; run < 2; run++) {
+            int t = run == 0 ? 1 : threads;
+            WordClustering clustering = new WordClustering(lm, classes);
+            double f = clustering.objective();
+            // One iteration at a time, up to the first that moves no word
+            for (int iteration = 0; iteration < WordClustering.MAX_ITERATIONS; iteration++) {
+                int[] before = clustering.classOf.clone();
+                clustering.cluster(t, 1);
+                double next = clustering.objective();
+                if (next < f - CLUSTER_TOLERANCE * Math.abs(f)) {
+                    System.out.println("On " + t + " threads F fell from " + f + " to " + next);
+                    ok = false;
+                }
+                f = next;
+                if (Arrays.equals(before, clustering.classOf)) break;
+            }
+            wordClasses[run] = clustering.wordClasses();
+        }
+        if (!Arrays.equals(wordClasses[0], wordClasses[1])) {
+            System.out.println("The classes on 1 and on " + threads + " threads differ");
+            ok = false;
+        }
+
+        ClassLanguageModel classLm = new ClassLanguageModel(lm, wordClasses[0]);
+        StringIndexer indexer = EnglishWordIndexer.getIndexer();
+        int start = indexer.addAndGetIndex(NgramLanguageModel.START);
+        int stop = indexer.addAndGetIndex(NgramLanguageModel.STOP);
+        // LanguageModel has no continuation counts for (START w), so after a
+        // context ending in START it doesn't sum to 1 over words, nor the
+        // class model over classes. Those contexts are skipped.
+        Random random = new Random(0);
+        double worst = 1;
+        int checked = 0;
+        for (int c = 0; c < KN_CONTEXTS; c++) {
+            List<String> sentence = sentences.get(random.nextInt(sentences.size()));
+            int[] words = new int[sentence.size() + 2];
+            words[0] = start;
+            for (int i = 0; i < sentence.size(); i++) words[i + 1] = indexer.addAndGetIndex(sentence.get(i));
+            words[words.length - 1] = stop;
+            // Unigram, bigram and trigram queries in turn
+            int end = 1 + random.nextInt(words.length - 1);
+            int[] ngram = Arrays.copyOfRange(words, Math.max(0, end - c % 3), end + 1);
+            if (ngram.length > 1 && ngram[ngram.length - 2] == start) continue;
+            checked++;
+            double sum = 0;
+            for (int w = 0; w < classLm.classOf.length; w++) {
+                if (w == start || classLm.classOf[w] < 0) continue;
+                ngram[ngram.length - 1] = w;
+                sum += Math.exp(classLm.getNgramLogProbability(ngram, 0, ngram.length));
+            }
+            if (Math.abs(sum - 1) > Math.abs(worst - 1)) worst = sum;
+            if (Math.abs(sum - 1) > CLASS_TOLERANCE) {
+                System.out.println(String.format("Classes: %s sums to %.12f",
+                        Arrays.toString(Arrays.copyOf(ngram, ngram.length - 1)), sum));
+                return false;
+            }
+        }
+        System.out.println(String.format("Classes: worst sum over %d contexts %.12f", checked, worst));
+        return ok;
+    }
+
+    // ENABLED is fixed per JVM, so the scores with metrics off come from the
+    // off-heap copy, which the offheap check compares with the model and
+    // which isn't instrumented.
+    static boolean checkMetrics(List<List<String>> sentences, List<List<String>> heldout, int threads) {
+        if (!LmMetrics.ENABLED) {
+            System.out.println("Run the metrics check with -Dlm.metrics=true");
+            return false;
+        }
+        final int[][] queries = comparisonQueries(sentences, heldout);
+        boolean ok = true;
+        for (String variant : VARIANTS) {
+            LanguageModel lm = variant(sentences, variant);
+            ok &= sameScores("metrics on, " + variant, LmBinaryFormat.copyOffHeap(lm), lm, queries);
+        }
+
+        // What one pass over the queries counts, on this thread
+        final LanguageModel lm = new LanguageModel(sentences).freeze();
+        LmMetrics metrics = LmMetrics.INSTANCE;
+        metrics.reset();
+        for (int[] query : queries) lm.getNgramLogProbability(query, 0, query.length);
+        long[][] pass = metricsCounts(metrics);
+
+        // Every pass again, on threads that end before the totals are read
+        metrics.reset();
+        for (int round = 0; round < METRICS_ROUNDS; round++) {
+            Thread[] scoring = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                scoring[t] = new Thread(new Runnable() {
+                    public void run() {
+                        for (int[] query : queries) lm.getNgramLogProbability(query, 0, query.length);
+                    }
+                });
+                scoring[t].start();
+            }
+            for (Thread thread : scoring) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while scoring", e);
+                }
+            }
+        }
+        long[][] total = metricsCounts(metrics);
+        String[] names = { "bigram lookups", "trigram lookups", "unigram queries", "bigram queries", "trigram queries" };
+        int passes = METRICS_ROUNDS * threads;
+        for (int i = 0; i < names.length; i++) {
+            long[] expected = pass[i].clone();
+            for (int j = 0; j < expected.length; j++) expected[j] *= passes;
+            System.out.println(names[i] + ": " + Arrays.toString(total[i]) + " after " + passes + " passes of "
+                    + Arrays.toString(pass[i]));
+            ok &= Arrays.equals(expected, total[i]);
+        }
+        int dead = 0;
+        synchronized (LmMetrics.threads) {
+            for (ThreadMetrics live : LmMetrics.threads) {
+                if (!live.owner.isAlive()) dead++;
+            }
+        }
+        System.out.println(dead + " threads that ended still have metrics of their own");
+        return ok && dead == 0;
+    }
+
+    // The probe histograms of both tables and the queries of every order
+    static long[][] metricsCounts(LmMetrics metrics) {
+        return new long[][] { metrics.getBigramProbeHistogram(), metrics.getTrigramProbeHistogram(),
+                metrics.getUnigramQueries(), metrics.getBigramQueries(), metrics.getTrigramQueries() };
+    }
+
+    static boolean checkPresize(File corpus, int threads) throws IOException {
+        List<List<String>> sentences = readSentences(corpus.getPath());
+        LanguageModel expected = new LanguageModel(sentences);
+        boolean ok = true;
+        for (int t : new int[] { 1, threads }) {
+            String difference = compareStatistics(expected, LanguageModel.presized(sentences, t));
+            if (difference != null) System.out.println("Presized on " + t + " threads: " + difference);
+            ok &= difference == null;
+            difference = compareStatistics(expected, LanguageModel.fromCorpus(corpus, t, true));
+            if (difference != null) System.out.println("Presized from the file on " + t + " threads: " + difference);
+            ok &= difference == null;
+        }
+        return ok;
+    }
+
+    static boolean checkStreaming(File corpus) throws IOException {
+        long start = System.currentTimeMillis();
+        List<List<String>> sentences = readSentences(corpus.getPath());
+        LanguageModel lists = new LanguageModel(sentences, 1);
+        long listTime = System.currentTimeMillis() - start;
+        sentences = null;
+        start = System.currentTimeMillis();
+        LanguageModel streamed = LanguageModel.fromCorpus(corpus, 1);
+        long streamTime = System.currentTimeMillis() - start;
+        System.out.println("Read and build from lists " + listTime + "ms, streamed " + streamTime + "ms");
+        String difference = compareStatistics(lists, streamed);
+        if (difference != null) System.out.println(difference);
+        return difference == null;
+    }
+
+    static boolean checkIncremental(List<List<String>> sentences) throws IOException {
+        List<List<String>> first = sentences.subList(0, sentences.size() / 2);
+        List<List<String>> second = sentences.subList(sentences.size() / 2, sentences.size());
+        LanguageModel full = new LanguageModel(sentences);
+        LanguageModel updated = new LanguageModel(first);
+        long start = System.currentTimeMillis();
+        LanguageModel delta = updated.addSentences(second);
+        System.out.println("Added " + second.size() + " sentences in " + (System.currentTimeMillis() - start) + "ms");
+        String difference = compareStatistics(full, updated);
+        if (difference != null) {
+            System.out.println("In place: " + difference);
+            return false;
+        }
+
+        File file = File.createTempFile("delta", ".lmd");
+        file.deleteOnExit();
+        LmDelta.write(delta, file);
+        System.out.println("Delta of " + delta.bigrams.bigramTypeCount + " bigrams and " + delta.trigrams.assigned
+                + " trigrams, " + file.length() + " bytes");
+        LanguageModel merged = new LanguageModel(first);
+        merged.merge(LmDelta.read(file));
+        difference = compareStatistics(full, merged);
+        if (difference != null) {
+            System.out.println("From the delta: " + difference);
+            return false;
+        }
+
+        Discounts bigram = new Discounts(0.6, 1.1, 1.4);
+        Discounts trigram = new Discounts(0.7, 1.2, 1.5);
+        LanguageModel tuned = new LanguageModel(first);
+        tuned.setDiscounts(bigram, trigram);
+        tuned.addSentences(second);
+        full.setDiscounts(bigram, trigram);
+        int[][] queries = LmBenchmark.queries(sentences, 3);
+        for (int[] query : queries) {
+            if (full.getNgramLogProbability(query, 0, query.length)
+                    != tuned.getNgramLogProbability(query, 0, query.length)) {
+                System.out.println("With modified discounts: log p of " + Arrays.toString(query) + " differs");
+                return false;
+            }
+        }
+
+        merged.freeze();
+        try {
+            merged.addSentences(second);
+            System.out.println("A frozen model took more sentences");
+            return false;
+        } catch (IllegalStateException e) {
+            return true;
+        }
+    }
+
+    // ARPA stores log10 probabilities as text, which round trips the float
+    // values of a finalized model up to an ulp
+    static final double ARPA_TOLERANCE = 1e-5;
+
+    // Sums p(w | context) over every word but START, which never follows
+    // anything, for contexts of up to order - 1 words taken from random
+    // positions of the corpus, so sentence beginnings are included
+    static boolean checkKneserNey(List<List<String>> sentences, int contexts) {
+        StringIndexer indexer = EnglishWordIndexer.getIndexer();
+        int start = indexer.addAndGetIndex(NgramLanguageModel.START);
+        int stop = indexer.addAndGetIndex(NgramLanguageModel.STOP);
+        // The words that begin sentences, STOP for an empty one
+        Set<Integer> firstWords = new HashSet<Integer>();
+        for (List<String> sentence : sentences) {
+            firstWords.add(sentence.isEmpty() ? stop : indexer.addAndGetIndex(sentence.get(0)));
+        }
+        int[] first = { start, firstWords.iterator().next() };
+        boolean ok = true;
+        for (int order = 2; order <= KneserNeyNgramModel.MAX_ORDER; order++) {
+            KneserNeyNgramModel lm = new KneserNeyNgramModel(sentences, order);
+            // (<s> w) is discounted from its count at every order, not from
+            // N1+(* <s> w), which is always 0
+            double d = LanguageModel.D;
+            double pUnigram = Math.exp(lm.getNgramLogProbability(first, 1, 2));
+            double expected = (lm.getCount(first) - d + d * firstWords.size() * pUnigram) / sentences.size();
+            double actual = Math.exp(lm.getNgramLogProbability(first, 0, 2));
+            if (Math.abs(actual - expected) > KN_TOLERANCE) {
+                System.out.println(String.format("Order %d: p(%d | <s>) is %.12f, expected %.12f", order,
+                        first[1], actual, expected));
+                ok = false;
+            }
+            for (int discounts = 0; discounts < 2; discounts++) {
+                // The default discount, then a different one per order, 1 included
+                if (discounts == 1) {
+                    for (int k = 2; k <= order; k++) lm.setDiscount(k, 1 - 0.2 * (k - 2));
+                }
+                Random random = new Random(order);
+                double worst = 1;
+                for (int c = 0; c < contexts; c++) {
+                    List<String> sentence = sentences.get(random.nextInt(sentences.size()));
+                    int[] words = new int[sentence.size() + 2];
+                    words[0] = start;
+                    for (int i = 0; i < sentence.size(); i++) words[i + 1] = indexer.addAndGetIndex(sentence.get(i));
+                    words[words.length - 1] = stop;
+                    int end = 1 + random.nextInt(words.length - 1);
+                    int[] ngram = Arrays.copyOfRange(words, Math.max(0, end - order + 1), end + 1);
+                    double sum = 0;
+                    for (int w = 0; w < lm.counts[1].length; w++) {
+                        if (w == start || lm.counts[1][w] == 0) continue;
+                        ngram[ngram.length - 1] = w;
+                        sum += Math.exp(lm.getNgramLogProbability(ngram, 0, ngram.length));
+                    }
+                    if (Math.abs(sum - 1) > Math.abs(worst - 1)) worst = sum;
+                    if (Math.abs(sum - 1) > KN_TOLERANCE) {
+                        System.out.println(String.format("Order %d: %s sums to %.12f", order,
+                                Arrays.toString(Arrays.copyOf(ngram, ngram.length - 1)), sum));
+                        ok = false;
+                        break;
+                    }
+                }
+                System.out.println(String.format("Order %d, %s discounts: worst sum over %d contexts %.12f", order,
+                        discounts == 0 ? "default" : "other", contexts, worst));
+            }
+        }
+        return ok;
+    }
+
+    static boolean checkArpa(List<List<String>> sentences) throws IOException {
+        LanguageModel lm = new LanguageModel(sentences);
+        File file = File.createTempFile("model", ".arpa");
+        file.deleteOnExit();
+        ArpaFormat.write(lm, file);
+        long start = System.currentTimeMillis();
+        LanguageModel read = ArpaFormat.read(file);
+        System.out.println("Read " + file.length() + " bytes in " + (System.currentTimeMillis() - start) + "ms");
+        if (read.bigrams.assigned != lm.bigrams.assigned || read.trigrams.assigned != lm.trigrams.assigned) {
+            System.out.println("Read " + read.bigrams.assigned + " bigrams and " + read.trigrams.assigned
+                    + " trigrams, expected " + lm.bigrams.assigned + " and " + lm.trigrams.assigned);
+            return false;
+        }
+
+        lm.finalizeProbabilities();
+        int[][] queries = LmBenchmark.queries(sentences, 3);
+        double worst = 0;
+        for (int[] query : queries) {
+            for (int from = 0; from < query.length; from++) {
+                double expected = lm.getNgramLogProbability(query, from, query.length);
+                double actual = read.getNgramLogProbability(query, from, query.length);
+                worst = Math.max(worst, Math.abs(expected - actual));
+                if (!(Math.abs(expected - actual) <= ARPA_TOLERANCE)) {
+                    System.out.println("log p of " + Arrays.toString(Arrays.copyOfRange(query, from, query.length))
+                            + ": " + expected + ", read back " + actual);
+                    return false;
+                }
+            }
+        }
+        System.out.println("Largest difference over " + queries.length + " queries: " + worst);
+
+        File again = File.createTempFile("again", ".arpa");
+        again.deleteOnExit();
+        ArpaFormat.write(read, again);
+        LanguageModel reread = ArpaFormat.read(again);
+        if (reread.bigrams.assigned != read.bigrams.assigned || reread.trigrams.assigned != read.trigrams.assigned) {
+            System.out.println("The exported model didn't export the same n-grams");
+            return false;
+        }
+        return true;
+    }
+
+    static final int HEAVY = 70000;
+
+    // HEAVY sentences "w<i> x y z w<i>" with a distinct w<i> each, so
+    // c(x y z) = N1+(* x y) = N1+(y z *) = HEAVY, past what a short holds.
+    static List<List<String>> overflowCorpus() {
+        List<List<String>> sentences = new ArrayList<List<String>>();
+        for (int i = 0; i < HEAVY; i++) {
+            String word = "w" + i;
+            sentences.add(Arrays.asList(word, "x", "y", "z", word));
+        }
+        return sentences;
+    }
+
+    static boolean checkOverflow(File corpus) throws IOException {
+        List<List<String>> sentences = overflowCorpus();
+        if (corpus != null) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(corpus), "UTF-8"));
+            try {
+                for (List<String> sentence : sentences) {
+                    for (int i = 0; i < sentence.size(); i++) out.print((i > 0 ? " " : "") + sentence.get(i));
+                    out.println();
+                }
+            } finally {
+                out.close();
+            }
+            System.out.println("Wrote " + sentences.size() + " sentences to " + corpus);
+        }
+
+        StringIndexer indexer = EnglishWordIndexer.getIndexer();
+        int x = indexer.addAndGetIndex("x");
+        int y = indexer.addAndGetIndex("y");
+        int z = indexer.addAndGetIndex("z");
+        int w0 = indexer.addAndGetIndex("w0");
+        int[][] ngrams = { { x, y, z }, { x, y }, { y, z, w0 } };
+
+        // The same probabilities from the statistics worked out by hand
+        double d = LanguageModel.D;
+        double n = HEAVY;
+        double types = 4 * n + 2;
+        double[] expected = new double[ngrams.length];
+        double pZ = (1 - d + d / types) / 1;
+        expected[0] = Math.log((n - d + d * pZ) / n);
+        expected[1] = Math.log((n - d + d / types) / n);
+        double pW = (1 - d + d * n * 2 / types) / n;
+        expected[2] = Math.log((1 - d + d * n * pW) / n);
+
+        LanguageModel serial = new LanguageModel(sentences, 1);
+        LanguageModel parallel = new LanguageModel(sentences, 2);
+        String difference = compareStatistics(serial, parallel);
+        if (difference != null) {
+            System.out.println("Parallel: " + difference);
+            return false;
+        }
+        if (serial.getCount(ngrams[0]) != HEAVY) {
+            System.out.println("c(x y z) is " + serial.getCount(ngrams[0]) + ", expected " + HEAVY);
+            return false;
+        }
+        System.out.println("Overflow entries: " + serial.trigrams.overflow.assigned + " counts, "
+                + serial.bigrams.fertilityOverflow.assigned + " fertilities, "
+                + serial.bigrams.postFertilityOverflow.assigned + " post fertilities");
+
+        File binary = File.createTempFile("overflow", ".lm");
+        binary.deleteOnExit();
+        LmBinaryFormat.write(serial, binary);
+        MappedLanguageModel mapped = LmBinaryFormat.map(binary);
+        boolean ok = true;
+        for (int i = 0; i < ngrams.length; i++) {
+            double heap = serial.getNgramLogProbability(ngrams[i], 0, ngrams[i].length);
+            double fromFile = mapped.getNgramLogProbability(ngrams[i], 0, ngrams[i].length);
+            if (Math.abs(heap - expected[i]) > 1e-9 || heap != fromFile) {
+                System.out.println("log p of " + Arrays.toString(ngrams[i]) + ": " + heap
+                        + ", mapped " + fromFile + ", expected " + expected[i]);
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    // Returns a description of the first statistic that differs, or null.
+    static String compareStatistics(LanguageModel expected, LanguageModel actual) {
+        if (expected.bigrams.bigramTypeCount != actual.bigrams.bigramTypeCount)
+            return "bigram types " + expected.bigrams.bigramTypeCount + " vs " + actual.bigrams.bigramTypeCount;
+        if (expected.bigrams.assigned != actual.bigrams.assigned)
+            return "bigram entries " + expected.bigrams.assigned + " vs " + actual.bigrams.assigned;
+        if (expected.trigrams.assigned != actual.trigrams.assigned)
+            return "trigram entries " + expected.trigrams.assigned + " vs " + actual.trigrams.assigned;
+        if (!Arrays.equals(expected.unigramFertility, actual.unigramFertility))
+            return "unigram fertilities differ";
+        if (!Arrays.equals(expected.unigramPostFertility, actual.unigramPostFertility))
+            return "unigram post fertilities differ";
+        if (!Arrays.equals(expected.sumFertility, actual.sumFertility))
+            return "sum fertilities differ";
+
+        BigramCounter bigrams = expected.bigrams;
+        for (int i = 0; i < bigrams.keys.length; i++) {
+            long key = bigrams.keys[i];
+            if (key == Counter.EMPTY) continue;
+            if (bigrams.counts[i] != actual.bigrams.getCount(key)
+                    || bigrams.fertility(i) != actual.bigrams.getFertility(key)
+                    || bigrams.postFertility(i) != actual.bigrams.getPostFertility(key))
+                return "bigram " + Counter.keyToString(key) + " differs";
+        }
+        // Trigram keys depend on the order the contexts were inserted in, so
+        // they are compared by their words
+        TrigramCounter trigrams = expected.trigrams;
+        long[] contexts = bigrams.keysById();
+        int[] ngram = new int[3];
+        for (int i = 0; i < trigrams.keys.length; i++) {
+            long key = trigrams.keys[i];
+            if (key == Counter.EMPTY) continue;
+            long context = contexts[(int)(key >>> 32)];
+            ngram[0] = (int)(context >>> 32);
+            ngram[1] = (int)(context & Counter.WORD_MASK);
+            ngram[2] = (int)(key & Counter.WORD_MASK);
+            if (trigrams.value(i) != actual.getCount(ngram))
+                return "trigram " + Arrays.toString(ngram) + " differs";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,141 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * File format for the counts LanguageModel.addSentences returns, so an
+ * update counted once can be shipped and merged into every copy of a model
+ * instead of rebuilding them all. Only bigram and trigram counts are
+ * stored; merging rederives every fertility from them.
+ *
+ * Layout (big-endian):
+ *
+ *   magic, version                      int, int
+ *   words                               int n, then (int, UTF-8 bytes) n times
+ *   bigrams                             int n, then (int word1, int word2,
+ *                                       int count) n times
+ *   trigrams                            int n, then (int word1, int word2,
+ *                                       int word3, int count) n times
+ *
+ * Word numbers index the words section, which holds only the words the
+ * counts use, and are mapped to EnglishWordIndexer ids on reading, so the
+ * delta doesn't depend on the ids of the JVM that wrote it. n-grams with a
+ * count of 0 are left out.
+ */
+class LmDelta {
+
+    static final int MAGIC = 0x4b4e4c44; // "KNLD"
+    static final int VERSION = 1;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static void write(LanguageModel delta, File file) throws IOException {
+        StringIndexer indexer = EnglishWordIndexer.getIndexer();
+        BigramCounter bigrams = delta.bigrams;
+        TrigramCounter trigrams = delta.trigrams;
+        long[] contexts = bigrams.keysById();
+
+        // Numbers only the words the counts use, in order of appearance
+        int[] numbers = new int[delta.unigramFertility.length];
+        Arrays.fill(numbers, -1);
+        int[] words = new int[16];
+        int vocabulary = 0;
+        int bigramCount = 0;
+        for (int i = 0; i < bigrams.keys.length; i++) {
+            long key = bigrams.keys[i];
+            if (key == Counter.EMPTY || bigrams.counts[i] == 0) continue;
+            bigramCount++;
+            for (int w = 0; w < 2; w++) {
+                int word = (int)(w == 0 ? key >>> 32 : key & Counter.WORD_MASK);
+                if (numbers[word] >= 0) continue;
+                if (vocabulary == words.length) words = Arrays.copyOf(words, 2 * vocabulary);
+                numbers[word] = vocabulary;
+                words[vocabulary++] = word;
+            }
+        }
+        // The bigrams a trigram is made of are counted as well (see
+        // addTrigramCount), so its words are numbered already
+        int trigramCount = 0;
+        for (int i = 0; i < trigrams.keys.length; i++) {
+            if (trigrams.keys[i] != Counter.EMPTY && trigrams.value(i) > 0) trigramCount++;
+        }
+
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(vocabulary);
+            for (int i = 0; i < vocabulary; i++) {
+                byte[] bytes = indexer.get(words[i]).getBytes(UTF8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            out.writeInt(bigramCount);
+            for (int i = 0; i < bigrams.keys.length; i++) {
+                long key = bigrams.keys[i];
+                if (key == Counter.EMPTY || bigrams.counts[i] == 0) continue;
+                out.writeInt(numbers[(int)(key >>> 32)]);
+                out.writeInt(numbers[(int)(key & Counter.WORD_MASK)]);
+                out.writeInt(bigrams.counts[i]);
+            }
+
+            out.writeInt(trigramCount);
+            for (int i = 0; i < trigrams.keys.length; i++) {
+                long key = trigrams.keys[i];
+                if (key == Counter.EMPTY || trigrams.value(i) == 0) continue;
+                long context = contexts[(int)(key >>> 32)];
+                out.writeInt(numbers[(int)(context >>> 32)]);
+                out.writeInt(numbers[(int)(context & Counter.WORD_MASK)]);
+                out.writeInt(numbers[(int)(key & Counter.WORD_MASK)]);
+                out.writeInt(trigrams.value(i));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // Reads a delta back as a LanguageModel to hand to LanguageModel.merge
+    public static LanguageModel read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a language model delta");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException(file + " has format version " + version + ", expected " + VERSION);
+            StringIndexer indexer = EnglishWordIndexer.getIndexer();
+            int[] ids = new int[in.readInt()];
+            for (int i = 0; i < ids.length; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                ids[i] = indexer.addAndGetIndex(new String(bytes, UTF8));
+            }
+
+            LanguageModel delta = new LanguageModel();
+            int bigrams = in.readInt();
+            for (int i = 0; i < bigrams; i++) {
+                int word1 = ids[in.readInt()];
+                int word2 = ids[in.readInt()];
+                delta.addBigramCount(Counter.bigramKey(word1, word2), in.readInt());
+            }
+            int trigrams = in.readInt();
+            for (int i = 0; i < trigrams; i++) {
+                int word1 = ids[in.readInt()];
+                int word2 = ids[in.readInt()];
+                int word3 = ids[in.readInt()];
+                delta.addTrigramCount(Counter.bigramKey(word1, word2), word3, in.readInt());
+            }
+            return delta;
+        } finally {
+            in.close();
+        }
+    }
+}
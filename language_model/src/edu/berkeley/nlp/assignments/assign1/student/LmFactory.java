@@ -7,6 +7,8 @@ import java.lang.String;
 import java.lang.StringBuffer;
 import java.lang.System;
 import java.util.*;
+import java.io.File;
+import java.io.IOException;
 
 import edu.berkeley.nlp.langmodel.LanguageModelFactory;
 import edu.berkeley.nlp.langmodel.NgramLanguageModel;
@@ -16,7 +18,191 @@ import edu.berkeley.nlp.util.StringIndexer;
 public class LmFactory implements LanguageModelFactory {
 
     public NgramLanguageModel newLanguageModel(Iterable<List<String>> trainingData) {
-        return new LanguageModel(trainingData);
+        // -Dlm.cacheBits=<n> caches the last 2^n scores per thread in front of the model.
+        NgramLanguageModel model = buildLanguageModel(trainingData);
+        Integer cacheBits = Integer.getInteger("lm.cacheBits");
+        return cacheBits == null ? model : new CachingLanguageModel(model, cacheBits);
+    }
+
+    NgramLanguageModel buildLanguageModel(Iterable<List<String>> trainingData) {
+        // -Dlm.order=<n> trains a KneserNeyNgramModel of order 2 to 5 instead.
+        Integer order = Integer.getInteger("lm.order");
+        if (order != null) return new KneserNeyNgramModel(trainingData, order);
+        // -Dlm.mixture=<corpus>[,<corpus>...] interpolates the trained model
+        // with one trained on each of those files (one sentence per line).
+        // -Dlm.mixtureWeights=<w>,<w>,... sets the weights, the trained model
+        // first; -Dlm.mixtureHeldout=<file> tunes them on held-out sentences
+        // instead. The weights are equal otherwise.
+        String mixture = System.getProperty("lm.mixture");
+        if (mixture != null) {
+            try {
+                return mixture(train(trainingData), mixture.split(","));
+            } catch (IOException e) {
+                throw new RuntimeException("Could not build the mixture of " + mixture, e);
+            }
+        }
+        // -Dlm.classes=<n> clusters the vocabulary into n classes with
+        // WordClustering and returns the ClassLanguageModel over them;
+        // -Dlm.clusters=<file> takes the classes from a file it wrote instead.
+        Integer classes = Integer.getInteger("lm.classes");
+        String clusters = System.getProperty("lm.clusters");
+        if (classes != null || clusters != null) {
+            LanguageModel model = train(trainingData);
+            if (clusters != null) {
+                try {
+                    return new ClassLanguageModel(model, WordClustering.read(new File(clusters)));
+                } catch (IOException e) {
+                    throw new RuntimeException("Could not read clusters " + clusters, e);
+                }
+            }
+            WordClustering clustering = new WordClustering(model, classes);
+            clustering.cluster(Integer.getInteger("lm.threads", 1), WordClustering.MAX_ITERATIONS);
+            return new ClassLanguageModel(model, clustering.wordClasses());
+        }
+        // -Dlm.arpa=<file> reads an ARPA model instead of retraining, or
+        // trains once and exports the model there if the file doesn't exist yet.
+        String arpa = System.getProperty("lm.arpa");
+        if (arpa != null) {
+            File file = new File(arpa);
+            try {
+                if (file.exists()) return ArpaFormat.read(file);
+                LanguageModel model = train(trainingData);
+                ArpaFormat.write(model, file);
+                return model;
+            } catch (IOException e) {
+                throw new RuntimeException("Could not use ARPA model " + file, e);
+            }
+        }
+        // -Dlm.binary=<file> maps a previously saved model instead of retraining,
+        // or trains once and saves the model there if the file doesn't exist yet.
+        String binary = System.getProperty("lm.binary");
+        // -Dlm.storage=compact converts the trained tables to a quantized trie,
+        // -Dlm.quantBits=<n> sets the bits per quantized value.
+        if ("compact".equals(System.getProperty("lm.storage"))) {
+            LanguageModel model = train(trainingData);
+            CompactLanguageModel compact = new CompactLanguageModel(model, Integer.getInteger("lm.quantBits", 12));
+            System.out.print(CompactLanguageModel.memoryReport(model, compact));
+            return compact;
+        }
+        // -Dlm.storage=fingerprint keeps only a fingerprint of every trigram
+        // key, -Dlm.fingerprintBits=<n> bits of it, trading a few false
+        // positives for memory.
+        if ("fingerprint".equals(System.getProperty("lm.storage"))) {
+            LanguageModel model = train(trainingData);
+            FingerprintLanguageModel approximate = new FingerprintLanguageModel(model,
+                    Integer.getInteger("lm.fingerprintBits", 16));
+            System.out.println(String.format("Trigram tables: %d MB exact, %d MB fingerprints",
+                    LmBenchmark.trigramBytes(model) >> 20, approximate.trigrams.bytes() >> 20));
+            // The exact keys are what the fingerprints replace
+            model.trigrams = null;
+            return approximate;
+        }
+        // -Dlm.storage=interleaved scores through a copy of the bigram table
+        // with every slot's statistics next to its key.
+        if ("interleaved".equals(System.getProperty("lm.storage"))) {
+            return new InterleavedLanguageModel(train(trainingData));
+        }
+        // -Dlm.storage=offheap moves the trained tables into direct buffers,
+        // out of the garbage collected heap. Direct memory is capped by
+        // -XX:MaxDirectMemorySize, which defaults to the maximum heap size.
+        if ("offheap".equals(System.getProperty("lm.storage"))) {
+            return LmBinaryFormat.copyOffHeap(train(trainingData));
+        }
+        // -Dlm.finalize=true bakes the probabilities into the tables after training.
+        boolean finalize = Boolean.getBoolean("lm.finalize");
+        if (binary == null) {
+            LanguageModel model = train(trainingData);
+            if (finalize) model.finalizeProbabilities();
+            // -Dlm.remap=true renumbers the words of the trained model by frequency.
+            return Boolean.getBoolean("lm.remap") ? new RemappedLanguageModel(model) : model;
+        }
+        File file = new File(binary);
+        try {
+            if (file.exists()) return LmBinaryFormat.map(file);
+            LanguageModel model = train(trainingData);
+            LmBinaryFormat.write(model, file);
+            if (finalize) model.finalizeProbabilities();
+            return model;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not use binary model " + file, e);
+        }
+    }
+
+    static MixtureLanguageModel mixture(LanguageModel trained, String[] corpora) throws IOException {
+        int threads = Integer.getInteger("lm.threads", 1);
+        LanguageModel[] components = new LanguageModel[corpora.length + 1];
+        components[0] = trained;
+        for (int i = 0; i < corpora.length; i++) {
+            components[i + 1] = LanguageModel.fromCorpus(new File(corpora[i]), threads);
+        }
+        MixtureLanguageModel model = new MixtureLanguageModel(components);
+        String weights = System.getProperty("lm.mixtureWeights");
+        String heldout = System.getProperty("lm.mixtureHeldout");
+        if (weights != null) {
+            String[] fields = weights.split(",");
+            double[] w = new double[fields.length];
+            for (int i = 0; i < fields.length; i++) w[i] = Double.parseDouble(fields[i]);
+            model.setWeights(w);
+        } else if (heldout != null) {
+            PerplexityEvaluator evaluator = new PerplexityEvaluator(LmChecks.readSentences(heldout), threads);
+            try {
+                evaluator.tuneMixture(model);
+            } finally {
+                evaluator.close();
+            }
+        }
+        return model;
+    }
+
+    static LanguageModel train(Iterable<List<String>> trainingData) {
+        // -Dlm.threads=<n> counts the training data on n threads.
+        int threads = Integer.getInteger("lm.threads", 1);
+        // -Dlm.corpus=<file> streams the training sentences from that file
+        // (one per line) instead of using trainingData.
+        String corpus = System.getProperty("lm.corpus");
+        // -Dlm.presize=true sizes every table on a first pass over the
+        // training data, so counting doesn't rehash, and reports the peak heap.
+        boolean presize = Boolean.getBoolean("lm.presize");
+        if (presize) LmBenchmark.resetPeakHeap();
+        LanguageModel model;
+        if (corpus == null) {
+            model = presize ? LanguageModel.presized(trainingData, threads) : new LanguageModel(trainingData, threads);
+        } else {
+            try {
+                model = LanguageModel.fromCorpus(new File(corpus), threads, presize);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read corpus " + corpus, e);
+            }
+        }
+        if (presize) System.out.println(String.format("Peak heap while building: %.1f MB",
+                LmBenchmark.peakHeap() / (double)(1 << 20)));
+        // -Dlm.pruneCount=<n> drops trigrams seen fewer than n times,
+        // -Dlm.pruneEntropy=<t> those whose relative entropy loss is below t.
+        int minCount = Integer.getInteger("lm.pruneCount", 0);
+        double threshold = Double.parseDouble(System.getProperty("lm.pruneEntropy", "0"));
+        if (minCount > 1 || threshold > 0) {
+            int before = model.trigrams.assigned;
+            int pruned = model.prune(minCount, threshold);
+            System.out.println("Pruned " + pruned + " of " + before + " trigrams");
+        }
+        // -Dlm.discounts=<b1,b2,b3+,t1,t2,t3+> sets the modified Kneser-Ney
+        // discounts of the bigram and trigram levels (as printed by
+        // PerplexityEvaluator tune), -Dlm.discounts=estimate estimates them.
+        String discounts = System.getProperty("lm.discounts");
+        if ("estimate".equals(discounts)) {
+            model.setDiscounts(model.estimateBigramDiscounts(), model.estimateTrigramDiscounts());
+        } else if (discounts != null) {
+            String[] fields = discounts.split(",");
+            if (fields.length != 6) throw new IllegalArgumentException("lm.discounts needs six values: " + discounts);
+            model.setDiscounts(Discounts.parse(fields[0] + "," + fields[1] + "," + fields[2]),
+                    Discounts.parse(fields[3] + "," + fields[4] + "," + fields[5]));
+        }
+        if (discounts != null) {
+            System.out.println("Discounts: bigrams " + model.bigramDiscounts + ", trigrams " + model.trigramDiscounts);
+        }
+        // -Dlm.metrics=true counts probes, resizes and backoffs, see LmMetrics.
+        if (LmMetrics.ENABLED) LmMetrics.watch(model);
+        return model;
     }
 
     public static void main(String[] args) {
@@ -48,81 +234,271 @@ public class LmFactory implements LanguageModelFactory {
     }
 }
 
-class LanguageModel implements NgramLanguageModel {
+class LanguageModel implements StatefulLanguageModel {
 
     static final String STOP = NgramLanguageModel.STOP;
     static final String START = NgramLanguageModel.START;
 
+    // Registers of the sketches presize counts with, 2^14 for 0.8% error
+    static final int SKETCH_BITS = 14;
+    // What presize adds to the estimates, about 4 standard errors
+    static final double SKETCH_MARGIN = 0.03;
+
     static final double ZERO = 0.000001;
     static final double LOG_ZERO = Math.log(ZERO);
+    static final double D = 0.75d;
 
     public int getOrder() {
         return 3;
     }
 
-    // int[] unigrams = new int[500000];
+    // Indexed by word id and grown by expandArrays as ids come in; words
+    // past the end have never been seen.
     // Fertility refers to N1+(*, ngram)
-    int[] unigramFertility = new int[500000];
+    int[] unigramFertility = new int[1 << 10];
     // This one is N1+(ngram, *)
-    int[] unigramPostFertility = new int[500000];
+    int[] unigramPostFertility = new int[1 << 10];
     // This one is \Sum_w(N1+(*, key, w))
-    int[] sumFertility = new int[500000];
+    int[] sumFertility = new int[1 << 10];
 
     BigramCounter bigrams = new BigramCounter();
     TrigramCounter trigrams = new TrigramCounter();
+    // Distinct bigrams and trigrams presize expects, 0 if it didn't run
+    int expectedBigrams;
+    int expectedTrigrams;
+
+    // Modified Kneser-Ney discounts of the bigram level (which discounts
+    // continuation counts) and of the trigram level, see setDiscounts
+    Discounts bigramDiscounts = Discounts.uniform(D);
+    Discounts trigramDiscounts = Discounts.uniform(D);
+    // N1(word *) and N2(word *) over continuation counts, indexed by word.
+    // Only needed, and so only filled in, while bigramDiscounts isn't uniform.
+    int[] unigramSingletons;
+    int[] unigramDoubletons;
+
+    // Filled in by finalizeProbabilities, see there
+    boolean finalized = false;
+    float[] unigramLogProbs;
+    float[] unigramLogBackoffs;
+
+    // Set by freeze, after which nothing writes to the model anymore
+    boolean frozen = false;
+    // Id of START; RemappedLanguageModel gives its copy the remapped one
+    int startWord = EnglishWordIndexer.getIndexer().addAndGetIndex(START);
 
     public LanguageModel(Iterable<List<String>> sentenceCollection) {
-        int sent = 0;
-        StringIndexer indexer = EnglishWordIndexer.getIndexer();
+        this(sentenceCollection, 1);
+    }
+
+    // With more than one thread the sentences are counted by ParallelCounting,
+    // which gives exactly the same statistics.
+    public LanguageModel(Iterable<List<String>> sentenceCollection, int threads) {
+        try {
+            build(new IndexedSentences(sentenceCollection), threads);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Empty model, filled in by build or addBigramCount/addTrigramCount
+    LanguageModel() {
+    }
+
+    // The same model built in two passes, see presize
+    public static LanguageModel presized(Iterable<List<String>> sentenceCollection, int threads) {
+        try {
+            LanguageModel lm = new LanguageModel();
+            lm.presize(new IndexedSentences(sentenceCollection));
+            lm.build(new IndexedSentences(sentenceCollection), threads);
+            return lm;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Trains on a corpus file with one sentence per line, streamed through a
+    // CorpusReader instead of being loaded as lists of Strings first.
+    public static LanguageModel fromCorpus(File file, int threads) throws IOException {
+        return fromCorpus(file, threads, false);
+    }
+
+    // Same, reading the file twice with presize first
+    public static LanguageModel fromCorpus(File file, int threads, boolean presize) throws IOException {
+        LanguageModel lm = new LanguageModel();
+        ByteSliceIndexer indexer = new ByteSliceIndexer();
+        if (presize) {
+            CorpusReader reader = new CorpusReader(file, indexer);
+            try {
+                lm.presize(reader);
+            } finally {
+                reader.close();
+            }
+        }
+        CorpusReader reader = new CorpusReader(file, indexer);
+        try {
+            lm.build(reader, threads);
+            return lm;
+        } finally {
+            reader.close();
+        }
+    }
+
+    // First pass of a two-pass build: estimates the distinct bigrams and
+    // trigrams of source with HyperLogLog sketches and allocates the tables
+    // and unigram arrays at their final size, so counting doesn't rehash
+    // unless the estimate falls short by more than SKETCH_MARGIN. The sketches take 32 KB whatever the
+    // corpus; an exact count would take a table as large as the model's.
+    void presize(IdSentences source) throws IOException {
+        checkNotFinalized();
+        if (bigrams.assigned > 0) throw new IllegalStateException("Only an empty model can be presized");
+        HyperLogLog bigramSketch = new HyperLogLog(SKETCH_BITS);
+        HyperLogLog trigramSketch = new HyperLogLog(SKETCH_BITS);
+        int maxWord = 0;
+        while (source.next()) {
+            int[] words = source.words;
+            // Hash of the previous bigram, the context of the next trigram
+            long context = 0;
+            for (int i = 0; i < source.length; i++) {
+                maxWord = Math.max(maxWord, words[i]);
+                if (i < 1) continue;
+                long bigram = Counter.mix(Counter.bigramKey(words[i-1], words[i]));
+                bigramSketch.add(bigram);
+                if (i >= 2) trigramSketch.add(Counter.mix(context ^ words[i]));
+                context = bigram;
+            }
+        }
+        expectedBigrams = (int)Math.ceil(bigramSketch.estimate() * (1 + SKETCH_MARGIN));
+        expectedTrigrams = (int)Math.ceil(trigramSketch.estimate() * (1 + SKETCH_MARGIN));
+        expandArrays(maxWord);
+        bigrams = new BigramCounter(expectedBigrams);
+        trigrams = new TrigramCounter(expectedTrigrams);
+        System.out.println("Presized for " + expectedBigrams + " bigrams and " + expectedTrigrams + " trigrams");
+    }
+
+    // Counts every sentence of source
+    void build(IdSentences source, int threads) throws IOException {
         // Arrays.fill(unigrams, 0);
         Arrays.fill(unigramFertility, 0);
         Arrays.fill(unigramPostFertility, 0);
         Arrays.fill(sumFertility, 0);
         System.out.println("Building LanguageModel...");
-        for (List<String> sentence : sentenceCollection) {
+        if (threads > 1) {
+            ParallelCounting.count(this, source, threads);
+            return;
+        }
+        int sent = 0;
+        while (source.next()) {
             sent++;
             if (sent % 1000000 == 0) System.out.println("On sentence " + sent);
-            if (sent == 1500000) return;
-            List<String> stoppedSentence = new ArrayList<String>(sentence);
-            stoppedSentence.add(0, START);
-            stoppedSentence.add(STOP);
-            int curr = 0, prev = 0, prev2;
-            int value;
-            Integer value2;
-            Integer fertility;
-            for (int i = 0; i < stoppedSentence.size(); i++) {
-                String word = stoppedSentence.get(i);
-                prev2 = prev;
-                prev = curr;
-                curr = indexer.addAndGetIndex(word);
-                assert(curr < 1<<19);
-                long keyPC = ((long)prev << 19) + curr;
-                if (i >= 2) {
-                    long key3 = ((long)prev2 << 19) + prev;
-                    key3 <<= 19; key3 += curr;
-                    if (!trigrams.containsKey(key3)) {
-                        long key2P = ((long)prev2 << 19) + prev;
-                        bigrams.incrementPostFertility(key2P);
-                        bigrams.incrementFertility(keyPC);
-                        // expandArray(sumFertility, prev);
-                        sumFertility[prev] += 1;
-                    }
-                    trigrams.increment(key3);
+            countSentence(source.words, source.length);
+        }
+        System.out.println("Sentences: " + sent);
+    }
+
+    // Counts one sentence of word ids, START and STOP included. Fertilities are
+    // N1+ statistics, so they are bumped the first time a type is seen.
+    void countSentence(int[] words, int length) {
+        checkNotFinalized();
+        int curr = 0, prev = 0, prev2;
+        // Id of the bigram (prev, curr), the context of the next trigram
+        int context = 0, prevContext;
+        for (int i = 0; i < length; i++) {
+            prev2 = prev;
+            prev = curr;
+            curr = words[i];
+            prevContext = context;
+            if (curr >= unigramFertility.length) expandArrays(curr);
+            long keyPC = Counter.bigramKey(prev, curr);
+            if (i >= 2) {
+                long key3 = Counter.trigramKey(prevContext, curr);
+                if (trigrams.add(key3, 1)) {
+                    long key2P = Counter.bigramKey(prev2, prev);
+                    bigrams.incrementPostFertility(key2P);
+                    bigrams.incrementFertility(keyPC);
+                    sumFertility[prev] += 1;
                 }
-                if (i >= 1) {
-                    if (bigrams.getCount(keyPC) == 0) {
-                        // expandArray(unigramFertility, curr);
-                        unigramFertility[curr] += 1;
-                        // expandArray(unigramPostFertility, prev);
-                        unigramPostFertility[prev] += 1;
-                    }
-                    bigrams.incrementCount(keyPC);
+            }
+            if (i >= 1) {
+                if (bigrams.getCount(keyPC) == 0) {
+                    unigramFertility[curr] += 1;
+                    unigramPostFertility[prev] += 1;
                 }
-                // expandArray(unigrams, curr);
-                // unigrams[curr] += 1;
+                context = bigrams.incrementCount(keyPC);
             }
         }
-        System.out.println("Sentences: " + sent);
+    }
+
+    // Adds count occurrences of an already packed bigram, with the same
+    // first-seen bookkeeping as countSentence.
+    void addBigramCount(long key, int count) {
+        checkNotFinalized();
+        int word1 = (int)(key >>> 32);
+        int word2 = (int)(key & Counter.WORD_MASK);
+        expandArrays(Math.max(word1, word2));
+        if (bigrams.addCount(key, count)) {
+            unigramFertility[word2] += 1;
+            unigramPostFertility[word1] += 1;
+        }
+    }
+
+    // Adds count occurrences of the trigram (context, word3), where context
+    // is the packed bigram (word1, word2). The bigrams it is made of have to
+    // be counted as well, or the fertilities refer to nothing.
+    void addTrigramCount(long context, int word3, int count) {
+        checkNotFinalized();
+        int word2 = (int)(context & Counter.WORD_MASK);
+        expandArrays(Math.max(word2, word3));
+        int slot = bigrams.slotFor(context);
+        if (trigrams.add(Counter.trigramKey(bigrams.ids[slot], word3), count)) {
+            bigrams.incrementPostFertilityAt(slot);
+            bigrams.incrementFertility(Counter.bigramKey(word2, word3));
+            sumFertility[word2] += 1;
+        }
+    }
+
+    // Counts more sentences into the model in place. Every statistic is
+    // updated as if they had been part of the training data, so the model
+    // matches one rebuilt on the concatenated corpus (scores and counts; the
+    // internal ids differ). The new sentences are counted on their own first
+    // and returned as a delta model, which LmDelta can save and apply to
+    // other copies of the model through merge.
+    public LanguageModel addSentences(Iterable<List<String>> sentences) {
+        LanguageModel delta = new LanguageModel();
+        try {
+            delta.build(new IndexedSentences(sentences), 1);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        merge(delta);
+        return delta;
+    }
+
+    // Adds every count of delta, with the same first-seen bookkeeping as
+    // counting its sentences here. Modified discounts are kept: their N1 and
+    // N2 statistics are recounted afterwards. Slots move, so a model being
+    // merged into has handed out no scoreWord states: those need it frozen.
+    public void merge(LanguageModel delta) {
+        if (delta.bigrams.prunedCounts != null) throw new IllegalArgumentException("Can't merge a pruned model");
+        Discounts bigram = bigramDiscounts;
+        Discounts trigram = trigramDiscounts;
+        if (!frozen && !finalized && bigrams.prunedCounts == null) {
+            unigramSingletons = unigramDoubletons = null;
+            bigrams.singletons = bigrams.doubletons = null;
+        }
+        checkNotFinalized();
+        BigramCounter deltaBigrams = delta.bigrams;
+        for (int i = 0; i < deltaBigrams.keys.length; i++) {
+            if (deltaBigrams.keys[i] != Counter.EMPTY && deltaBigrams.counts[i] > 0)
+                addBigramCount(deltaBigrams.keys[i], deltaBigrams.counts[i]);
+        }
+        long[] contexts = deltaBigrams.keysById();
+        TrigramCounter deltaTrigrams = delta.trigrams;
+        for (int i = 0; i < deltaTrigrams.keys.length; i++) {
+            long key = deltaTrigrams.keys[i];
+            if (key != Counter.EMPTY)
+                addTrigramCount(contexts[(int)(key >>> 32)], (int)(key & Counter.WORD_MASK), deltaTrigrams.value(i));
+        }
+        setDiscounts(bigram, trigram);
     }
 
     static int max(int[] values) {
@@ -134,68 +510,535 @@ class LanguageModel implements NgramLanguageModel {
         return max;
     }
 
-    void expandArray(int[] array, int index) {
-        // skipped implementing because unnecessary for this training set
+    // Grows the unigram arrays to a power of two past word. The size only
+    // depends on the largest id, whatever order the ids come in.
+    void expandArrays(int word) {
+        if (word < unigramFertility.length) return;
+        int capacity = Integer.highestOneBit(word) << 1;
+        unigramFertility = Arrays.copyOf(unigramFertility, capacity);
+        unigramPostFertility = Arrays.copyOf(unigramPostFertility, capacity);
+        sumFertility = Arrays.copyOf(sumFertility, capacity);
+    }
+
+    static int unigram(int[] values, int word) {
+        return word < values.length ? values[word] : 0;
+    }
+
+    void checkNotFinalized() {
+        if (frozen) throw new IllegalStateException("Counts can't change once the model is frozen");
+        if (finalized) throw new IllegalStateException("Counts can't change once probabilities are finalized");
+        if (bigrams.prunedCounts != null) throw new IllegalStateException("Counts can't change once the model is pruned");
+        if (unigramSingletons != null || bigrams.singletons != null)
+            throw new IllegalStateException("Counts can't change once modified discounts are set");
+    }
+
+    // Sets the discounts of both levels. Only the scores change, the counts
+    // stay as they are, so discounts can be tuned on held-out data by
+    // setting and rescoring over and over. Non-uniform discounts need the
+    // number of extensions seen once and twice per context, which is counted
+    // here the first time; counting more sentences throws after that, until
+    // uniform discounts are set again. Pruning has to come first.
+    public void setDiscounts(Discounts bigram, Discounts trigram) {
+        if (frozen) throw new IllegalStateException("Discounts can't change once the model is frozen");
+        if (finalized) throw new IllegalStateException("Discounts can't change once probabilities are finalized");
+        if (bigram.isUniform()) {
+            unigramSingletons = unigramDoubletons = null;
+        } else if (unigramSingletons == null) {
+            int[] singletons = new int[unigramFertility.length];
+            int[] doubletons = new int[unigramFertility.length];
+            for (int i = 0; i < bigrams.keys.length; i++) {
+                if (bigrams.keys[i] == Counter.EMPTY) continue;
+                int word1 = (int)(bigrams.keys[i] >>> 32);
+                int fertility = bigrams.fertility(i);
+                if (fertility == 1) singletons[word1]++;
+                else if (fertility == 2) doubletons[word1]++;
+            }
+            unigramSingletons = singletons;
+            unigramDoubletons = doubletons;
+        }
+        if (trigram.isUniform()) {
+            bigrams.singletons = bigrams.doubletons = null;
+        } else if (bigrams.singletons == null) {
+            int[] slots = bigrams.slotsById();
+            int[] singletons = new int[bigrams.keys.length];
+            int[] doubletons = new int[bigrams.keys.length];
+            for (int i = 0; i < trigrams.keys.length; i++) {
+                if (trigrams.keys[i] == Counter.EMPTY) continue;
+                int contextSlot = slots[(int)(trigrams.keys[i] >>> 32)];
+                int count = trigrams.value(i);
+                if (count == 1) singletons[contextSlot]++;
+                else if (count == 2) doubletons[contextSlot]++;
+            }
+            bigrams.singletons = singletons;
+            bigrams.doubletons = doubletons;
+        }
+        bigramDiscounts = bigram;
+        trigramDiscounts = trigram;
+    }
+
+    // Chen and Goodman's estimates from the count-of-counts of each level
+    public Discounts estimateBigramDiscounts() {
+        long[] n = new long[5];
+        for (int i = 0; i < bigrams.keys.length; i++) {
+            if (bigrams.keys[i] == Counter.EMPTY) continue;
+            int fertility = bigrams.fertility(i);
+            if (fertility <= 4) n[fertility]++;
+        }
+        return Discounts.estimate(n);
+    }
+
+    public Discounts estimateTrigramDiscounts() {
+        long[] n = new long[5];
+        for (int i = 0; i < trigrams.keys.length; i++) {
+            if (trigrams.keys[i] == Counter.EMPTY) continue;
+            int count = trigrams.value(i);
+            if (count <= 4) n[count]++;
+        }
+        return Discounts.estimate(n);
+    }
+
+    // Turns the model into a read-only query model: counting, pruning and
+    // finalizing throw from now on. Scoring never writes anything (every
+    // lookup returns its values rather than leaving them in a field, and
+    // callers own ScoredWord and the batch arrays), so once frozen one
+    // instance can be scored from any number of threads without locks. Hand
+    // it to them through a happens-before edge such as starting the threads
+    // or submitting to an executor after freeze returns.
+    public LanguageModel freeze() {
+        frozen = true;
+        return this;
+    }
+
+    // Removes the trigrams with a count below minCount and, if
+    // entropyThreshold is positive, every trigram whose removal on its own
+    // costs less than that much relative entropy (Stolcke's criterion, see
+    // entropyLoss). All decisions are made against the unpruned model.
+    //
+    // The counts of removed trigrams are kept per context in
+    // bigrams.prunedCounts, so their discounted mass moves to the backoff and
+    // every context still sums to one; N1+(w1 w2 *) is recounted over the
+    // trigrams that are left. The continuation counts N1+(* w2 w3) of the
+    // bigram level still cover every trigram type seen in training, like the
+    // adjusted counts of ARPA pruning tools. Returns the number removed.
+    public int prune(int minCount, double entropyThreshold) {
+        checkNotFinalized();
+        long[] contexts = bigrams.keysById();
+        double total = 0;
+        for (int i = 0; i < bigrams.keys.length; i++) {
+            if (bigrams.keys[i] != Counter.EMPTY) total += bigrams.counts[i];
+        }
+
+        boolean[] drop = new boolean[trigrams.keys.length];
+        int dropped = 0;
+        for (int i = 0; i < trigrams.keys.length; i++) {
+            long key = trigrams.keys[i];
+            if (key == Counter.EMPTY) continue;
+            int count = trigrams.value(i);
+            drop[i] = count < minCount || (entropyThreshold > 0
+                    && entropyLoss(contexts[(int)(key >>> 32)], (int)(key & Counter.WORD_MASK), count, total)
+                            < entropyThreshold);
+            if (drop[i]) dropped++;
+        }
+        if (dropped == 0) return 0;
+
+        int[] prunedCounts = new int[bigrams.keys.length];
+        TrigramCounter kept = new TrigramCounter();
+        for (int i = 0; i < trigrams.keys.length; i++) {
+            long key = trigrams.keys[i];
+            if (key == Counter.EMPTY) continue;
+            if (!drop[i]) {
+                kept.add(key, trigrams.value(i));
+                continue;
+            }
+            int contextSlot = bigrams.slotOf(contexts[(int)(key >>> 32)]);
+            prunedCounts[contextSlot] += trigrams.value(i);
+            bigrams.decrementPostFertilityAt(contextSlot);
+        }
+        trigrams = kept;
+        bigrams.prunedCounts = prunedCounts;
+        return dropped;
+    }
+
+    // p(context) times the relative entropy between the model with and
+    // without the trigram (context, word3). Removing it moves its discounted
+    // mass delta to the backoff: with backoff weight b, p(word3 | context)
+    // goes from delta + b pB(word3) to (b + delta) pB(word3), and every other
+    // word v gains delta pB(v), which costs -delta (1 - pB(word3)) to first order.
+    double entropyLoss(long context, int word3, int count, double total) {
+        int denominator = bigrams.getCount(context);
+        if (denominator == 0) return 0;
+        int word2 = (int)(context & Counter.WORD_MASK);
+        double pBigram = bigramProbability(word2, word3, bigrams.slotOf(Counter.bigramKey(word2, word3)));
+        double backoff = trigramBackoff(context);
+        double delta = (count - trigramDiscounts.of(count)) / denominator;
+        double p = delta + backoff * pBigram;
+        double pruned = (backoff + delta) * pBigram;
+        return denominator / total * (p * Math.log(p / pruned) - delta * (1 - pBigram));
+    }
+
+    // Bakes the interpolated log-probability of every stored n-gram and the
+    // backoff weight of every context into the tables, ARPA style. Scoring is
+    // then one probe for a stored n-gram plus one per backoff step instead of
+    // redoing the interpolation. Values are kept as floats.
+    public void finalizeProbabilities() {
+        if (finalized) return;
+        if (frozen) throw new IllegalStateException("Probabilities can't be finalized once the model is frozen");
+        int[] ngram = new int[3];
+        unigramLogProbs = new float[unigramFertility.length];
+        unigramLogBackoffs = new float[unigramFertility.length];
+        for (int w = 0; w < unigramFertility.length; w++) {
+            unigramLogProbs[w] = (float)Math.log(unigramFertility[w] / (double)bigrams.bigramTypeCount);
+            unigramLogBackoffs[w] = (float)Math.log(bigramBackoff(w));
+        }
+
+        bigrams.logProbs = new float[bigrams.keys.length];
+        bigrams.logBackoffs = new float[bigrams.keys.length];
+        for (int i = 0; i < bigrams.keys.length; i++) {
+            long key = bigrams.keys[i];
+            if (key == Counter.EMPTY) continue;
+            ngram[0] = (int)(key >>> 32);
+            ngram[1] = (int)(key & Counter.WORD_MASK);
+            bigrams.logProbs[i] = (float)getNgramLogProbability(ngram, 0, 2);
+            bigrams.logBackoffs[i] = (float)Math.log(trigramBackoff(key));
+        }
+
+        long[] contexts = bigrams.keysById();
+        trigrams.logProbs = new float[trigrams.keys.length];
+        for (int i = 0; i < trigrams.keys.length; i++) {
+            long key = trigrams.keys[i];
+            if (key == Counter.EMPTY) continue;
+            long context = contexts[(int)(key >>> 32)];
+            ngram[0] = (int)(context >>> 32);
+            ngram[1] = (int)(context & Counter.WORD_MASK);
+            ngram[2] = (int)(key & Counter.WORD_MASK);
+            trigrams.logProbs[i] = (float)getNgramLogProbability(ngram, 0, 3);
+        }
+        finalized = true;
+    }
+
+    double finalizedLogProbability(int[] ngram, int from, int to) {
+        int order = to - from;
+        int word3 = ngram[to-1];
+        if (order == 1) {
+            if (LmMetrics.ENABLED) LmMetrics.queried(1, unigramBackoffDepth(word3));
+            return finalizedUnigram(word3);
+        }
+
+        int word2 = ngram[to-2];
+        if (order == 2) {
+            int bigramSlot = bigrams.slotOf(Counter.bigramKey(word2, word3));
+            if (LmMetrics.ENABLED) LmMetrics.queried(2, bigramBackoffDepth(bigramSlot, word3));
+            return finalizedBigram(word2, word3, bigramSlot);
+        }
+
+        int contextSlot = bigrams.slotOf(Counter.bigramKey(ngram[to-3], word2));
+        if (contextSlot >= 0) {
+            int slot = trigrams.slotOf(Counter.trigramKey(bigrams.ids[contextSlot], word3));
+            if (slot >= 0) {
+                if (LmMetrics.ENABLED) LmMetrics.queried(3, 0);
+                return trigrams.logProbs[slot];
+            }
+        }
+        int bigramSlot = bigrams.slotOf(Counter.bigramKey(word2, word3));
+        if (LmMetrics.ENABLED) LmMetrics.queried(3, 1 + bigramBackoffDepth(bigramSlot, word3));
+        return finalizedBackoff(contextSlot, finalizedBigram(word2, word3, bigramSlot));
+    }
+
+    double finalizedUnigram(int word3) {
+        return word3 < unigramLogProbs.length ? unigramLogProbs[word3] : Double.NEGATIVE_INFINITY;
+    }
+
+    // bigramSlot is the slot of (word2, word3), or -1
+    double finalizedBigram(int word2, int word3, int bigramSlot) {
+        double bigram = bigramSlot >= 0 ? bigrams.logProbs[bigramSlot]
+                : (word2 < unigramLogBackoffs.length ? unigramLogBackoffs[word2] : 0) + finalizedUnigram(word3);
+        return bigram == Double.NEGATIVE_INFINITY ? LOG_ZERO : bigram;
+    }
+
+    // Score of a trigram that isn't stored, given the slot of its context (or -1)
+    double finalizedBackoff(int contextSlot, double bigram) {
+        double trigram = contextSlot >= 0 ? bigrams.logBackoffs[contextSlot] + bigram : bigram;
+        return trigram == Double.NEGATIVE_INFINITY ? LOG_ZERO : trigram;
     }
 
     public double getNgramLogProbability(int[] ngram, int from, int to) {
-        final double D = 0.75d;
+        if (finalized) return finalizedLogProbability(ngram, from, to);
         int order = to - from;
         int word3 = ngram[to-1];
-        double pUnigram = (double)unigramFertility[word3];
-        pUnigram /= (double)(bigrams.bigramTypeCount);
 
         if (order == 1) {
+            if (LmMetrics.ENABLED) LmMetrics.queried(1, unigramBackoffDepth(word3));
+            double pUnigram = (double)unigram(unigramFertility, word3);
+            pUnigram /= (double)(bigrams.bigramTypeCount);
             assert pUnigram != 0 : logProbDump(Double.NEGATIVE_INFINITY, Arrays.copyOfRange(ngram, from, to));
             double ret = Math.log(pUnigram);
             assert !(Double.isNaN(ret) || Double.isInfinite(ret)) && ret <= 0 : ret;
             return ret;
         }
 
-
         int word2 = ngram[to-2];
-        long key = ((long)word2 << 19) + word3;
-        int fertility = bigrams.getFertility(key);
-        double pBigram = fertility == 0 ? 0 : fertility - D;
-        pBigram += D * unigramPostFertility[word2] * pUnigram;
-        fertility = sumFertility[word2];
-        if (fertility == 0) {
-            pBigram = 0;
-        } else {
-            pBigram /= (double)fertility;
-        }
-
-        if (pBigram == 0) pBigram = ZERO;
+        int bigramSlot = bigrams.slotOf(Counter.bigramKey(word2, word3));
+        double pBigram = bigramProbability(word2, word3, bigramSlot);
         if (order == 2) {
+            if (LmMetrics.ENABLED) LmMetrics.queried(2, bigramBackoffDepth(bigramSlot, word3));
             double ret = Math.log(pBigram);
             assert !(Double.isNaN(ret) || Double.isInfinite(ret)) && ret <= 0 : ret;
             return ret;
         }
 
+        int contextSlot = bigrams.slotOf(Counter.bigramKey(ngram[to-3], word2));
+        int count = contextSlot < 0 ? 0 : trigrams.get(Counter.trigramKey(bigrams.ids[contextSlot], word3));
+        if (LmMetrics.ENABLED) LmMetrics.queried(3, count > 0 ? 0 : 1 + bigramBackoffDepth(bigramSlot, word3));
+        double ret = countLogProbability(contextSlot, count, pBigram);
+        assert !(Double.isNaN(ret) || Double.isInfinite(ret)) && ret <= 0 : logProbDump(
+                ret, Arrays.copyOfRange(ngram, from, to)
+        );
+        return ret;
+    }
+
+    // Backoff steps of a query for word3 alone: 0 if the word is known, 1 if not
+    int unigramBackoffDepth(int word3) {
+        boolean known = finalized ? finalizedUnigram(word3) > Double.NEGATIVE_INFINITY
+                : unigram(unigramFertility, word3) > 0;
+        return known ? 0 : 1;
+    }
+
+    // Same for a bigram query: 0 if the bigram is stored (bigramSlot isn't
+    // -1), 1 if the query backs off to a known word3, 2 if word3 is unknown
+    int bigramBackoffDepth(int bigramSlot, int word3) {
+        return bigramSlot >= 0 ? 0 : 1 + unigramBackoffDepth(word3);
+    }
+
+    // Interpolated p(word3 | word2), never 0. bigramSlot is the slot of
+    // (word2, word3) or -1.
+    double bigramProbability(int word2, int word3, int bigramSlot) {
+        return continuationProbability(word2, word3, bigramSlot < 0 ? 0 : bigrams.fertility(bigramSlot));
+    }
+
+    // Same given N1+(* word2 word3)
+    double continuationProbability(int word2, int word3, int fertility) {
+        return continuationProbability(bigramDiscounts, fertility, bigramBackoffMass(word2),
+                unigram(unigramFertility, word3), bigrams.bigramTypeCount, unigram(sumFertility, word2));
+    }
+
+    // The bigram level of the formula from its raw statistics: the
+    // discounts, N1+(* word2 word3), the backoff mass of word2, N1+(* word3),
+    // the number of bigram types and N1+(* word2 *). Every copy of the model
+    // in another storage scores through this and interpolatedLogProbability,
+    // so the formula has one definition.
+    static double continuationProbability(Discounts discounts, int fertility, double backoffMass,
+                                          int unigramFertility, int bigramTypes, int sumFertility) {
+        double pUnigram = (double)unigramFertility;
+        pUnigram /= (double)bigramTypes;
+
+        double pBigram = discounts.discounted(fertility);
+        pBigram += backoffMass * pUnigram;
+        if (sumFertility == 0) {
+            pBigram = 0;
+        } else {
+            pBigram /= (double)sumFertility;
+        }
+
+        if (pBigram == 0) pBigram = ZERO;
+        return pBigram;
+    }
+
+    // Interpolated log p(word3 | word1 word2) for the context (word1, word2)
+    // whose slot is contextSlot, or -1 if it isn't stored.
+    double trigramLogProbability(int contextSlot, int word3, double pBigram) {
+        int count = contextSlot < 0 ? 0 : trigrams.get(Counter.trigramKey(bigrams.ids[contextSlot], word3));
+        return countLogProbability(contextSlot, count, pBigram);
+    }
 
-        int word1 = ngram[to-3];
-        key = ((long)word1 << 19) + word2; key <<= 19; key += word3;
-        int count = trigrams.get(key);
-        double pTrigram = count == 0 ? 0 : (double)(count) - D;
+    // Same given the count of the trigram
+    double countLogProbability(int contextSlot, int count, double pBigram) {
+        if (contextSlot < 0) return Math.log(pBigram);
+        return interpolatedLogProbability(count, trigramBackoffMass(contextSlot), bigrams.counts[contextSlot], pBigram);
+    }
 
-        key = 0; key += word1; key <<= 19; key += word2;
-        int fertility2 = bigrams.getPostFertility(key);
-        pTrigram += fertility2 == 0 ? 0 : D * fertility2 * pBigram;
+    // Same given the backoff mass and count of the context
+    double interpolatedLogProbability(int count, double backoffMass, int denominator, double pBigram) {
+        return interpolatedLogProbability(trigramDiscounts, count, backoffMass, denominator, pBigram);
+    }
 
-        int denominator = bigrams.lastCount;
+    // The trigram level from its raw statistics: the discounts, the count of
+    // the trigram, the backoff mass and count of the context and p(word3 | word2)
+    static double interpolatedLogProbability(Discounts discounts, int count, double backoffMass, int denominator,
+                                             double pBigram) {
         if (denominator == 0) {
             // TODO: Backoff to actual bigram and not fertility bigram
             return Math.log(pBigram);
-        } else {
-            pTrigram /= (double)denominator;
         }
+        double pTrigram = discounts.discounted(count) + backoffMass * pBigram;
+        pTrigram /= (double)denominator;
 
         if (pTrigram == 0) return LOG_ZERO;
-        double ret = Math.log(pTrigram);
-        assert !(Double.isNaN(ret) || Double.isInfinite(ret)) && ret <= 0 : logProbDump(
-                ret, Arrays.copyOfRange(ngram, from, to)
-        );
-        return ret;
+        return Math.log(pTrigram);
+    }
+
+    // Scores ngrams[i] (a whole array each) into out[i]. All keys and home
+    // slots are computed first and every table is then probed in one pass, so
+    // the loads of different queries are independent and can overlap instead
+    // of each call waiting on its own cache misses. Trigram keys need the id
+    // of their context, so the trigram pass comes after the bigram ones. With
+    // sortBySlot the probes of each table are issued in slot order.
+    public void getNgramLogProbabilities(int[][] ngrams, double[] out, boolean sortBySlot) {
+        int n = ngrams.length;
+        long[] bigramKeys = new long[n];
+        long[] contextKeys = new long[n];
+        long[] trigramKeys = new long[n];
+        int[] bigramSlots = new int[n];
+        int[] contextSlots = new int[n];
+        int[] trigramSlots = new int[n];
+        for (int i = 0; i < n; i++) {
+            int[] ngram = ngrams[i];
+            int to = ngram.length;
+            bigramSlots[i] = contextSlots[i] = trigramSlots[i] = -1;
+            if (to < 2) continue;
+            bigramKeys[i] = Counter.bigramKey(ngram[to-2], ngram[to-1]);
+            bigramSlots[i] = bigrams.homeSlot(bigramKeys[i]);
+            if (to < 3) continue;
+            contextKeys[i] = Counter.bigramKey(ngram[to-3], ngram[to-2]);
+            contextSlots[i] = bigrams.homeSlot(contextKeys[i]);
+        }
+        probe(bigrams, bigramKeys, bigramSlots, sortBySlot);
+        probe(bigrams, contextKeys, contextSlots, sortBySlot);
+        for (int i = 0; i < n; i++) {
+            if (contextSlots[i] < 0) continue;
+            int[] ngram = ngrams[i];
+            trigramKeys[i] = Counter.trigramKey(bigrams.ids[contextSlots[i]], ngram[ngram.length - 1]);
+            trigramSlots[i] = trigrams.homeSlot(trigramKeys[i]);
+        }
+        probe(trigrams, trigramKeys, trigramSlots, sortBySlot);
+
+        for (int i = 0; i < n; i++) {
+            int[] ngram = ngrams[i];
+            int to = ngram.length;
+            int word3 = ngram[to-1];
+            if (to == 1) {
+                out[i] = getNgramLogProbability(ngram, 0, 1);
+            } else if (finalized) {
+                if (to >= 3 && trigramSlots[i] >= 0) {
+                    out[i] = trigrams.logProbs[trigramSlots[i]];
+                    continue;
+                }
+                double bigram = finalizedBigram(ngram[to-2], word3, bigramSlots[i]);
+                out[i] = to == 2 ? bigram : finalizedBackoff(contextSlots[i], bigram);
+            } else {
+                double pBigram = bigramProbability(ngram[to-2], word3, bigramSlots[i]);
+                if (to == 2) {
+                    out[i] = Math.log(pBigram);
+                    continue;
+                }
+                int count = trigramSlots[i] < 0 ? 0 : trigrams.value(trigramSlots[i]);
+                out[i] = countLogProbability(contextSlots[i], count, pBigram);
+            }
+        }
+    }
+
+    // Turns the home slots of keys (-1 for no key) into their actual slots, -1 if absent.
+    static void probe(Counter counter, long[] keys, int[] slots, boolean sortBySlot) {
+        if (!sortBySlot) {
+            for (int i = 0; i < keys.length; i++) {
+                if (slots[i] >= 0) slots[i] = counter.slotFrom(keys[i], slots[i]);
+            }
+            return;
+        }
+        long[] order = new long[keys.length];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (slots[i] >= 0) order[n++] = ((long)slots[i] << 32) | i;
+        }
+        Arrays.sort(order, 0, n);
+        for (int j = 0; j < n; j++) {
+            int i = (int)order[j];
+            slots[i] = counter.slotFrom(keys[i], (int)(order[j] >>> 32));
+        }
+    }
+
+    public long startState() {
+        checkFrozen();
+        return wordState(startWord);
+    }
+
+    // States are slots, which counting can move, see StatefulLanguageModel
+    void checkFrozen() {
+        if (!frozen) throw new IllegalStateException("Scoring word by word needs a frozen model");
+    }
+
+    // States are the slot of the last two words in the bigram table, or
+    // -(word + 1) when only the last word is known or (word1, word2) isn't stored.
+    static long wordState(int word) {
+        return -(word + 1L);
+    }
+
+    public void scoreWord(long contextState, int word, ScoredWord result) {
+        checkFrozen();
+        int contextSlot;
+        int word2;
+        if (contextState >= 0) {
+            contextSlot = (int)contextState;
+            word2 = (int)(bigrams.keys[contextSlot] & Counter.WORD_MASK);
+        } else {
+            contextSlot = -1;
+            word2 = (int)(-contextState - 1);
+        }
+        int bigramSlot = bigrams.slotOf(Counter.bigramKey(word2, word));
+        result.state = bigramSlot >= 0 ? bigramSlot : wordState(word);
+
+        if (finalized) {
+            if (contextSlot >= 0) {
+                int slot = trigrams.slotOf(Counter.trigramKey(bigrams.ids[contextSlot], word));
+                if (slot >= 0) {
+                    result.logProbability = trigrams.logProbs[slot];
+                    return;
+                }
+            }
+            result.logProbability = finalizedBackoff(contextSlot, finalizedBigram(word2, word, bigramSlot));
+            return;
+        }
+
+        double pBigram = bigramProbability(word2, word, bigramSlot);
+        result.logProbability = contextSlot < 0 ? Math.log(pBigram)
+                : trigramLogProbability(contextSlot, word, pBigram);
+    }
+
+    // Weight of the unigram distribution when backing off from context word2,
+    // so an unseen bigram gets bigramBackoff(word2) * p(word3).
+    double bigramBackoff(int word2) {
+        int fertility = unigram(sumFertility, word2);
+        if (fertility == 0) return 0;
+        return bigramBackoffMass(word2) / (double)fertility;
+    }
+
+    // Same for the trigram context (word1, word2) packed as a bigram key. A
+    // context that was never seen backs off to the bigram entirely.
+    double trigramBackoff(long key) {
+        int denominator = bigrams.getCount(key);
+        if (denominator == 0) return 1;
+        return trigramBackoffMass(bigrams.slotOf(key)) / (double)denominator;
+    }
+
+    // Continuation count mass the discounts take from the extensions of word2
+    double bigramBackoffMass(int word2) {
+        if (unigramSingletons == null) return bigramDiscounts.backoffMass(unigram(unigramPostFertility, word2), 0, 0);
+        return bigramDiscounts.backoffMass(unigram(unigramPostFertility, word2),
+                unigram(unigramSingletons, word2), unigram(unigramDoubletons, word2));
+    }
+
+    // Count mass the discounts and pruning take from the extensions of the
+    // context at contextSlot
+    double trigramBackoffMass(int contextSlot) {
+        return trigramBackoffMass(trigramDiscounts, bigrams.postFertility(contextSlot),
+                bigrams.singletons == null ? 0 : bigrams.singletons[contextSlot],
+                bigrams.doubletons == null ? 0 : bigrams.doubletons[contextSlot],
+                bigrams.prunedCounts == null ? 0 : bigrams.prunedCounts[contextSlot]);
+    }
+
+    // Same from the raw statistics of the context: its N1+, N1 and N2
+    // extensions and the summed counts of its pruned trigrams
+    static double trigramBackoffMass(Discounts discounts, int types, int singletons, int doubletons, int pruned) {
+        return discounts.backoffMass(types, singletons, doubletons) + pruned;
     }
 
     String logProbDump(double logProb, int[] ngram) {
@@ -224,11 +1067,11 @@ class LanguageModel implements NgramLanguageModel {
         int val = 0;
         if (ngram.length > 3) return 0;
         if (ngram.length == 3) {
-            long key = ((long)ngram[0] << 19) + ngram[1]; key <<= 19; key += ngram[2];
-            val = trigrams.get(key);
+            int contextSlot = bigrams.slotOf(Counter.bigramKey(ngram[0], ngram[1]));
+            if (contextSlot >= 0) val = trigrams.get(Counter.trigramKey(bigrams.ids[contextSlot], ngram[2]));
         }
         if (ngram.length == 2) {
-            long key = ((long)ngram[0] << 19) + ngram[1];
+            long key = Counter.bigramKey(ngram[0], ngram[1]);
             val = bigrams.getCount(key);
         }
 //        if (ngram.length == 1) {
@@ -238,6 +1081,79 @@ class LanguageModel implements NgramLanguageModel {
     }
 }
 
+/**
+ * Modified Kneser-Ney discounts of one level: an n-gram seen once loses
+ * one, twice two and three or more times threePlus. With all three equal
+ * this is the plain interpolated Kneser-Ney the model started out with.
+ */
+class Discounts {
+
+    final double one;
+    final double two;
+    final double threePlus;
+
+    Discounts(double one, double two, double threePlus) {
+        if (one < 0 || one > 1 || two < 0 || two > 2 || threePlus < 0 || threePlus > 3)
+            throw new IllegalArgumentException("Discounts out of range: " + this.toString(one, two, threePlus));
+        this.one = one;
+        this.two = two;
+        this.threePlus = threePlus;
+    }
+
+    static Discounts uniform(double d) {
+        return new Discounts(d, d, d);
+    }
+
+    // Chen and Goodman (1998) from n[k], the number of n-grams seen k times
+    // for k = 1 to 4. Falls back to D where a count-of-count is missing.
+    static Discounts estimate(long[] n) {
+        if (n[1] == 0 || n[2] == 0 || n[3] == 0 || n[4] == 0) return uniform(LanguageModel.D);
+        double y = n[1] / (double)(n[1] + 2 * n[2]);
+        return new Discounts(clamp(1 - 2 * y * n[2] / n[1], 1),
+                clamp(2 - 3 * y * n[3] / n[2], 2),
+                clamp(3 - 4 * y * n[4] / n[3], 3));
+    }
+
+    private static double clamp(double d, double max) {
+        return Math.max(0, Math.min(max, d));
+    }
+
+    // Parses "one,two,threePlus"
+    static Discounts parse(String value) {
+        String[] fields = value.split(",");
+        if (fields.length != 3) throw new IllegalArgumentException("Expected three discounts: " + value);
+        return new Discounts(Double.parseDouble(fields[0].trim()), Double.parseDouble(fields[1].trim()),
+                Double.parseDouble(fields[2].trim()));
+    }
+
+    boolean isUniform() {
+        return one == two && two == threePlus;
+    }
+
+    double of(int count) {
+        return count >= 3 ? threePlus : (count == 2 ? two : one);
+    }
+
+    // count minus its discount, 0 for an unseen n-gram
+    double discounted(int count) {
+        return count == 0 ? 0 : count - of(count);
+    }
+
+    // Mass taken from a context with types extensions, singletons of them
+    // seen once and doubletons twice
+    double backoffMass(int types, int singletons, int doubletons) {
+        return threePlus * types + (one - threePlus) * singletons + (two - threePlus) * doubletons;
+    }
+
+    private String toString(double one, double two, double threePlus) {
+        return one + "," + two + "," + threePlus;
+    }
+
+    public String toString() {
+        return toString(one, two, threePlus);
+    }
+}
+
 // Following classes are based on Carrot Search Labs HPPC OpenHashMap
 // and some methods (such as rehash) are directly copied.
 abstract class Counter {
@@ -246,8 +1162,62 @@ abstract class Counter {
     public final static float loadFactor = 0.75f;
 
     public final static long EMPTY = 1 << 63;
+    // Bigram keys are (word1, word2) and trigram keys (id of the context
+    // bigram, word3), 32 bits each. Ids are below 2^31, so no key is EMPTY.
+    public final static long WORD_MASK = 0xffffffffL;
+    // A short column entry of SATURATED means the actual value is in the
+    // column's OverflowCounter, under the same key.
+    public final static int SATURATED = 0xffff;
     public long[] keys;
 
+    // Value of the short column entry at slot.
+    protected final int valueAt(short[] column, OverflowCounter overflow, int slot) {
+        int value = column[slot] & 0xffff;
+        return value == SATURATED ? overflow.get(keys[slot]) : value;
+    }
+
+    // Adds delta to the short column entry at slot, moving the entry to
+    // overflow once it no longer fits.
+    protected final void addAt(short[] column, OverflowCounter overflow, int slot, int delta) {
+        int value = column[slot] & 0xffff;
+        if (value == SATURATED) {
+            overflow.add(keys[slot], delta);
+        } else if (value + delta < SATURATED) {
+            column[slot] = (short)(value + delta);
+        } else {
+            column[slot] = (short)SATURATED;
+            overflow.add(keys[slot], value + delta);
+        }
+    }
+
+    public int homeSlot(long key) {
+        return rehash(key) & (keys.length - 1);
+    }
+
+    // Number of slots a lookup of key that stopped at slot looked at
+    protected final int probeLength(long key, int slot) {
+        return ((slot - homeSlot(key)) & (keys.length - 1)) + 1;
+    }
+
+    // Looks for key starting at its home slot, returns its slot or -1.
+    public int slotFrom(long key, int slot) {
+        final int mask = keys.length - 1;
+        while (keys[slot] != EMPTY) {
+            if (((key) == (keys[slot]))) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Smallest capacity that takes expected keys without growing
+    static int capacityFor(int expected) {
+        int capacity = DEFAULT_CAPACITY;
+        while (expected > (int)(capacity * loadFactor)) capacity <<= 1;
+        return capacity;
+    }
+
     protected int nextCapacity(int current) {
         assert current > 0 && Long.bitCount(current) == 1
                 : "Capacity must be a power of two.";
@@ -258,22 +1228,36 @@ abstract class Counter {
         return current << 1;
     }
 
+    static long bigramKey(int word1, int word2) {
+        return ((long)word1 << 32) | word2;
+    }
+
+    static long trigramKey(int context, int word3) {
+        return ((long)context << 32) | word3;
+    }
+
     static int rehash(long k) {
+        return (int)mix(k);
+    }
+
+    // MurmurHash3's 64 bit finalizer, of which rehash keeps the low bits
+    static long mix(long k) {
         k ^= k >>> 33;
         k *= 0xff51afd7ed558ccdL;
         k ^= k >>> 33;
         k *= 0xc4ceb9fe1a85ec53L;
         k ^= k >>> 33;
-        return (int)k;
+        return k;
     }
 
     abstract protected String valuesAsString(int index);
 
+    protected String keyAsString(long key) {
+        return keyToString(key);
+    }
+
     public static String keyToString(long key) {
-        final long mask = (1 << 19) - 1;
-        long R = key & mask; key >>= 19;
-        long M = key & mask; key >>= 19;
-        return (key & mask) + "_" + M + "_" + R;
+        return (key >>> 32) + "_" + (key & WORD_MASK);
     }
 
     public String toString() {
@@ -285,7 +1269,7 @@ abstract class Counter {
             if (keys[i] == EMPTY) continue;
             if (!first) buffer.append(", \n");
             long key = keys[i];
-            buffer.append(keyToString(key));
+            buffer.append(keyAsString(key));
             buffer.append(" => ");
             buffer.append(valuesAsString(i));
             first = false;
@@ -298,20 +1282,24 @@ abstract class Counter {
 class TrigramCounter extends Counter {
 
     public short[] values;
+    // Counts from SATURATED up, see Counter.addAt
+    public final OverflowCounter overflow = new OverflowCounter();
+    // Per slot, set by LanguageModel.finalizeProbabilities
+    public float[] logProbs;
     public int assigned;
     private int resizeThreshold;
-    private int lastSlot;
 
     public TrigramCounter() {
         allocateBuffers(DEFAULT_CAPACITY);
     }
 
-    public final void increment(long key) {
-        if (lastSlot >= 0) {
-            values[lastSlot] += 1;
-            return;
-        }
+    // Sized for expected keys, which go in without moving any slot
+    public TrigramCounter(int expected) {
+        allocateBuffers(capacityFor(expected));
+    }
 
+    // Adds delta to the count of key and returns whether the key is new.
+    public final boolean add(long key, int delta) {
         if (assigned >= resizeThreshold)
             expandAndRehash();
 
@@ -319,19 +1307,21 @@ class TrigramCounter extends Counter {
         int slot = rehash(key) & mask;
         while (keys[slot] != EMPTY) {
             if (((key) == (keys[slot]))) {
-                values[slot] += 1;
-                return;
+                addAt(values, overflow, slot, delta);
+                return false;
             }
             slot = (slot + 1) & mask;
         }
 
         assigned++;
         keys[slot] = key;
-        values[slot] = 1;
-        return;
+        values[slot] = 0;
+        addAt(values, overflow, slot, delta);
+        return true;
     }
 
     private void expandAndRehash() {
+        long begin = LmMetrics.ENABLED ? System.nanoTime() : 0;
         final long[] oldKeys = this.keys;
         final short[] oldValues = this.values;
 
@@ -354,8 +1344,7 @@ class TrigramCounter extends Counter {
                 values[slot] = value;
             }
         }
-
-        lastSlot = -1;
+        if (LmMetrics.ENABLED) LmMetrics.resized(LmMetrics.TRIGRAMS, System.nanoTime() - begin);
     }
 
     private void allocateBuffers(int capacity) {
@@ -371,29 +1360,36 @@ class TrigramCounter extends Counter {
         int slot = rehash(key) & mask;
         while (keys[slot] != EMPTY) {
             if (((key) == (keys[slot]))) {
-                return values[slot] & 0xffff;
+                if (LmMetrics.ENABLED) LmMetrics.probed(LmMetrics.TRIGRAMS, probeLength(key, slot));
+                return value(slot);
             }
             slot = (slot + 1) & mask;
         }
+        if (LmMetrics.ENABLED) LmMetrics.probed(LmMetrics.TRIGRAMS, probeLength(key, slot));
         return ((int) 0);
     }
 
-    public boolean containsKey(long key) {
+    public int slotOf(long key) {
         final int mask = keys.length - 1;
         int slot = rehash(key) & mask;
         while (keys[slot] != EMPTY) {
             if (((key) == (keys[slot]))) {
-                lastSlot = slot;
-                return true;
+                if (LmMetrics.ENABLED) LmMetrics.probed(LmMetrics.TRIGRAMS, probeLength(key, slot));
+                return slot;
             }
             slot = (slot + 1) & mask;
         }
-        lastSlot = -1;
-        return false;
+        if (LmMetrics.ENABLED) LmMetrics.probed(LmMetrics.TRIGRAMS, probeLength(key, slot));
+        return -1;
+    }
+
+    // Count of the trigram at slot
+    public final int value(int slot) {
+        return valueAt(values, overflow, slot);
     }
 
     protected String valuesAsString(int i) {
-        return Integer.toString(values[i] & 0xffff);
+        return Integer.toString(value(i));
     }
 
 }
@@ -401,21 +1397,43 @@ class TrigramCounter extends Counter {
 class BigramCounter extends Counter {
 
     public int[] counts;
+    // Dense id per bigram in insertion order. Unlike slots, ids don't move
+    // when the table grows, so trigram keys are built from them.
+    public int[] ids;
     public short[] fertilities;
     public short[] postFertilities;
+    // Fertilities from SATURATED up, see Counter.addAt
+    public final OverflowCounter fertilityOverflow = new OverflowCounter();
+    public final OverflowCounter postFertilityOverflow = new OverflowCounter();
+
+    // Per slot, set by LanguageModel.finalizeProbabilities
+    public float[] logProbs;
+    public float[] logBackoffs;
+    // Per slot, the summed counts of the trigrams LanguageModel.prune removed
+    // from this context. Null until then.
+    public int[] prunedCounts;
+    // Per slot, N1(w1 w2 *) and N2(w1 w2 *). Set by
+    // LanguageModel.setDiscounts, which stops insertions, so they never
+    // have to follow a rehash.
+    public int[] singletons;
+    public int[] doubletons;
 
     public int bigramTypeCount;
     public int assigned;
 
     private int resizeThreshold;
 
-    public int lastCount = 0;
-
     public BigramCounter() {
         allocateBuffers(DEFAULT_CAPACITY);
     }
 
-    public final void incrementCount(long key) {
+    // Sized for expected keys, which go in without moving any slot
+    public BigramCounter(int expected) {
+        allocateBuffers(capacityFor(expected));
+    }
+
+    // Counts one more occurrence of key and returns its id.
+    public final int incrementCount(long key) {
         if (assigned >= resizeThreshold)
             expandAndRehash();
 
@@ -425,17 +1443,64 @@ class BigramCounter extends Counter {
             if (((key) == (keys[slot]))) {
                 if (counts[slot] == 0) bigramTypeCount++;
                 counts[slot]++;
-                return;
+                return ids[slot];
             }
             slot = (slot + 1) & mask;
         }
 
         bigramTypeCount++;
-        assigned++;
+        ids[slot] = assigned++;
         keys[slot] = key;
         counts[slot] = 1;
         fertilities[slot] = 0;
         postFertilities[slot] = 0;
+        return ids[slot];
+    }
+
+    // Slot of key, which is inserted with all statistics 0 if it isn't in
+    // the table yet. The slot is valid until the next insertion.
+    public final int slotFor(long key) {
+        if (assigned >= resizeThreshold)
+            expandAndRehash();
+
+        final int mask = keys.length - 1;
+        int slot = rehash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (((key) == (keys[slot]))) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        ids[slot] = assigned++;
+        keys[slot] = key;
+        counts[slot] = 0;
+        fertilities[slot] = 0;
+        postFertilities[slot] = 0;
+        return slot;
+    }
+
+    // Adds delta to the count at slot and returns whether that made it a new
+    // bigram type.
+    public final boolean countAt(int slot, int delta) {
+        boolean isNew = counts[slot] == 0;
+        if (isNew) bigramTypeCount++;
+        counts[slot] += delta;
+        return isNew;
+    }
+
+    public final void incrementPostFertilityAt(int slot) {
+        addAt(postFertilities, postFertilityOverflow, slot, 1);
+    }
+
+    public final void decrementPostFertilityAt(int slot) {
+        addAt(postFertilities, postFertilityOverflow, slot, -1);
+    }
+
+    // Adds delta to the count of key and returns whether that made it a new
+    // bigram type, i.e. whether the count was zero before.
+    public final boolean addCount(long key, int delta) {
+        return countAt(slotFor(key), delta);
     }
 
     public final void incrementFertility(long key) {
@@ -446,13 +1511,13 @@ class BigramCounter extends Counter {
         int slot = rehash(key) & mask;
         while (keys[slot] != EMPTY) {
             if (((key) == (keys[slot]))) {
-                fertilities[slot] += 1;
+                addAt(fertilities, fertilityOverflow, slot, 1);
                 return;
             }
             slot = (slot + 1) & mask;
         }
 
-        assigned++;
+        ids[slot] = assigned++;
         keys[slot] = key;
         counts[slot] = 0;
         fertilities[slot] = 1;
@@ -467,13 +1532,13 @@ class BigramCounter extends Counter {
         int slot = rehash(key) & mask;
         while (keys[slot] != EMPTY) {
             if (((key) == (keys[slot]))) {
-                postFertilities[slot] += 1;
+                addAt(postFertilities, postFertilityOverflow, slot, 1);
                 return;
             }
             slot = (slot + 1) & mask;
         }
 
-        assigned++;
+        ids[slot] = assigned++;
         keys[slot] = key;
         counts[slot] = 0;
         fertilities[slot] = 0;
@@ -481,8 +1546,11 @@ class BigramCounter extends Counter {
     }
 
     private void expandAndRehash() {
+        long begin = LmMetrics.ENABLED ? System.nanoTime() : 0;
         final long[] oldKeys = this.keys;
         final int[] oldCounts = this.counts;
+        final int[] oldIds = this.ids;
+        final int[] oldPrunedCounts = this.prunedCounts;
         final short[] oldFertilities = this.fertilities;
         final short[] oldPostFertilities = this.postFertilities;
 
@@ -505,18 +1573,23 @@ class BigramCounter extends Counter {
 
                 keys[slot] = key;
                 counts[slot] = count;
+                ids[slot] = oldIds[i];
+                if (oldPrunedCounts != null) prunedCounts[slot] = oldPrunedCounts[i];
                 fertilities[slot] = fertility;
                 postFertilities[slot] = postFertility;
             }
         }
+        if (LmMetrics.ENABLED) LmMetrics.resized(LmMetrics.BIGRAMS, System.nanoTime() - begin);
     }
 
     private void allocateBuffers(int capacity) {
         this.keys = new long[capacity];
         Arrays.fill(this.keys, EMPTY);
         this.counts = new int[capacity];
+        this.ids = new int[capacity];
         this.fertilities = new short[capacity];
         this.postFertilities = new short[capacity];
+        if (this.prunedCounts != null) this.prunedCounts = new int[capacity];
 
         this.resizeThreshold = (int) (capacity * loadFactor);
     }
@@ -532,12 +1605,25 @@ class BigramCounter extends Counter {
         }
         return ((int) 0);
     }
+    public int slotOf(long key) {
+        final int mask = keys.length - 1;
+        int slot = rehash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (((key) == (keys[slot]))) {
+                if (LmMetrics.ENABLED) LmMetrics.probed(LmMetrics.BIGRAMS, probeLength(key, slot));
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (LmMetrics.ENABLED) LmMetrics.probed(LmMetrics.BIGRAMS, probeLength(key, slot));
+        return -1;
+    }
     public int getFertility(long key) {
         final int mask = keys.length - 1;
         int slot = rehash(key) & mask;
         while (keys[slot] != EMPTY) {
             if (((key) == (keys[slot]))) {
-                return fertilities[slot] & 0xffff;
+                return fertility(slot);
             }
             slot = (slot + 1) & mask;
         }
@@ -548,18 +1634,123 @@ class BigramCounter extends Counter {
         int slot = rehash(key) & mask;
         while (keys[slot] != EMPTY) {
             if (((key) == (keys[slot]))) {
-                lastCount = counts[slot];
-                return postFertilities[slot] & 0xffff;
+                return postFertility(slot);
             }
             slot = (slot + 1) & mask;
         }
-        lastCount = 0;
         return ((int) 0);
     }
 
+    // Key of every bigram, indexed by id
+    public long[] keysById() {
+        long[] byId = new long[assigned];
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) byId[ids[i]] = keys[i];
+        }
+        return byId;
+    }
+
+    // Slot of every bigram, indexed by id
+    public int[] slotsById() {
+        int[] byId = new int[assigned];
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) byId[ids[i]] = i;
+        }
+        return byId;
+    }
+
+    // N1+(* w1 w2) of the bigram at slot
+    public final int fertility(int slot) {
+        return valueAt(fertilities, fertilityOverflow, slot);
+    }
+
+    // N1+(w1 w2 *) of the bigram at slot
+    public final int postFertility(int slot) {
+        return valueAt(postFertilities, postFertilityOverflow, slot);
+    }
+
     protected String valuesAsString(int i) {
         return (counts[i]) + ", "
-                + (fertilities[i] & 0xffff) + ", "
-                + (postFertilities[i] & 0xffff);
+                + fertility(i) + ", "
+                + postFertility(i);
+    }
+}
+
+/**
+ * Int values for the few keys whose short column entry is SATURATED. Only the
+ * heavy hitters end up here, so the table stays tiny and the common case
+ * reads nothing but the short column.
+ */
+class OverflowCounter extends Counter {
+
+    public int[] values;
+    public int assigned;
+    private int resizeThreshold;
+
+    public OverflowCounter() {
+        allocateBuffers(MIN_CAPACITY);
+    }
+
+    public final void add(long key, int delta) {
+        if (assigned >= resizeThreshold)
+            expandAndRehash();
+
+        final int mask = keys.length - 1;
+        int slot = rehash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (((key) == (keys[slot]))) {
+                values[slot] += delta;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        assigned++;
+        keys[slot] = key;
+        values[slot] = delta;
+    }
+
+    public int get(long key) {
+        final int mask = keys.length - 1;
+        int slot = rehash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (((key) == (keys[slot]))) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return ((int) 0);
+    }
+
+    private void expandAndRehash() {
+        final long[] oldKeys = this.keys;
+        final int[] oldValues = this.values;
+
+        assert assigned >= resizeThreshold;
+        allocateBuffers(nextCapacity(keys.length));
+
+        final int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = rehash(oldKeys[i]) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocateBuffers(int capacity) {
+        this.keys = new long[capacity];
+        Arrays.fill(this.keys, EMPTY);
+        this.values = new int[capacity];
+
+        this.resizeThreshold = (int) (capacity * loadFactor);
+    }
+
+    protected String valuesAsString(int i) {
+        return Integer.toString(values[i]);
     }
 }
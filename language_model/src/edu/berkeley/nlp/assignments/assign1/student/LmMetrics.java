@@ -0,0 +1,280 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Opt-in counters for the hot path of LanguageModel, on with
+ * -Dlm.metrics=true:
+ *
+ *   probe lengths of every BigramCounter and TrigramCounter lookup, as a
+ *   histogram with their mean and maximum
+ *   resizes of either table and the time spent rehashing
+ *   load of the tables of the watched model
+ *   queries by order and backoff depth, 0 being a hit on the whole n-gram
+ *
+ * ENABLED is a static final, so with metrics off the JIT drops every
+ * "if (LmMetrics.ENABLED)" in the tables and the model, and they cost
+ * nothing. With metrics on, every thread counts into its own ThreadMetrics,
+ * like CachingLanguageModel's caches, so scoring threads don't contend.
+ * Those of threads that have ended are folded into one sum the next time a
+ * thread registers or the metrics are read, so pools that come and go don't
+ * pile up entries.
+ *
+ * watch publishes the metrics as an LmMetricsMBean under NAME, and with
+ * -Dlm.metricsInterval=<seconds> also prints the report every that many
+ * seconds. Only the heap tables of LanguageModel are instrumented, not the
+ * mapped, compact or interleaved copies.
+ */
+class LmMetrics implements LmMetricsMBean {
+
+    static final boolean ENABLED = Boolean.getBoolean("lm.metrics");
+    static final String NAME = "edu.berkeley.nlp.assignments.assign1.student:type=LmMetrics";
+
+    static final int BIGRAMS = 0;
+    static final int TRIGRAMS = 1;
+    // Probe lengths 1 to PROBE_BUCKETS - 1 get a bucket each, longer ones share the last
+    static final int PROBE_BUCKETS = 16;
+
+    static final LmMetrics INSTANCE = new LmMetrics();
+
+    // Metrics of the live threads; those of threads that are gone are
+    // folded into retired, so the list doesn't grow with thread churn
+    static final List<ThreadMetrics> threads = new ArrayList<ThreadMetrics>();
+    static final ThreadMetrics retired = new ThreadMetrics(null);
+    static final ThreadLocal<ThreadMetrics> current = new ThreadLocal<ThreadMetrics>() {
+        protected ThreadMetrics initialValue() {
+            ThreadMetrics metrics = new ThreadMetrics(Thread.currentThread());
+            synchronized (threads) {
+                retireDeadThreads();
+                threads.add(metrics);
+            }
+            return metrics;
+        }
+    };
+    // Resizes happen while counting, rarely enough to share these
+    static final AtomicLongArray resizes = new AtomicLongArray(2);
+    static final AtomicLongArray resizeNanos = new AtomicLongArray(2);
+
+    static volatile LanguageModel model;
+    static boolean published;
+
+    static void probed(int table, int length) {
+        ThreadMetrics metrics = current.get();
+        metrics.probes[table][Math.min(length, PROBE_BUCKETS) - 1]++;
+        metrics.probeSums[table] += length;
+        if (length > metrics.maxProbes[table]) metrics.maxProbes[table] = length;
+    }
+
+    static void queried(int order, int depth) {
+        current.get().queries[order][depth]++;
+    }
+
+    static void resized(int table, long nanos) {
+        resizes.incrementAndGet(table);
+        resizeNanos.addAndGet(table, nanos);
+    }
+
+    // Reports the load of lm from now on, and publishes the metrics the
+    // first time.
+    static synchronized void watch(LanguageModel lm) {
+        model = lm;
+        if (published) return;
+        published = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(NAME));
+        } catch (JMException e) {
+            System.out.println("Could not register " + NAME + ": " + e);
+        }
+        long interval = 1000L * Integer.getInteger("lm.metricsInterval", 0);
+        if (interval > 0) {
+            new Timer("lm-metrics", true).scheduleAtFixedRate(new TimerTask() {
+                public void run() {
+                    System.out.print(INSTANCE.getReport());
+                }
+            }, interval, interval);
+        }
+    }
+
+    // Moves the counts of threads that have terminated into retired. A
+    // thread found dead by isAlive has made all its writes visible.
+    // Callers hold the lock on threads.
+    private static void retireDeadThreads() {
+        for (Iterator<ThreadMetrics> it = threads.iterator(); it.hasNext();) {
+            ThreadMetrics metrics = it.next();
+            if (metrics.owner.isAlive()) continue;
+            metrics.addTo(retired);
+            it.remove();
+        }
+    }
+
+    // Sums over every thread, taken without stopping the counting threads,
+    // so they are exact only once those are done.
+    private static ThreadMetrics total() {
+        ThreadMetrics total = new ThreadMetrics(null);
+        synchronized (threads) {
+            retireDeadThreads();
+            retired.addTo(total);
+            for (ThreadMetrics metrics : threads) metrics.addTo(total);
+        }
+        return total;
+    }
+
+    private static double meanProbes(ThreadMetrics total, int table) {
+        long lookups = 0;
+        for (long count : total.probes[table]) lookups += count;
+        return lookups == 0 ? 0 : total.probeSums[table] / (double)lookups;
+    }
+
+    public double getBigramLoad() {
+        LanguageModel lm = model;
+        return lm == null ? 0 : lm.bigrams.assigned / (double)lm.bigrams.keys.length;
+    }
+
+    public double getTrigramLoad() {
+        LanguageModel lm = model;
+        // The fingerprint storage drops the trigram counter
+        return lm == null || lm.trigrams == null ? 0 : lm.trigrams.assigned / (double)lm.trigrams.keys.length;
+    }
+
+    public long getBigramResizes() {
+        return resizes.get(BIGRAMS);
+    }
+
+    public long getTrigramResizes() {
+        return resizes.get(TRIGRAMS);
+    }
+
+    public long getBigramResizeMillis() {
+        return resizeNanos.get(BIGRAMS) / 1000000;
+    }
+
+    public long getTrigramResizeMillis() {
+        return resizeNanos.get(TRIGRAMS) / 1000000;
+    }
+
+    public double getBigramMeanProbes() {
+        return meanProbes(total(), BIGRAMS);
+    }
+
+    public double getTrigramMeanProbes() {
+        return meanProbes(total(), TRIGRAMS);
+    }
+
+    public long getBigramMaxProbes() {
+        return total().maxProbes[BIGRAMS];
+    }
+
+    public long getTrigramMaxProbes() {
+        return total().maxProbes[TRIGRAMS];
+    }
+
+    public long[] getBigramProbeHistogram() {
+        return total().probes[BIGRAMS];
+    }
+
+    public long[] getTrigramProbeHistogram() {
+        return total().probes[TRIGRAMS];
+    }
+
+    public long[] getUnigramQueries() {
+        return Arrays.copyOf(total().queries[1], 2);
+    }
+
+    public long[] getBigramQueries() {
+        return Arrays.copyOf(total().queries[2], 3);
+    }
+
+    public long[] getTrigramQueries() {
+        return Arrays.copyOf(total().queries[3], 4);
+    }
+
+    // Counts racing with reset may survive it
+    public void reset() {
+        synchronized (threads) {
+            retireDeadThreads();
+            retired.clear();
+            for (ThreadMetrics metrics : threads) metrics.clear();
+        }
+        for (int table = BIGRAMS; table <= TRIGRAMS; table++) {
+            resizes.set(table, 0);
+            resizeNanos.set(table, 0);
+        }
+    }
+
+    public String getReport() {
+        ThreadMetrics total = total();
+        StringBuilder out = new StringBuilder("LanguageModel metrics:\n");
+        String[] tables = { "bigrams", "trigrams" };
+        double[] loads = { getBigramLoad(), getTrigramLoad() };
+        for (int table = BIGRAMS; table <= TRIGRAMS; table++) {
+            long[] histogram = total.probes[table];
+            long lookups = 0;
+            for (long count : histogram) lookups += count;
+            out.append(String.format("  %s: load %.3f, %d resizes in %dms, %d lookups, %.3f probes on average, %d at most%n",
+                    tables[table], loads[table], resizes.get(table), resizeNanos.get(table) / 1000000,
+                    lookups, meanProbes(total, table), total.maxProbes[table]));
+            out.append("    probes:");
+            for (int i = 0; i < PROBE_BUCKETS; i++) {
+                if (histogram[i] > 0) out.append(' ').append(i + 1).append(i == PROBE_BUCKETS - 1 ? "+" : "")
+                        .append(':').append(histogram[i]);
+            }
+            out.append('\n');
+        }
+        String[] orders = { null, "unigram", "bigram", "trigram" };
+        for (int order = 1; order <= 3; order++) {
+            long[] byDepth = total.queries[order];
+            long queries = 0;
+            for (long count : byDepth) queries += count;
+            out.append(String.format("  %s queries: %d, hit rate %.3f, by backoff depth",
+                    orders[order], queries, queries == 0 ? 0 : byDepth[0] / (double)queries));
+            for (int depth = 0; depth <= order; depth++) out.append(' ').append(depth).append(':').append(byDepth[depth]);
+            out.append('\n');
+        }
+        return out.toString();
+    }
+}
+
+/**
+ * One thread's counters, see LmMetrics.
+ */
+class ThreadMetrics {
+
+    // The thread counting into these, null for sums
+    final Thread owner;
+    // Per table: lookups by probe length, the summed and the longest length
+    final long[][] probes = new long[2][LmMetrics.PROBE_BUCKETS];
+    final long[] probeSums = new long[2];
+    final long[] maxProbes = new long[2];
+    // Per order 1 to 3: queries by backoff depth, up to the order itself for
+    // an unknown word
+    final long[][] queries = new long[4][4];
+
+    ThreadMetrics(Thread owner) {
+        this.owner = owner;
+    }
+
+    // Adds these counts to total's
+    void addTo(ThreadMetrics total) {
+        for (int table = 0; table < probes.length; table++) {
+            for (int i = 0; i < probes[table].length; i++) total.probes[table][i] += probes[table][i];
+            total.probeSums[table] += probeSums[table];
+            total.maxProbes[table] = Math.max(total.maxProbes[table], maxProbes[table]);
+        }
+        for (int order = 0; order < queries.length; order++) {
+            for (int depth = 0; depth < queries[order].length; depth++)
+                total.queries[order][depth] += queries[order][depth];
+        }
+    }
+
+    void clear() {
+        for (long[] histogram : probes) Arrays.fill(histogram, 0);
+        Arrays.fill(probeSums, 0);
+        Arrays.fill(maxProbes, 0);
+        for (long[] byDepth : queries) Arrays.fill(byDepth, 0);
+    }
+}
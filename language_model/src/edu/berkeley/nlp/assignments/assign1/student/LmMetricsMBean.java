@@ -0,0 +1,43 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+/**
+ * What LmMetrics shows over JMX, under LmMetrics.NAME. Probe histograms
+ * count lookups by the number of slots they looked at, 1 up; query counts
+ * are by backoff depth, 0 (the whole n-gram is stored) up.
+ */
+public interface LmMetricsMBean {
+
+    double getBigramLoad();
+
+    double getTrigramLoad();
+
+    long getBigramResizes();
+
+    long getTrigramResizes();
+
+    long getBigramResizeMillis();
+
+    long getTrigramResizeMillis();
+
+    double getBigramMeanProbes();
+
+    double getTrigramMeanProbes();
+
+    long getBigramMaxProbes();
+
+    long getTrigramMaxProbes();
+
+    long[] getBigramProbeHistogram();
+
+    long[] getTrigramProbeHistogram();
+
+    long[] getUnigramQueries();
+
+    long[] getBigramQueries();
+
+    long[] getTrigramQueries();
+
+    String getReport();
+
+    void reset();
+}
@@ -0,0 +1,427 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Versioned binary image of a trained LanguageModel. The hash tables are
+ * written slot for slot, so loading is just mapping the file: no rehashing
+ * and no copying onto the heap.
+ *
+ * Layout (big-endian): a fixed size header followed by the sections below,
+ * widest element type first so every section stays naturally aligned.
+ *
+ *   bigram and trigram discounts        double[6], D1, D2 and D3+ each
+ *   trigram keys, bigram keys           long[capacity]
+ *   bigram counts and ids               int[capacity]
+ *   pruned counts, if the model is
+ *   pruned (see FLAG_PRUNED)            int[capacity]
+ *   N1 and N2 per context, with
+ *   FLAG_TRIGRAM_DISCOUNTS              int[capacity]
+ *   unigram fertility, post fertility
+ *   and sum fertility                   int[vocabulary]
+ *   N1 and N2 per word, with
+ *   FLAG_BIGRAM_DISCOUNTS               int[vocabulary]
+ *   trigram values, bigram fertilities
+ *   and post fertilities                short[capacity]
+ *   their overflow entries              int n, then (long key, int value) n times,
+ *                                       for each of the three short columns
+ *   vocabulary                          int length, then (int, UTF-8 bytes) per word
+ */
+class LmBinaryFormat {
+
+    static final int MAGIC = 0x4b4e4c4d; // "KNLM"
+    static final int VERSION = 5;
+    static final int FLAG_PRUNED = 1;
+    // Set when the discounts of that level aren't uniform, see LanguageModel.setDiscounts
+    static final int FLAG_BIGRAM_DISCOUNTS = 2;
+    static final int FLAG_TRIGRAM_DISCOUNTS = 4;
+    static final int HEADER_BYTES = 64;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static void write(LanguageModel lm, File file) throws IOException {
+        StringIndexer indexer = EnglishWordIndexer.getIndexer();
+        int vocabulary = Math.min(indexer.size(), lm.unigramFertility.length);
+        TrigramCounter trigrams = lm.trigrams;
+        BigramCounter bigrams = lm.bigrams;
+
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(vocabulary);
+            out.writeInt(bigrams.bigramTypeCount);
+            out.writeInt(trigrams.keys.length);
+            out.writeInt(trigrams.assigned);
+            out.writeInt(bigrams.keys.length);
+            out.writeInt(bigrams.assigned);
+            out.writeInt((bigrams.prunedCounts != null ? FLAG_PRUNED : 0)
+                    | (lm.unigramSingletons != null ? FLAG_BIGRAM_DISCOUNTS : 0)
+                    | (bigrams.singletons != null ? FLAG_TRIGRAM_DISCOUNTS : 0));
+            for (int i = 36; i < HEADER_BYTES; i++) out.writeByte(0);
+
+            for (Discounts discounts : new Discounts[] { lm.bigramDiscounts, lm.trigramDiscounts }) {
+                out.writeDouble(discounts.one);
+                out.writeDouble(discounts.two);
+                out.writeDouble(discounts.threePlus);
+            }
+            for (long key : trigrams.keys) out.writeLong(key);
+            for (long key : bigrams.keys) out.writeLong(key);
+            for (int count : bigrams.counts) out.writeInt(count);
+            for (int id : bigrams.ids) out.writeInt(id);
+            if (bigrams.prunedCounts != null) {
+                for (int count : bigrams.prunedCounts) out.writeInt(count);
+            }
+            if (bigrams.singletons != null) {
+                for (int n : bigrams.singletons) out.writeInt(n);
+                for (int n : bigrams.doubletons) out.writeInt(n);
+            }
+            for (int i = 0; i < vocabulary; i++) out.writeInt(lm.unigramFertility[i]);
+            for (int i = 0; i < vocabulary; i++) out.writeInt(lm.unigramPostFertility[i]);
+            for (int i = 0; i < vocabulary; i++) out.writeInt(lm.sumFertility[i]);
+            if (lm.unigramSingletons != null) {
+                for (int i = 0; i < vocabulary; i++) out.writeInt(lm.unigramSingletons[i]);
+                for (int i = 0; i < vocabulary; i++) out.writeInt(lm.unigramDoubletons[i]);
+            }
+            for (short value : trigrams.values) out.writeShort(value);
+            for (short fertility : bigrams.fertilities) out.writeShort(fertility);
+            for (short fertility : bigrams.postFertilities) out.writeShort(fertility);
+            writeOverflow(out, trigrams.overflow);
+            writeOverflow(out, bigrams.fertilityOverflow);
+            writeOverflow(out, bigrams.postFertilityOverflow);
+
+            out.writeInt(indexer.size());
+            for (int i = 0; i < indexer.size(); i++) {
+                byte[] bytes = indexer.get(i).getBytes(UTF8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeOverflow(DataOutputStream out, OverflowCounter overflow) throws IOException {
+        out.writeInt(overflow.assigned);
+        for (int i = 0; i < overflow.keys.length; i++) {
+            if (overflow.keys[i] == Counter.EMPTY) continue;
+            out.writeLong(overflow.keys[i]);
+            out.writeInt(overflow.values[i]);
+        }
+    }
+
+    private static OverflowCounter readOverflow(ByteBuffer in) {
+        OverflowCounter overflow = new OverflowCounter();
+        int size = in.getInt();
+        for (int i = 0; i < size; i++) {
+            long key = in.getLong();
+            overflow.add(key, in.getInt());
+        }
+        return overflow;
+    }
+
+    public static MappedLanguageModel map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if (header.getInt() != MAGIC)
+                throw new IOException(file + " is not a binary language model");
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException(file + " has format version " + version + ", expected " + VERSION);
+            MappedLanguageModel lm = new MappedLanguageModel();
+            int vocabulary = header.getInt();
+            lm.bigramTypeCount = header.getInt();
+            int trigramCapacity = header.getInt();
+            header.getInt();
+            int bigramCapacity = header.getInt();
+            header.getInt();
+            int flags = header.getInt();
+
+            long offset = HEADER_BYTES;
+            ByteBuffer discounts = section(channel, offset, 6 * 8);
+            lm.bigramDiscounts = new Discounts(discounts.getDouble(), discounts.getDouble(), discounts.getDouble());
+            lm.trigramDiscounts = new Discounts(discounts.getDouble(), discounts.getDouble(), discounts.getDouble());
+            offset += 6 * 8;
+            lm.trigramKeys = section(channel, offset, 8L * trigramCapacity).asLongBuffer();
+            offset += 8L * trigramCapacity;
+            lm.bigramKeys = section(channel, offset, 8L * bigramCapacity).asLongBuffer();
+            offset += 8L * bigramCapacity;
+            lm.bigramCounts = section(channel, offset, 4L * bigramCapacity).asIntBuffer();
+            offset += 4L * bigramCapacity;
+            lm.bigramIds = section(channel, offset, 4L * bigramCapacity).asIntBuffer();
+            offset += 4L * bigramCapacity;
+            if ((flags & FLAG_PRUNED) != 0) {
+                lm.bigramPrunedCounts = section(channel, offset, 4L * bigramCapacity).asIntBuffer();
+                offset += 4L * bigramCapacity;
+            }
+            if ((flags & FLAG_TRIGRAM_DISCOUNTS) != 0) {
+                lm.bigramSingletons = section(channel, offset, 4L * bigramCapacity).asIntBuffer();
+                offset += 4L * bigramCapacity;
+                lm.bigramDoubletons = section(channel, offset, 4L * bigramCapacity).asIntBuffer();
+                offset += 4L * bigramCapacity;
+            }
+            lm.unigramFertility = section(channel, offset, 4L * vocabulary).asIntBuffer();
+            offset += 4L * vocabulary;
+            lm.unigramPostFertility = section(channel, offset, 4L * vocabulary).asIntBuffer();
+            offset += 4L * vocabulary;
+            lm.sumFertility = section(channel, offset, 4L * vocabulary).asIntBuffer();
+            offset += 4L * vocabulary;
+            if ((flags & FLAG_BIGRAM_DISCOUNTS) != 0) {
+                lm.unigramSingletons = section(channel, offset, 4L * vocabulary).asIntBuffer();
+                offset += 4L * vocabulary;
+                lm.unigramDoubletons = section(channel, offset, 4L * vocabulary).asIntBuffer();
+                offset += 4L * vocabulary;
+            }
+            lm.trigramValues = section(channel, offset, 2L * trigramCapacity).asShortBuffer();
+            offset += 2L * trigramCapacity;
+            lm.bigramFertilities = section(channel, offset, 2L * bigramCapacity).asShortBuffer();
+            offset += 2L * bigramCapacity;
+            lm.bigramPostFertilities = section(channel, offset, 2L * bigramCapacity).asShortBuffer();
+            offset += 2L * bigramCapacity;
+
+            // The overflow entries are few, they go back into heap tables
+            ByteBuffer words = section(channel, offset, channel.size() - offset);
+            lm.trigramOverflow = readOverflow(words);
+            lm.fertilityOverflow = readOverflow(words);
+            lm.postFertilityOverflow = readOverflow(words);
+
+            // Word ids are baked into every key, so the indexer has to hand out
+            // exactly the ids the model was trained with.
+            StringIndexer indexer = EnglishWordIndexer.getIndexer();
+            int size = words.getInt();
+            for (int i = 0; i < size; i++) {
+                byte[] bytes = new byte[words.getInt()];
+                words.get(bytes);
+                String word = new String(bytes, UTF8);
+                if (indexer.addAndGetIndex(word) != i)
+                    throw new IllegalStateException("Word ids in " + file
+                            + " don't match EnglishWordIndexer at \"" + word + "\"");
+            }
+            lm.vocabulary = vocabulary;
+            lm.trigramMask = trigramCapacity - 1;
+            lm.bigramMask = bigramCapacity - 1;
+            return lm;
+        } finally {
+            // Mappings stay valid after the channel is closed.
+            raf.close();
+        }
+    }
+
+    // The same tables as map(file) would give after write(lm, file), copied
+    // into direct buffers instead: nothing but small objects stays on the
+    // garbage collected heap. The overflow tables, which are tiny, are
+    // shared with lm, which is frozen.
+    public static MappedLanguageModel copyOffHeap(LanguageModel lm) {
+        int vocabulary = Math.min(EnglishWordIndexer.getIndexer().size(), lm.unigramFertility.length);
+        lm.freeze();
+        TrigramCounter trigrams = lm.trigrams;
+        BigramCounter bigrams = lm.bigrams;
+        MappedLanguageModel copy = new MappedLanguageModel();
+        copy.vocabulary = vocabulary;
+        copy.bigramTypeCount = bigrams.bigramTypeCount;
+        copy.bigramDiscounts = lm.bigramDiscounts;
+        copy.trigramDiscounts = lm.trigramDiscounts;
+        copy.trigramKeys = offHeap(trigrams.keys);
+        copy.bigramKeys = offHeap(bigrams.keys);
+        copy.bigramCounts = offHeap(bigrams.counts, bigrams.counts.length);
+        copy.bigramIds = offHeap(bigrams.ids, bigrams.ids.length);
+        if (bigrams.prunedCounts != null) copy.bigramPrunedCounts = offHeap(bigrams.prunedCounts, bigrams.prunedCounts.length);
+        if (bigrams.singletons != null) {
+            copy.bigramSingletons = offHeap(bigrams.singletons, bigrams.singletons.length);
+            copy.bigramDoubletons = offHeap(bigrams.doubletons, bigrams.doubletons.length);
+        }
+        copy.unigramFertility = offHeap(lm.unigramFertility, vocabulary);
+        copy.unigramPostFertility = offHeap(lm.unigramPostFertility, vocabulary);
+        copy.sumFertility = offHeap(lm.sumFertility, vocabulary);
+        if (lm.unigramSingletons != null) {
+            copy.unigramSingletons = offHeap(lm.unigramSingletons, vocabulary);
+            copy.unigramDoubletons = offHeap(lm.unigramDoubletons, vocabulary);
+        }
+        copy.trigramValues = offHeap(trigrams.values);
+        copy.bigramFertilities = offHeap(bigrams.fertilities);
+        copy.bigramPostFertilities = offHeap(bigrams.postFertilities);
+        copy.trigramOverflow = trigrams.overflow;
+        copy.fertilityOverflow = bigrams.fertilityOverflow;
+        copy.postFertilityOverflow = bigrams.postFertilityOverflow;
+        copy.trigramMask = trigrams.keys.length - 1;
+        copy.bigramMask = bigrams.keys.length - 1;
+        return copy;
+    }
+
+    private static LongBuffer offHeap(long[] values) {
+        LongBuffer buffer = ByteBuffer.allocateDirect(8 * values.length).asLongBuffer();
+        buffer.put(values).flip();
+        return buffer;
+    }
+
+    private static IntBuffer offHeap(int[] values, int length) {
+        IntBuffer buffer = ByteBuffer.allocateDirect(4 * length).asIntBuffer();
+        buffer.put(values, 0, length).flip();
+        return buffer;
+    }
+
+    private static ShortBuffer offHeap(short[] values) {
+        ShortBuffer buffer = ByteBuffer.allocateDirect(2 * values.length).asShortBuffer();
+        buffer.put(values).flip();
+        return buffer;
+    }
+
+    private static ByteBuffer section(FileChannel channel, long offset, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Section of " + size + " bytes is too large to map");
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+    }
+}
+
+/**
+ * Read-only LanguageModel served straight from a file written by
+ * LmBinaryFormat. Scores are identical to the LanguageModel that was saved;
+ * the pages are shared through the page cache by every JVM mapping the file.
+ * LmBinaryFormat.copyOffHeap fills the same buffers from memory instead.
+ * Only the lookups are its own: the statistics they find go through
+ * LanguageModel's static formula methods.
+ */
+class MappedLanguageModel implements NgramLanguageModel {
+
+    int vocabulary;
+    int bigramTypeCount;
+    Discounts bigramDiscounts;
+    Discounts trigramDiscounts;
+
+    IntBuffer unigramFertility;
+    IntBuffer unigramPostFertility;
+    IntBuffer sumFertility;
+    // Null unless the bigram discounts aren't uniform
+    IntBuffer unigramSingletons;
+    IntBuffer unigramDoubletons;
+
+    LongBuffer trigramKeys;
+    ShortBuffer trigramValues;
+    int trigramMask;
+
+    LongBuffer bigramKeys;
+    IntBuffer bigramCounts;
+    IntBuffer bigramIds;
+    // Null unless the model was pruned
+    IntBuffer bigramPrunedCounts;
+    // Null unless the trigram discounts aren't uniform
+    IntBuffer bigramSingletons;
+    IntBuffer bigramDoubletons;
+    ShortBuffer bigramFertilities;
+    ShortBuffer bigramPostFertilities;
+    int bigramMask;
+
+    OverflowCounter trigramOverflow;
+    OverflowCounter fertilityOverflow;
+    OverflowCounter postFertilityOverflow;
+
+    MappedLanguageModel() {
+    }
+
+    public int getOrder() {
+        return 3;
+    }
+
+    private int unigram(IntBuffer values, int word) {
+        return word < vocabulary ? values.get(word) : 0;
+    }
+
+    // Short column entry at slot, see Counter.addAt
+    private static int value(ShortBuffer column, OverflowCounter overflow, LongBuffer keys, int slot) {
+        int value = column.get(slot) & 0xffff;
+        return value == Counter.SATURATED ? overflow.get(keys.get(slot)) : value;
+    }
+
+    private int trigramSlot(long key) {
+        int slot = Counter.rehash(key) & trigramMask;
+        long k;
+        while ((k = trigramKeys.get(slot)) != Counter.EMPTY) {
+            if (k == key) return slot;
+            slot = (slot + 1) & trigramMask;
+        }
+        return -1;
+    }
+
+    private int bigramSlot(long key) {
+        int slot = Counter.rehash(key) & bigramMask;
+        long k;
+        while ((k = bigramKeys.get(slot)) != Counter.EMPTY) {
+            if (k == key) return slot;
+            slot = (slot + 1) & bigramMask;
+        }
+        return -1;
+    }
+
+    public double getNgramLogProbability(int[] ngram, int from, int to) {
+        int order = to - from;
+        int word3 = ngram[to-1];
+        if (order == 1) {
+            double pUnigram = (double)unigram(unigramFertility, word3);
+            pUnigram /= (double)bigramTypeCount;
+            return Math.log(pUnigram);
+        }
+
+        int word2 = ngram[to-2];
+        int slot = bigramSlot(Counter.bigramKey(word2, word3));
+        int fertility = slot < 0 ? 0 : value(bigramFertilities, fertilityOverflow, bigramKeys, slot);
+        int types = unigram(unigramPostFertility, word2);
+        double backoffMass = unigramSingletons == null ? bigramDiscounts.backoffMass(types, 0, 0)
+                : bigramDiscounts.backoffMass(types, unigram(unigramSingletons, word2), unigram(unigramDoubletons, word2));
+        double pBigram = LanguageModel.continuationProbability(bigramDiscounts, fertility, backoffMass,
+                unigram(unigramFertility, word3), bigramTypeCount, unigram(sumFertility, word2));
+        if (order == 2) {
+            return Math.log(pBigram);
+        }
+
+        int contextSlot = bigramSlot(Counter.bigramKey(ngram[to-3], word2));
+        if (contextSlot < 0) return Math.log(pBigram);
+        return LanguageModel.interpolatedLogProbability(trigramDiscounts, trigramCount(contextSlot, word3),
+                trigramBackoffMass(contextSlot), bigramCounts.get(contextSlot), pBigram);
+    }
+
+    // See LanguageModel.trigramBackoffMass
+    private double trigramBackoffMass(int contextSlot) {
+        return LanguageModel.trigramBackoffMass(trigramDiscounts,
+                value(bigramPostFertilities, postFertilityOverflow, bigramKeys, contextSlot),
+                bigramSingletons == null ? 0 : bigramSingletons.get(contextSlot),
+                bigramDoubletons == null ? 0 : bigramDoubletons.get(contextSlot),
+                bigramPrunedCounts == null ? 0 : bigramPrunedCounts.get(contextSlot));
+    }
+
+    // Count of the trigram (context, word3) given the slot of the context
+    private int trigramCount(int contextSlot, int word3) {
+        int slot = trigramSlot(Counter.trigramKey(bigramIds.get(contextSlot), word3));
+        return slot < 0 ? 0 : value(trigramValues, trigramOverflow, trigramKeys, slot);
+    }
+
+    public long getCount(int[] ngram) {
+        if (ngram.length == 3) {
+            int contextSlot = bigramSlot(Counter.bigramKey(ngram[0], ngram[1]));
+            return contextSlot < 0 ? 0 : trigramCount(contextSlot, ngram[2]);
+        }
+        if (ngram.length == 2) {
+            int slot = bigramSlot(Counter.bigramKey(ngram[0], ngram[1]));
+            return slot < 0 ? 0 : bigramCounts.get(slot);
+        }
+        return 0;
+    }
+
+    public String toString() {
+        return "MappedLanguageModel[vocabulary=" + vocabulary
+                + ", bigramSlots=" + (bigramMask + 1)
+                + ", trigramSlots=" + (trigramMask + 1) + "]";
+    }
+}
@@ -0,0 +1,204 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.Arrays;
+
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+
+/**
+ * Linear interpolation of several count-based LanguageModels, e.g. an
+ * in-domain and a general-domain one:
+ *
+ *   p(w3 | w1 w2) = sum over i of weights[i] p_i(w3 | w1 w2)
+ *
+ * Every component indexes its words through EnglishWordIndexer, so they all
+ * share one vocabulary. Their bigram and trigram statistics are copied into
+ * one pair of tables under shared keys, k entries per key, one for each of
+ * the k components (0 where a component hasn't seen the n-gram):
+ *
+ *   bigrams    (w1 w2)                  shared id, and per component the
+ *                                       count, N1+(* w1 w2) and the backoff
+ *                                       mass of (w1 w2) as a context
+ *   trigrams   (shared id of w1 w2, w3) per component the count
+ *
+ * A query probes each table once, for (w2 w3), (w1 w2) and the trigram,
+ * whatever the number of components, and every component's Kneser-Ney
+ * levels are then worked out from those entries and its own unigram
+ * arrays and discounts, so p_i is exactly what the component scores. The
+ * weights can be tuned on held-out data with PerplexityEvaluator.tuneMixture.
+ *
+ * The components are frozen, so the mixture can be scored from several
+ * threads. Counts are summed over the components.
+ */
+class MixtureLanguageModel implements NgramLanguageModel {
+
+    final LanguageModel[] components;
+    double[] weights;
+
+    // Shared keys, EMPTY where free. The statistics of the component i at
+    // slot are at k * slot + i of the columns.
+    final long[] bigramKeys;
+    final int[] bigramIds;
+    final int[] bigramCounts;
+    final int[] fertilities;
+    final double[] backoffMasses;
+    final long[] trigramKeys;
+    final int[] trigramCounts;
+
+    final ThreadLocal<double[]> probabilities = new ThreadLocal<double[]>() {
+        protected double[] initialValue() {
+            return new double[components.length];
+        }
+    };
+
+    // Equal weights. The tables are sized for the sum of the components'
+    // n-grams, which their union never exceeds, so nothing is rehashed.
+    MixtureLanguageModel(LanguageModel... components) {
+        if (components.length == 0) throw new IllegalArgumentException("A mixture needs at least one model");
+        int bigrams = 0;
+        int trigrams = 0;
+        for (LanguageModel component : components) {
+            if (component.finalized) throw new IllegalArgumentException("A mixture needs count-based models");
+            bigrams += component.bigrams.assigned;
+            trigrams += component.trigrams.assigned;
+        }
+        this.components = components;
+        int k = components.length;
+        bigramKeys = emptyKeys(Counter.capacityFor(bigrams));
+        bigramIds = new int[bigramKeys.length];
+        bigramCounts = new int[k * bigramKeys.length];
+        fertilities = new int[k * bigramKeys.length];
+        backoffMasses = new double[k * bigramKeys.length];
+        trigramKeys = emptyKeys(Counter.capacityFor(trigrams));
+        trigramCounts = new int[k * trigramKeys.length];
+
+        int ids = 0;
+        for (int i = 0; i < k; i++) {
+            BigramCounter counter = components[i].freeze().bigrams;
+            for (int s = 0; s < counter.keys.length; s++) {
+                long key = counter.keys[s];
+                if (key == Counter.EMPTY) continue;
+                int slot = find(bigramKeys, key);
+                if (bigramKeys[slot] == Counter.EMPTY) {
+                    bigramKeys[slot] = key;
+                    bigramIds[slot] = ids++;
+                }
+                bigramCounts[k * slot + i] = counter.counts[s];
+                fertilities[k * slot + i] = counter.fertility(s);
+                backoffMasses[k * slot + i] = components[i].trigramBackoffMass(s);
+            }
+        }
+        for (int i = 0; i < k; i++) {
+            long[] contexts = components[i].bigrams.keysById();
+            TrigramCounter counter = components[i].trigrams;
+            for (int s = 0; s < counter.keys.length; s++) {
+                long key = counter.keys[s];
+                if (key == Counter.EMPTY) continue;
+                int context = bigramIds[find(bigramKeys, contexts[(int)(key >>> 32)])];
+                int slot = find(trigramKeys, Counter.trigramKey(context, (int)(key & Counter.WORD_MASK)));
+                trigramKeys[slot] = Counter.trigramKey(context, (int)(key & Counter.WORD_MASK));
+                trigramCounts[k * slot + i] = counter.value(s);
+            }
+        }
+        System.out.println("Mixture of " + k + " models: " + ids + " bigrams");
+
+        double[] equal = new double[k];
+        Arrays.fill(equal, 1.0 / k);
+        setWeights(equal);
+    }
+
+    static long[] emptyKeys(int capacity) {
+        long[] keys = new long[capacity];
+        Arrays.fill(keys, Counter.EMPTY);
+        return keys;
+    }
+
+    // Slot of key, or the free slot it goes into
+    static int find(long[] keys, long key) {
+        int mask = keys.length - 1;
+        int slot = Counter.rehash(key) & mask;
+        while (keys[slot] != Counter.EMPTY && keys[slot] != key) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    // Slot of key, or -1
+    static int slotOf(long[] keys, long key) {
+        int slot = find(keys, key);
+        return keys[slot] == key ? slot : -1;
+    }
+
+    // Normalizes weights to sum to one. Like the components' discounts, they
+    // mustn't change while other threads score.
+    void setWeights(double[] weights) {
+        if (weights.length != components.length)
+            throw new IllegalArgumentException(weights.length + " weights for " + components.length + " models");
+        double sum = 0;
+        for (double weight : weights) {
+            if (!(weight >= 0)) throw new IllegalArgumentException("Negative weight: " + Arrays.toString(weights));
+            sum += weight;
+        }
+        if (sum == 0) throw new IllegalArgumentException("The weights are all 0");
+        double[] normalized = new double[weights.length];
+        for (int i = 0; i < weights.length; i++) normalized[i] = weights[i] / sum;
+        this.weights = normalized;
+    }
+
+    public int getOrder() {
+        return 3;
+    }
+
+    // Probability of the n-gram under each component, into out
+    void componentProbabilities(int[] ngram, int from, int to, double[] out) {
+        int k = components.length;
+        int word3 = ngram[to-1];
+        if (to - from == 1) {
+            for (int i = 0; i < k; i++) {
+                LanguageModel component = components[i];
+                out[i] = LanguageModel.unigram(component.unigramFertility, word3)
+                        / (double)component.bigrams.bigramTypeCount;
+            }
+            return;
+        }
+
+        int word2 = ngram[to-2];
+        int bigramSlot = slotOf(bigramKeys, Counter.bigramKey(word2, word3));
+        int contextSlot = to - from == 2 ? -1 : slotOf(bigramKeys, Counter.bigramKey(ngram[to-3], word2));
+        int trigramSlot = contextSlot < 0 ? -1
+                : slotOf(trigramKeys, Counter.trigramKey(bigramIds[contextSlot], word3));
+        for (int i = 0; i < k; i++) {
+            LanguageModel component = components[i];
+            double pBigram = component.continuationProbability(word2, word3,
+                    bigramSlot < 0 ? 0 : fertilities[k * bigramSlot + i]);
+            if (contextSlot < 0) {
+                out[i] = pBigram;
+                continue;
+            }
+            int count = trigramSlot < 0 ? 0 : trigramCounts[k * trigramSlot + i];
+            out[i] = Math.exp(component.interpolatedLogProbability(count, backoffMasses[k * contextSlot + i],
+                    bigramCounts[k * contextSlot + i], pBigram));
+        }
+    }
+
+    public double getNgramLogProbability(int[] ngram, int from, int to) {
+        double[] p = probabilities.get();
+        componentProbabilities(ngram, from, to, p);
+        double[] weights = this.weights;
+        double sum = 0;
+        for (int i = 0; i < p.length; i++) sum += weights[i] * p[i];
+        return sum == 0 ? LanguageModel.LOG_ZERO : Math.log(sum);
+    }
+
+    public long getCount(int[] ngram) {
+        int k = components.length;
+        long count = 0;
+        if (ngram.length == 2) {
+            int slot = slotOf(bigramKeys, Counter.bigramKey(ngram[0], ngram[1]));
+            for (int i = 0; slot >= 0 && i < k; i++) count += bigramCounts[k * slot + i];
+        } else if (ngram.length == 3) {
+            int contextSlot = slotOf(bigramKeys, Counter.bigramKey(ngram[0], ngram[1]));
+            int slot = contextSlot < 0 ? -1
+                    : slotOf(trigramKeys, Counter.trigramKey(bigramIds[contextSlot], ngram[2]));
+            for (int i = 0; slot >= 0 && i < k; i++) count += trigramCounts[k * slot + i];
+        }
+        return count;
+    }
+}
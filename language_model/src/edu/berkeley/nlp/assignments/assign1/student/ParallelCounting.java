@@ -0,0 +1,526 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Multi-threaded n-gram counting for LanguageModel.
+ *
+ * The calling thread reads the sentences as word ids (the indexer isn't
+ * thread-safe) and hands batches of them to the workers. Every worker counts
+ * into its own tables, split into shards by the top bits of the key hash. A
+ * trigram goes to the shard of its context bigram, whose id in that shard's
+ * bigram table is part of the trigram key. Shard s of all workers is then
+ * merged by one thread, which maps the context ids of the other workers to
+ * its own.
+ *
+ * The merged shards go into the model's tables on all threads as well. Each
+ * shard sorts its bigrams by key, which fixes their ids in the model, and
+ * counts their N1+(w1 w2 *); the N1+(* w2 w3) a trigram adds goes to the
+ * shard of (w2 w3), which counts those next. The model's tables are then
+ * allocated at their final size and cut into ranges of slots, one thread
+ * inserting every key whose home slot is in its range. The few keys whose
+ * probe runs into the next range, or whose values overflow a short column,
+ * are inserted on the calling thread afterwards.
+ *
+ * Fertilities are N1+ statistics, so they depend on the set of distinct
+ * types and not on the order in which the types were seen, which makes
+ * every count and fertility identical to what the serial constructor
+ * produces.
+ */
+class ParallelCounting {
+
+    static final int BATCH_WORDS = 1 << 16;
+
+    static class Batch {
+        final int[] words;
+        final int[] ends;
+        int size;
+        int sentences;
+
+        Batch(int capacity) {
+            words = new int[capacity];
+            ends = new int[capacity];
+        }
+    }
+
+    static final Batch END = new Batch(0);
+
+    static class Worker implements Callable<Void> {
+        final BlockingQueue<Batch> queue;
+        final int shift;
+        final BigramCounter[] bigramShards;
+        final TrigramCounter[] trigramShards;
+
+        // Shards are sized for the given number of keys each, if that isn't 0
+        Worker(BlockingQueue<Batch> queue, int shards, int expectedBigrams, int expectedTrigrams) {
+            this.queue = queue;
+            this.shift = shift(shards);
+            bigramShards = new BigramCounter[shards];
+            trigramShards = new TrigramCounter[shards];
+            for (int i = 0; i < shards; i++) {
+                bigramShards[i] = new BigramCounter(expectedBigrams);
+                trigramShards[i] = new TrigramCounter(expectedTrigrams);
+            }
+        }
+
+        public Void call() throws InterruptedException {
+            Batch batch;
+            while ((batch = queue.take()) != END) {
+                int begin = 0;
+                for (int s = 0; s < batch.sentences; s++) {
+                    count(batch.words, begin, batch.ends[s]);
+                    begin = batch.ends[s];
+                }
+            }
+            return null;
+        }
+
+        private void count(int[] words, int begin, int end) {
+            int curr = 0, prev;
+            // Shard and id of the bigram ending at curr, the context of the next trigram
+            int shard = 0, context = 0;
+            for (int i = begin; i < end; i++) {
+                prev = curr;
+                curr = words[i];
+                if (i >= begin + 2) {
+                    trigramShards[shard].add(Counter.trigramKey(context, curr), 1);
+                }
+                if (i >= begin + 1) {
+                    long keyPC = Counter.bigramKey(prev, curr);
+                    shard = shardOf(keyPC, shift);
+                    BigramCounter bigrams = bigramShards[shard];
+                    int slot = bigrams.slotFor(keyPC);
+                    bigrams.countAt(slot, 1);
+                    context = bigrams.ids[slot];
+                }
+            }
+        }
+    }
+
+    // Counts source into lm, which has to be empty
+    public static void count(LanguageModel lm, IdSentences source, int threads) throws IOException {
+        if (lm.bigrams.assigned > 0) throw new IllegalStateException("Only an empty model can be counted in parallel");
+        int shards = Integer.highestOneBit(Math.max(threads - 1, 1)) << 1;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(2 * threads);
+            List<Worker> workers = new ArrayList<Worker>();
+            List<Future<Void>> running = new ArrayList<Future<Void>>();
+            for (int t = 0; t < threads; t++) {
+                // The shards of the first worker end up with every key of the
+                // other workers' too, so after LanguageModel.presize they are
+                // allocated at that size. The others grow as they need to.
+                Worker worker = t == 0 ? new Worker(queue, shards, lm.expectedBigrams / shards, lm.expectedTrigrams / shards)
+                        : new Worker(queue, shards, 0, 0);
+                workers.add(worker);
+                running.add(executor.submit(worker));
+            }
+
+            int sent = 0;
+            Batch batch = new Batch(BATCH_WORDS);
+            while (source.next()) {
+                sent++;
+                if (sent % 1000000 == 0) System.out.println("On sentence " + sent);
+                int length = source.length;
+                if (batch.size + length > batch.words.length) {
+                    put(queue, batch, running);
+                    batch = new Batch(Math.max(BATCH_WORDS, length));
+                }
+                System.arraycopy(source.words, 0, batch.words, batch.size, length);
+                batch.size += length;
+                batch.ends[batch.sentences++] = batch.size;
+            }
+            put(queue, batch, running);
+            for (int t = 0; t < threads; t++) put(queue, END, running);
+            for (Future<Void> future : running) future.get();
+            System.out.println("Sentences: " + sent);
+
+            List<Callable<Void>> merges = new ArrayList<Callable<Void>>();
+            for (int s = 0; s < shards; s++) merges.add(new ShardMerge(workers, s));
+            inParallel(executor, merges);
+
+            final Shard[] merged = new Shard[shards];
+            for (int s = 0; s < shards; s++) {
+                merged[s] = new Shard(s, workers.get(0).bigramShards[s], workers.get(0).trigramShards[s]);
+                workers.get(0).bigramShards[s] = null;
+                workers.get(0).trigramShards[s] = null;
+            }
+            List<Callable<Void>> steps = new ArrayList<Callable<Void>>();
+            for (final Shard shard : merged) {
+                steps.add(new Callable<Void>() {
+                    public Void call() {
+                        shard.sort(merged.length);
+                        return null;
+                    }
+                });
+            }
+            inParallel(executor, steps);
+            steps.clear();
+            for (final Shard shard : merged) {
+                steps.add(new Callable<Void>() {
+                    public Void call() {
+                        shard.countFertilities(merged);
+                        return null;
+                    }
+                });
+            }
+            inParallel(executor, steps);
+
+            int bigramCount = 0;
+            int trigramCount = 0;
+            for (Shard shard : merged) {
+                shard.offset = bigramCount;
+                bigramCount += shard.keys.length;
+                trigramCount += shard.trigramKeys.length;
+            }
+            final BigramCounter bigrams = new BigramCounter(bigramCount);
+            final TrigramCounter trigrams = new TrigramCounter(trigramCount);
+            int ranges = Math.min(shards, Math.min(bigrams.keys.length, trigrams.keys.length));
+            final Ranges bigramRanges = new Ranges(bigrams, ranges);
+            final Ranges trigramRanges = new Ranges(trigrams, ranges);
+            steps.clear();
+            for (final Shard shard : merged) {
+                steps.add(new Callable<Void>() {
+                    public Void call() {
+                        shard.group(bigramRanges, trigramRanges);
+                        return null;
+                    }
+                });
+            }
+            inParallel(executor, steps);
+            List<RangeInsert> inserts = new ArrayList<RangeInsert>();
+            for (int r = 0; r < ranges; r++) {
+                inserts.add(new RangeInsert(merged, r, bigrams, bigramRanges, trigrams, trigramRanges));
+            }
+            inParallel(executor, new ArrayList<Callable<Void>>(inserts));
+            for (RangeInsert insert : inserts) insert.insertDeferred();
+
+            bigrams.assigned = bigrams.bigramTypeCount = bigramCount;
+            trigrams.assigned = trigramCount;
+            lm.bigrams = bigrams;
+            lm.trigrams = trigrams;
+            for (Shard shard : merged) {
+                for (int i = 0; i < shard.keys.length; i++) {
+                    int word1 = (int)(shard.keys[i] >>> 32);
+                    int word2 = (int)(shard.keys[i] & Counter.WORD_MASK);
+                    lm.expandArrays(Math.max(word1, word2));
+                    lm.unigramFertility[word2] += 1;
+                    lm.unigramPostFertility[word1] += 1;
+                    lm.sumFertility[word1] += shard.fertilities[i];
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while counting", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Counting worker failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Hands batch to the workers. Waiting for room in the queue gives up
+    // with the first worker that failed, which would otherwise never take
+    // another batch.
+    static void put(BlockingQueue<Batch> queue, Batch batch, List<Future<Void>> running)
+            throws InterruptedException, ExecutionException {
+        while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            for (Future<Void> future : running) {
+                if (future.isDone()) future.get();
+            }
+        }
+    }
+
+    static void inParallel(ExecutorService executor, List<Callable<Void>> tasks)
+            throws InterruptedException, ExecutionException {
+        for (Future<Void> future : executor.invokeAll(tasks)) future.get();
+    }
+
+    static int shift(int shards) {
+        return 32 - Integer.numberOfTrailingZeros(shards);
+    }
+
+    // Shard of a bigram key
+    static int shardOf(long key, int shift) {
+        return Counter.rehash(key) >>> shift;
+    }
+
+    // Folds shard s of every worker into shard s of the first worker.
+    static class ShardMerge implements Callable<Void> {
+        final List<Worker> workers;
+        final int shard;
+
+        ShardMerge(List<Worker> workers, int shard) {
+            this.workers = workers;
+            this.shard = shard;
+        }
+
+        public Void call() {
+            BigramCounter bigrams = workers.get(0).bigramShards[shard];
+            TrigramCounter trigrams = workers.get(0).trigramShards[shard];
+            for (int w = 1; w < workers.size(); w++) {
+                BigramCounter otherBigrams = workers.get(w).bigramShards[shard];
+                for (int i = 0; i < otherBigrams.keys.length; i++) {
+                    if (otherBigrams.keys[i] != Counter.EMPTY)
+                        bigrams.addCount(otherBigrams.keys[i], otherBigrams.counts[i]);
+                }
+                long[] otherContexts = otherBigrams.keysById();
+                workers.get(w).bigramShards[shard] = null;
+
+                // Every context is in bigrams by now, so this only looks up its id
+                TrigramCounter otherTrigrams = workers.get(w).trigramShards[shard];
+                for (int i = 0; i < otherTrigrams.keys.length; i++) {
+                    long key = otherTrigrams.keys[i];
+                    if (key == Counter.EMPTY) continue;
+                    int context = bigrams.ids[bigrams.slotFor(otherContexts[(int)(key >>> 32)])];
+                    trigrams.add(Counter.trigramKey(context, (int)(key & Counter.WORD_MASK)), otherTrigrams.value(i));
+                }
+                workers.get(w).trigramShards[shard] = null;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The merged tables of one shard on their way into the model's tables.
+     * The bigrams are sorted by key and numbered in that order from offset
+     * on, which makes their ids the same on every run.
+     */
+    static class Shard {
+        final int index;
+        BigramCounter bigrams;
+        TrigramCounter trigrams;
+
+        // Per bigram, by rank in key order
+        long[] keys;
+        int[] counts;
+        int[] fertilities;
+        int[] postFertilities;
+        // Rank of every id of bigrams
+        int[] rankById;
+        // (w2 w3) of every trigram, by the shard that bigram is in
+        long[][] fertilityKeys;
+        // Per trigram, keyed by (rank of the context, w3) and then by
+        // (offset + rank, w3), the context's id in the model
+        long[] trigramKeys;
+        int[] trigramCounts;
+        // Id of keys[0] in the model
+        int offset;
+
+        // Ranks and trigram positions grouped by the range of their home
+        // slot in the model's tables, range r from starts[r] on
+        int[] bigramOrder;
+        int[] bigramStarts;
+        int[] trigramOrder;
+        int[] trigramStarts;
+
+        Shard(int index, BigramCounter bigrams, TrigramCounter trigrams) {
+            this.index = index;
+            this.bigrams = bigrams;
+            this.trigrams = trigrams;
+        }
+
+        // Ranks the bigrams, counts N1+(w1 w2 *) of each and sorts the
+        // N1+(* w2 w3) increments of the trigrams by the shard of (w2 w3).
+        // Every context is in this shard, every (w2 w3) in some shard.
+        void sort(int shards) {
+            int shift = shift(shards);
+            int size = bigrams.assigned;
+            keys = new long[size];
+            int n = 0;
+            for (long key : bigrams.keys) {
+                if (key != Counter.EMPTY) keys[n++] = key;
+            }
+            Arrays.sort(keys);
+            counts = new int[size];
+            rankById = new int[size];
+            for (int rank = 0; rank < size; rank++) {
+                int slot = bigrams.slotFrom(keys[rank], bigrams.homeSlot(keys[rank]));
+                counts[rank] = bigrams.counts[slot];
+                rankById[bigrams.ids[slot]] = rank;
+            }
+
+            postFertilities = new int[size];
+            trigramKeys = new long[trigrams.assigned];
+            trigramCounts = new int[trigrams.assigned];
+            int[] perShard = new int[shards];
+            int m = 0;
+            for (int slot = 0; slot < trigrams.keys.length; slot++) {
+                long key = trigrams.keys[slot];
+                if (key == Counter.EMPTY) continue;
+                int rank = rankById[(int)(key >>> 32)];
+                postFertilities[rank]++;
+                trigramKeys[m] = Counter.trigramKey(rank, (int)(key & Counter.WORD_MASK));
+                trigramCounts[m++] = trigrams.value(slot);
+                perShard[shardOf(continuation(trigramKeys[m - 1]), shift)]++;
+            }
+            trigrams = null;
+            fertilityKeys = new long[shards][];
+            for (int s = 0; s < shards; s++) fertilityKeys[s] = new long[perShard[s]];
+            Arrays.fill(perShard, 0);
+            for (long key : trigramKeys) {
+                long bigram = continuation(key);
+                int s = shardOf(bigram, shift);
+                fertilityKeys[s][perShard[s]++] = bigram;
+            }
+        }
+
+        // (w2 w3) of the trigram (rank of w1 w2, w3)
+        long continuation(long trigramKey) {
+            int word2 = (int)(keys[(int)(trigramKey >>> 32)] & Counter.WORD_MASK);
+            return Counter.bigramKey(word2, (int)(trigramKey & Counter.WORD_MASK));
+        }
+
+        // N1+(* w1 w2) of every bigram, from the increments all shards sorted out for this one
+        void countFertilities(Shard[] shards) {
+            fertilities = new int[keys.length];
+            for (Shard shard : shards) {
+                for (long key : shard.fertilityKeys[index]) {
+                    int slot = bigrams.slotFrom(key, bigrams.homeSlot(key));
+                    fertilities[rankById[bigrams.ids[slot]]]++;
+                }
+                shard.fertilityKeys[index] = null;
+            }
+            bigrams = null;
+            rankById = null;
+        }
+
+        void group(Ranges bigramRanges, Ranges trigramRanges) {
+            long contextOffset = (long)offset << 32;
+            for (int i = 0; i < trigramKeys.length; i++) trigramKeys[i] += contextOffset;
+            bigramStarts = new int[bigramRanges.count + 1];
+            bigramOrder = bigramRanges.group(keys, bigramStarts);
+            trigramStarts = new int[trigramRanges.count + 1];
+            trigramOrder = trigramRanges.group(trigramKeys, trigramStarts);
+        }
+
+        // Whether every value of bigram i fits the short columns, so
+        // inserting it doesn't touch the overflow tables
+        boolean fits(int i) {
+            return fertilities[i] < Counter.SATURATED && postFertilities[i] < Counter.SATURATED;
+        }
+
+        void putBigram(BigramCounter table, int slot, int i) {
+            table.keys[slot] = keys[i];
+            table.counts[slot] = counts[i];
+            table.ids[slot] = offset + i;
+            table.addAt(table.fertilities, table.fertilityOverflow, slot, fertilities[i]);
+            table.addAt(table.postFertilities, table.postFertilityOverflow, slot, postFertilities[i]);
+        }
+
+        void putTrigram(TrigramCounter table, int slot, int i) {
+            table.keys[slot] = trigramKeys[i];
+            table.addAt(table.values, table.overflow, slot, trigramCounts[i]);
+        }
+    }
+
+    /**
+     * The slots of one of the model's tables cut into count equal ranges.
+     * Keys whose home slots are in different ranges are inserted by
+     * different threads, which never write outside their own range.
+     */
+    static class Ranges {
+        final int count;
+        final int size;
+        final int mask;
+
+        Ranges(Counter table, int count) {
+            this.count = count;
+            size = table.keys.length / count;
+            mask = table.keys.length - 1;
+        }
+
+        int of(long key) {
+            return (Counter.rehash(key) & mask) / size;
+        }
+
+        // Where the range of each slot ends
+        int end(int range) {
+            return ((range + 1) * size) & mask;
+        }
+
+        // Positions 0 to keys.length - 1, grouped by range and otherwise in order
+        int[] group(long[] keys, int[] starts) {
+            for (long key : keys) starts[of(key) + 1]++;
+            for (int r = 0; r < count; r++) starts[r + 1] += starts[r];
+            int[] next = Arrays.copyOf(starts, count);
+            int[] order = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) order[next[of(keys[i])]++] = i;
+            return order;
+        }
+
+        // Free slot for key from its home slot on, -1 if the probe gets to end first
+        static int freeSlot(long[] keys, long key, int end) {
+            int mask = keys.length - 1;
+            int slot = Counter.rehash(key) & mask;
+            while (keys[slot] != Counter.EMPTY) {
+                slot = (slot + 1) & mask;
+                if (slot == end) return -1;
+            }
+            return slot;
+        }
+    }
+
+    // Inserts the bigrams and trigrams of every shard whose home slot is in
+    // one range, shard by shard. Those that would probe past the end of the
+    // range or overflow a short column are left to insertDeferred, which
+    // runs on one thread once every range is done.
+    static class RangeInsert implements Callable<Void> {
+        final Shard[] shards;
+        final int range;
+        final BigramCounter bigrams;
+        final Ranges bigramRanges;
+        final TrigramCounter trigrams;
+        final Ranges trigramRanges;
+        // Shard in the high and position in the low int
+        final List<Long> deferredBigrams = new ArrayList<Long>();
+        final List<Long> deferredTrigrams = new ArrayList<Long>();
+
+        RangeInsert(Shard[] shards, int range, BigramCounter bigrams, Ranges bigramRanges,
+                TrigramCounter trigrams, Ranges trigramRanges) {
+            this.shards = shards;
+            this.range = range;
+            this.bigrams = bigrams;
+            this.bigramRanges = bigramRanges;
+            this.trigrams = trigrams;
+            this.trigramRanges = trigramRanges;
+        }
+
+        public Void call() {
+            int bigramEnd = bigramRanges.end(range);
+            int trigramEnd = trigramRanges.end(range);
+            for (int s = 0; s < shards.length; s++) {
+                Shard shard = shards[s];
+                for (int j = shard.bigramStarts[range]; j < shard.bigramStarts[range + 1]; j++) {
+                    int i = shard.bigramOrder[j];
+                    int slot = shard.fits(i) ? Ranges.freeSlot(bigrams.keys, shard.keys[i], bigramEnd) : -1;
+                    if (slot >= 0) shard.putBigram(bigrams, slot, i);
+                    else deferredBigrams.add(((long)s << 32) | i);
+                }
+                for (int j = shard.trigramStarts[range]; j < shard.trigramStarts[range + 1]; j++) {
+                    int i = shard.trigramOrder[j];
+                    int slot = shard.trigramCounts[i] < Counter.SATURATED
+                            ? Ranges.freeSlot(trigrams.keys, shard.trigramKeys[i], trigramEnd) : -1;
+                    if (slot >= 0) shard.putTrigram(trigrams, slot, i);
+                    else deferredTrigrams.add(((long)s << 32) | i);
+                }
+            }
+            return null;
+        }
+
+        void insertDeferred() {
+            for (long entry : deferredBigrams) {
+                Shard shard = shards[(int)(entry >>> 32)];
+                int i = (int)entry;
+                shard.putBigram(bigrams, Ranges.freeSlot(bigrams.keys, shard.keys[i], -1), i);
+            }
+            for (long entry : deferredTrigrams) {
+                Shard shard = shards[(int)(entry >>> 32)];
+                int i = (int)entry;
+                shard.putTrigram(trigrams, Ranges.freeSlot(trigrams.keys, shard.trigramKeys[i], -1), i);
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Held-out perplexity of a language model, scored on several threads, a
+ * tuner for the modified Kneser-Ney discounts of LanguageModel and one for
+ * the weights of a MixtureLanguageModel. Run from lm_perplexity.sh:
+ *
+ *   perplexity <corpus> <heldout> [threads]   perplexity with the default discounts
+ *   tune <corpus> <heldout> [threads]         also with the estimated and the
+ *                                             tuned discounts
+ *   mix <corpora> <heldout> [threads]         perplexity of a model for each of
+ *                                             the comma separated corpora and of
+ *                                             their MixtureLanguageModel with
+ *                                             weights tuned by EM
+ *
+ * Sentences are scored in chunks of CHUNK, one task each, and the chunk sums
+ * are added up in order, so the result doesn't depend on the thread count.
+ * The threads are started once per evaluator, so tuning doesn't start a
+ * pool for every evaluation; close stops them.
+ * Scoring only reads the model, which every model here allows from several
+ * threads as long as nothing is counted meanwhile.
+ */
+public class PerplexityEvaluator implements Closeable {
+
+    static final int CHUNK = 256;
+    // Coordinate search steps, halved from the first down to the last
+    static final double FIRST_STEP = 0.1;
+    static final double LAST_STEP = 0.005;
+    static final int MAX_EM_ITERATIONS = 50;
+    static final double EM_TOLERANCE = 1e-6;
+
+    // Word ids with START and STOP around them
+    final int[][] sentences;
+    // Scored words: every word after START, STOP included
+    final long words;
+    final int threads;
+    // Runs the chunks when there is more than one thread, until close
+    final ExecutorService executor;
+
+    PerplexityEvaluator(List<List<String>> heldout, int threads) {
+        StringIndexer indexer = EnglishWordIndexer.getIndexer();
+        int start = indexer.addAndGetIndex(NgramLanguageModel.START);
+        int stop = indexer.addAndGetIndex(NgramLanguageModel.STOP);
+        sentences = new int[heldout.size()][];
+        long count = 0;
+        for (int s = 0; s < sentences.length; s++) {
+            List<String> sentence = heldout.get(s);
+            int[] ids = new int[sentence.size() + 2];
+            ids[0] = start;
+            for (int i = 0; i < sentence.size(); i++) ids[i + 1] = indexer.addAndGetIndex(sentence.get(i));
+            ids[ids.length - 1] = stop;
+            sentences[s] = ids;
+            count += ids.length - 1;
+        }
+        words = count;
+        this.threads = threads;
+        executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    }
+
+    // Stops the evaluator's threads; it can't score after that
+    public void close() {
+        if (executor != null) executor.shutdownNow();
+    }
+
+    // exp of the mean negative log-probability per scored word
+    double perplexity(NgramLanguageModel lm) {
+        return Math.exp(-logProbability(lm) / words);
+    }
+
+    // Summed log-probability of every scored word
+    double logProbability(final NgramLanguageModel lm) {
+        double sum = 0;
+        for (double chunkSum : inChunks(new ChunkTask<Double>() {
+            public Double run(int chunk) {
+                return scoreChunk(lm, chunk);
+            }
+        })) {
+            sum += chunkSum;
+        }
+        return sum;
+    }
+
+    // One chunk of sentences, see inChunks
+    interface ChunkTask<T> {
+        T run(int chunk);
+    }
+
+    // Runs task on every chunk on the evaluator's threads and returns the
+    // results in chunk order
+    <T> List<T> inChunks(final ChunkTask<T> task) {
+        int chunks = (sentences.length + CHUNK - 1) / CHUNK;
+        List<T> results = new ArrayList<T>();
+        if (threads <= 1) {
+            for (int c = 0; c < chunks; c++) results.add(task.run(c));
+            return results;
+        }
+        List<Callable<T>> tasks = new ArrayList<Callable<T>>();
+        for (int c = 0; c < chunks; c++) {
+            final int chunk = c;
+            tasks.add(new Callable<T>() {
+                public T call() {
+                    return task.run(chunk);
+                }
+            });
+        }
+        try {
+            for (Future<T> future : executor.invokeAll(tasks)) results.add(future.get());
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while scoring", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Scoring thread failed", e.getCause());
+        }
+    }
+
+    private double scoreChunk(NgramLanguageModel lm, int chunk) {
+        int order = lm.getOrder();
+        double sum = 0;
+        int end = Math.min(sentences.length, (chunk + 1) * CHUNK);
+        for (int s = chunk * CHUNK; s < end; s++) {
+            int[] sentence = sentences[s];
+            for (int i = 1; i < sentence.length; i++) {
+                sum += lm.getNgramLogProbability(sentence, Math.max(0, i - order + 1), i + 1);
+            }
+        }
+        return sum;
+    }
+
+    // Searches the bigram and trigram discounts of lm for the lowest held-out
+    // perplexity, starting from Chen and Goodman's estimates. Coordinate
+    // descent: each of the six discounts is moved up and down by the step
+    // while that helps, then the step is halved. Only the scores are redone,
+    // the counts never change. Leaves lm with the best discounts found and
+    // returns them, bigram level first.
+    Discounts[] tune(LanguageModel lm) {
+        Discounts bigram = lm.estimateBigramDiscounts();
+        Discounts trigram = lm.estimateTrigramDiscounts();
+        double[] best = {
+                bigram.one, bigram.two, bigram.threePlus,
+                trigram.one, trigram.two, trigram.threePlus
+        };
+        double bestPerplexity = evaluate(lm, best);
+        System.out.println(String.format("Estimated %s: %.3f", format(best), bestPerplexity));
+        int evaluations = 1;
+        for (double step = FIRST_STEP; step >= LAST_STEP; step /= 2) {
+            boolean improved = true;
+            while (improved) {
+                improved = false;
+                for (int i = 0; i < best.length; i++) {
+                    for (int sign = -1; sign <= 1; sign += 2) {
+                        double[] candidate = best.clone();
+                        candidate[i] += sign * step;
+                        // D1 <= 1, D2 <= 2, D3+ <= 3 keeps discounted counts positive
+                        if (candidate[i] < 0 || candidate[i] > i % 3 + 1) continue;
+                        double perplexity = evaluate(lm, candidate);
+                        evaluations++;
+                        if (perplexity < bestPerplexity) {
+                            best = candidate;
+                            bestPerplexity = perplexity;
+                            improved = true;
+                        }
+                    }
+                }
+            }
+            System.out.println(String.format("Step %.4f: %s: %.3f", step, format(best), bestPerplexity));
+        }
+        evaluate(lm, best);
+        System.out.println("Tuned in " + evaluations + " evaluations");
+        return new Discounts[] { lm.bigramDiscounts, lm.trigramDiscounts };
+    }
+
+    // EM for the weights of mixture on the held-out sentences. The component
+    // probabilities of every scored word are computed once, chunk by chunk on
+    // the evaluator's threads, and each iteration then moves every weight to
+    // the mean posterior of its component over those words, which never
+    // lowers the held-out likelihood. Stops after MAX_EM_ITERATIONS or once
+    // an iteration gains less than EM_TOLERANCE in log-likelihood per word.
+    // Leaves mixture with the weights found and returns them.
+    double[] tuneMixture(final MixtureLanguageModel mixture) {
+        final int k = mixture.components.length;
+        final List<double[]> probabilities = inChunks(new ChunkTask<double[]>() {
+            public double[] run(int chunk) {
+                return componentProbabilities(mixture, chunk);
+            }
+        });
+        double previous = Double.NEGATIVE_INFINITY;
+        for (int iteration = 1; iteration <= MAX_EM_ITERATIONS; iteration++) {
+            final double[] weights = mixture.weights;
+            // Per chunk: the summed posterior of each component, then the log-likelihood
+            List<double[]> sums = inChunks(new ChunkTask<double[]>() {
+                public double[] run(int chunk) {
+                    double[] p = probabilities.get(chunk);
+                    double[] sum = new double[k + 1];
+                    for (int word = 0; word < p.length; word += k) {
+                        double total = 0;
+                        for (int i = 0; i < k; i++) total += weights[i] * p[word + i];
+                        for (int i = 0; i < k; i++) sum[i] += weights[i] * p[word + i] / total;
+                        sum[k] += Math.log(total);
+                    }
+                    return sum;
+                }
+            });
+            double[] posterior = new double[k + 1];
+            for (double[] sum : sums) {
+                for (int i = 0; i <= k; i++) posterior[i] += sum[i];
+            }
+            double logLikelihood = posterior[k] / words;
+            System.out.println(String.format("Iteration %d: weights %s: %.3f", iteration, format(weights),
+                    Math.exp(-logLikelihood)));
+            mixture.setWeights(Arrays.copyOf(posterior, k));
+            if (logLikelihood - previous < EM_TOLERANCE) break;
+            previous = logLikelihood;
+        }
+        return mixture.weights;
+    }
+
+    // Component probabilities of every scored word of the chunk, k per word
+    private double[] componentProbabilities(MixtureLanguageModel mixture, int chunk) {
+        int k = mixture.components.length;
+        int end = Math.min(sentences.length, (chunk + 1) * CHUNK);
+        int scored = 0;
+        for (int s = chunk * CHUNK; s < end; s++) scored += sentences[s].length - 1;
+        double[] probabilities = new double[scored * k];
+        double[] p = new double[k];
+        int word = 0;
+        for (int s = chunk * CHUNK; s < end; s++) {
+            int[] sentence = sentences[s];
+            for (int i = 1; i < sentence.length; i++) {
+                mixture.componentProbabilities(sentence, Math.max(0, i - 2), i + 1, p);
+                System.arraycopy(p, 0, probabilities, word, k);
+                word += k;
+            }
+        }
+        return probabilities;
+    }
+
+    private double evaluate(LanguageModel lm, double[] d) {
+        lm.setDiscounts(new Discounts(d[0], d[1], d[2]), new Discounts(d[3], d[4], d[5]));
+        return perplexity(lm);
+    }
+
+    // As taken by -Dlm.discounts
+    static String format(double[] d) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < d.length; i++) {
+            if (i > 0) out.append(',');
+            out.append(String.format("%.4f", d[i]));
+        }
+        return out.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || !(args[0].equals("perplexity") || args[0].equals("tune") || args[0].equals("mix"))) {
+            System.out.println("Usage: PerplexityEvaluator perplexity <corpus> <heldout> [threads]");
+            System.out.println("       PerplexityEvaluator tune <corpus> <heldout> [threads]");
+            System.out.println("       PerplexityEvaluator mix <corpus>,<corpus>[,...] <heldout> [threads]");
+            System.exit(1);
+        }
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        if (args[0].equals("mix")) {
+            mix(args[1].split(","), args[2], threads);
+            return;
+        }
+        LanguageModel lm = LanguageModel.fromCorpus(new File(args[1]), threads);
+        if (LmMetrics.ENABLED) LmMetrics.watch(lm);
+        PerplexityEvaluator evaluator = new PerplexityEvaluator(LmChecks.readSentences(args[2]), threads);
+        try {
+            long begin = System.currentTimeMillis();
+            double perplexity = evaluator.perplexity(lm);
+            System.out.println(String.format("Perplexity: %.3f over %d words, scored on %d threads in %dms",
+                    perplexity, evaluator.words, threads, System.currentTimeMillis() - begin));
+            if (args[0].equals("tune")) {
+                Discounts[] tuned = evaluator.tune(lm);
+                System.out.println(String.format("Tuned perplexity: %.3f", evaluator.perplexity(lm)));
+                System.out.println("-Dlm.discounts=" + tuned[0] + "," + tuned[1]);
+            }
+        } finally {
+            evaluator.close();
+        }
+        if (LmMetrics.ENABLED) System.out.print(LmMetrics.INSTANCE.getReport());
+    }
+
+    static void mix(String[] corpora, String heldout, int threads) throws IOException {
+        PerplexityEvaluator evaluator = new PerplexityEvaluator(LmChecks.readSentences(heldout), threads);
+        try {
+            LanguageModel[] components = new LanguageModel[corpora.length];
+            for (int i = 0; i < corpora.length; i++) {
+                components[i] = LanguageModel.fromCorpus(new File(corpora[i]), threads);
+                System.out.println(String.format("Perplexity of %s: %.3f", corpora[i],
+                        evaluator.perplexity(components[i])));
+            }
+            MixtureLanguageModel mixture = new MixtureLanguageModel(components);
+            long begin = System.currentTimeMillis();
+            double[] weights = evaluator.tuneMixture(mixture);
+            System.out.println(String.format("Tuned on %d threads in %dms", threads,
+                    System.currentTimeMillis() - begin));
+            System.out.println(String.format("Mixture perplexity: %.3f", evaluator.perplexity(mixture)));
+            System.out.println("-Dlm.mixtureWeights=" + PerplexityEvaluator.format(weights));
+        } finally {
+            evaluator.close();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Copy of a LanguageModel with its words renumbered by descending frequency,
+ * so the most frequent word has id 0. EnglishWordIndexer ids are shared by
+ * everything, so they stay as they are: the copy is built over the new ids,
+ * and every query is translated through internalId on its way in.
+ *
+ * The unigram arrays of the copy are in frequency order, so the entries of
+ * the words most queries touch share a few cache lines instead of being
+ * spread over the whole vocabulary. Bigrams are added by descending count,
+ * so frequent contexts also get the small bigram ids that trigram keys are
+ * made of. Both make the stored keys smaller numbers, which is what a
+ * variable length or delta encoding of them would profit from; the hash
+ * tables themselves scatter keys regardless of their ids.
+ *
+ * The copy scores exactly like the model it was made from, for every query.
+ * Words the model has never seen all map to one id past the known words.
+ * States of the StatefulLanguageModel methods are in terms of the new ids.
+ */
+class RemappedLanguageModel implements StatefulLanguageModel {
+
+    final LanguageModel model;
+    // New id of each old word id; words with no occurrences get unknown
+    final int[] internalId;
+    final int unknown;
+    final ThreadLocal<int[]> mapped = new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[3];
+        }
+    };
+
+    // Finalizes the copy if words is finalized, from its counts; a model
+    // read from an ARPA file has none
+    RemappedLanguageModel(LanguageModel words) {
+        if (words.bigrams.prunedCounts != null) throw new IllegalArgumentException("Can't remap a pruned model");
+        if (words.bigrams.bigramTypeCount == 0) throw new IllegalArgumentException("Can't remap a model without counts");
+        BigramCounter bigrams = words.bigrams;
+        int vocabulary = words.unigramFertility.length;
+
+        // Occurrences of every word: every word but START follows some word,
+        // and START begins every sentence
+        long[] occurrences = new long[vocabulary];
+        for (int slot = 0; slot < bigrams.keys.length; slot++) {
+            long key = bigrams.keys[slot];
+            if (key == Counter.EMPTY) continue;
+            occurrences[(int)(key & Counter.WORD_MASK)] += bigrams.counts[slot];
+            if ((int)(key >>> 32) == words.startWord) occurrences[words.startWord] += bigrams.counts[slot];
+        }
+        internalId = rank(occurrences);
+        int known = 0;
+        for (long count : occurrences) {
+            if (count > 0) known++;
+        }
+        unknown = known;
+        for (int w = 0; w < vocabulary; w++) {
+            if (occurrences[w] == 0) internalId[w] = unknown;
+        }
+
+        // Bigrams first, most frequent first, so they get the small ids
+        model = new LanguageModel();
+        model.startWord = internalId[words.startWord];
+        model.bigrams = new BigramCounter(bigrams.assigned);
+        model.trigrams = new TrigramCounter(words.trigrams.assigned);
+        model.expandArrays(unknown);
+        long[] byCount = new long[bigrams.assigned];
+        int n = 0;
+        for (int slot = 0; slot < bigrams.keys.length; slot++) {
+            if (bigrams.keys[slot] != Counter.EMPTY && bigrams.counts[slot] > 0)
+                byCount[n++] = ((long)(Integer.MAX_VALUE - bigrams.counts[slot]) << 32) | slot;
+        }
+        Arrays.sort(byCount, 0, n);
+        for (int i = 0; i < n; i++) {
+            int slot = (int)byCount[i];
+            model.addBigramCount(remap(bigrams.keys[slot]), bigrams.counts[slot]);
+        }
+        TrigramCounter trigrams = words.trigrams;
+        long[] contexts = bigrams.keysById();
+        for (int slot = 0; slot < trigrams.keys.length; slot++) {
+            long key = trigrams.keys[slot];
+            if (key == Counter.EMPTY) continue;
+            int count = trigrams.value(slot);
+            if (count > 0) {
+                model.addTrigramCount(remap(contexts[(int)(key >>> 32)]),
+                        internalId[(int)(key & Counter.WORD_MASK)], count);
+            }
+        }
+        model.setDiscounts(words.bigramDiscounts, words.trigramDiscounts);
+        if (words.finalized) model.finalizeProbabilities();
+        model.freeze();
+        System.out.println("Remapped " + known + " words, " + model.bigrams.assigned + " bigrams, "
+                + model.trigrams.assigned + " trigrams");
+    }
+
+    // New ids by descending count, ties by old id
+    static int[] rank(long[] counts) {
+        Integer[] order = new Integer[counts.length];
+        for (int w = 0; w < counts.length; w++) order[w] = w;
+        final long[] by = counts;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                if (by[a] != by[b]) return by[a] > by[b] ? -1 : 1;
+                return a.compareTo(b);
+            }
+        });
+        int[] ids = new int[counts.length];
+        for (int rank = 0; rank < order.length; rank++) ids[order[rank]] = rank;
+        return ids;
+    }
+
+    int internalId(int word) {
+        return word < internalId.length ? internalId[word] : unknown;
+    }
+
+    long remap(long bigramKey) {
+        return Counter.bigramKey(internalId[(int)(bigramKey >>> 32)], internalId[(int)(bigramKey & Counter.WORD_MASK)]);
+    }
+
+    public int getOrder() {
+        return 3;
+    }
+
+    public double getNgramLogProbability(int[] ngram, int from, int to) {
+        int[] ids = mapped.get();
+        int length = Math.min(to - from, 3);
+        for (int i = 0; i < length; i++) ids[3 - length + i] = internalId(ngram[to - length + i]);
+        return model.getNgramLogProbability(ids, 3 - length, 3);
+    }
+
+    public long getCount(int[] ngram) {
+        int[] ids = new int[ngram.length];
+        for (int i = 0; i < ngram.length; i++) ids[i] = internalId(ngram[i]);
+        return model.getCount(ids);
+    }
+
+    public long startState() {
+        return model.startState();
+    }
+
+    public void scoreWord(long contextState, int word, ScoredWord result) {
+        model.scoreWord(contextState, internalId(word), result);
+    }
+}
@@ -0,0 +1,34 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+
+/**
+ * NgramLanguageModel that decoders can drive one word at a time. A hypothesis
+ * carries a single long context state instead of its last words, and scoring
+ * a word hands back the state to continue from, so the model doesn't have to
+ * look up the same context again for every extension.
+ *
+ * States are only meaningful to the model that produced them, and only
+ * while its counts stay as they are: counting more into a LanguageModel
+ * (addSentences, merge) can rehash its bigram table, after which a state
+ * names another context or none. LanguageModel therefore only hands out and
+ * takes states once it is frozen, which stops counting for good.
+ */
+interface StatefulLanguageModel extends NgramLanguageModel {
+
+    // State of a hypothesis that has only seen START.
+    public long startState();
+
+    // Scores word after contextState, storing its log-probability and the
+    // state after word in result.
+    public void scoreWord(long contextState, int word, ScoredWord result);
+}
+
+/**
+ * Result of StatefulLanguageModel.scoreWord. Decoders keep one per thread and
+ * reuse it.
+ */
+class ScoredWord {
+    public double logProbability;
+    public long state;
+}
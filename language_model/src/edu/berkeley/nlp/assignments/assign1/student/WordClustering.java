@@ -0,0 +1,320 @@
+package edu.berkeley.nlp.assignments.assign1.student;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Exchange clustering of the vocabulary of a count-based LanguageModel into
+ * a fixed number of classes, for ClassLanguageModel. Run from lm_clusters.sh:
+ *
+ *   <corpus> <classes> <output> [threads] [heldout]
+ *
+ * writes "class, word, count" lines to output, and with heldout compares the
+ * perplexity and table sizes of the word and the class model.
+ *
+ * The objective is the likelihood of the training bigrams under the
+ * predictive class model p(w | v) = p(c(w) | v) p(w | c(w)) of Uszkoreit
+ * and Brants, which up to a constant is
+ *
+ *   F = sum_{v,c} N(v,c) log N(v,c) - sum_c N(c) log N(c)
+ *
+ * where N(v,c) counts v followed by a word of class c, and N(c) the words of
+ * class c. It only needs the bigram counts of the model, not the corpus.
+ *
+ * Words start out dealt round robin by descending count. Every iteration
+ * visits them in that order and moves each to the class that gains the most,
+ * in batches of BATCH: the best class of every word of a batch is searched
+ * for on several threads against the statistics as they were at the start
+ * of the batch, then the moves are applied in order, each only if it still
+ * gains given the moves before it. F never decreases, no class is emptied,
+ * and the result doesn't depend on the thread count. START and STOP are
+ * left out; ClassLanguageModel gives them classes of their own.
+ */
+class WordClustering {
+
+    static final int BATCH = 1024;
+    // Words per search task
+    static final int CHUNK = 64;
+    static final int MAX_ITERATIONS = 15;
+    // Smallest gain worth a move, so rounding can't move a word back and forth
+    static final double MIN_GAIN = 1e-6;
+    // x log x is looked up below this
+    static final int TABLE = 1 << 16;
+    static final double[] X_LOG_X = new double[TABLE];
+    static {
+        for (int x = 1; x < TABLE; x++) X_LOG_X[x] = x * Math.log(x);
+    }
+
+    final int classes;
+    // By dense index, i.e. rank by descending count: word id, count and class
+    final int[] words;
+    final long[] counts;
+    final int[] classOf;
+    // Predecessors of word i and their bigram counts are at [offsets[i], offsets[i+1])
+    final int[] offsets;
+    final int[] predecessors;
+    final int[] predecessorCounts;
+    // N(v,c) under Counter.bigramKey(v, c), and N(c) and the words of each class
+    final OverflowCounter contextCounts = new OverflowCounter();
+    final long[] classCounts;
+    final int[] classSizes;
+
+    WordClustering(LanguageModel lm, int classes) {
+        if (lm.finalized) throw new IllegalArgumentException("Clustering needs a count-based model");
+        BigramCounter bigrams = lm.bigrams;
+        int stop = EnglishWordIndexer.getIndexer().addAndGetIndex(NgramLanguageModel.STOP);
+        // Every word but START follows some word, so this counts its occurrences
+        final long[] wordCounts = new long[lm.unigramFertility.length];
+        for (int slot = 0; slot < bigrams.keys.length; slot++) {
+            long key = bigrams.keys[slot];
+            if (key != Counter.EMPTY) wordCounts[(int)(key & Counter.WORD_MASK)] += bigrams.counts[slot];
+        }
+        wordCounts[stop] = 0;
+        List<Integer> vocabulary = new ArrayList<Integer>();
+        for (int w = 0; w < wordCounts.length; w++) {
+            if (wordCounts[w] > 0) vocabulary.add(w);
+        }
+        if (classes < 2 || classes > vocabulary.size())
+            throw new IllegalArgumentException("Need 2 to " + vocabulary.size() + " classes, not " + classes);
+        Collections.sort(vocabulary, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                if (wordCounts[a] != wordCounts[b]) return wordCounts[a] > wordCounts[b] ? -1 : 1;
+                return a.compareTo(b);
+            }
+        });
+
+        this.classes = classes;
+        int n = vocabulary.size();
+        words = new int[n];
+        counts = new long[n];
+        classOf = new int[n];
+        classCounts = new long[classes];
+        classSizes = new int[classes];
+        int[] index = new int[wordCounts.length];
+        Arrays.fill(index, -1);
+        for (int i = 0; i < n; i++) {
+            words[i] = vocabulary.get(i);
+            counts[i] = wordCounts[words[i]];
+            index[words[i]] = i;
+            classOf[i] = i % classes;
+            classCounts[classOf[i]] += counts[i];
+            classSizes[classOf[i]]++;
+        }
+
+        offsets = new int[n + 1];
+        for (int slot = 0; slot < bigrams.keys.length; slot++) {
+            long key = bigrams.keys[slot];
+            if (key == Counter.EMPTY || bigrams.counts[slot] == 0) continue;
+            int i = index[(int)(key & Counter.WORD_MASK)];
+            if (i >= 0) offsets[i + 1]++;
+        }
+        for (int i = 0; i < n; i++) offsets[i + 1] += offsets[i];
+        predecessors = new int[offsets[n]];
+        predecessorCounts = new int[offsets[n]];
+        int[] next = Arrays.copyOf(offsets, n);
+        for (int slot = 0; slot < bigrams.keys.length; slot++) {
+            long key = bigrams.keys[slot];
+            if (key == Counter.EMPTY || bigrams.counts[slot] == 0) continue;
+            int i = index[(int)(key & Counter.WORD_MASK)];
+            if (i < 0) continue;
+            int v = (int)(key >>> 32);
+            predecessors[next[i]] = v;
+            predecessorCounts[next[i]++] = bigrams.counts[slot];
+            contextCounts.add(Counter.bigramKey(v, classOf[i]), bigrams.counts[slot]);
+        }
+    }
+
+    static double xLogX(long x) {
+        return x < TABLE ? X_LOG_X[(int)x] : x * Math.log(x);
+    }
+
+    // Change of F if word i left class a
+    double leaveGain(int i, int a) {
+        double gain = 0;
+        for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+            int before = contextCounts.get(Counter.bigramKey(predecessors[k], a));
+            gain += xLogX(before - predecessorCounts[k]) - xLogX(before);
+        }
+        return gain - (xLogX(classCounts[a] - counts[i]) - xLogX(classCounts[a]));
+    }
+
+    // Change of F if word i, in no class, joined class b
+    double joinGain(int i, int b) {
+        double gain = 0;
+        for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+            int before = contextCounts.get(Counter.bigramKey(predecessors[k], b));
+            gain += xLogX(before + predecessorCounts[k]) - xLogX(before);
+        }
+        return gain - (xLogX(classCounts[b] + counts[i]) - xLogX(classCounts[b]));
+    }
+
+    // Class word i gains the most by moving to, or -1 if no move gains.
+    // Only reads the statistics.
+    int bestClass(int i) {
+        int a = classOf[i];
+        if (classSizes[a] == 1) return -1;
+        double leave = leaveGain(i, a);
+        int best = -1;
+        double bestGain = MIN_GAIN;
+        for (int b = 0; b < classes; b++) {
+            if (b == a) continue;
+            double gain = leave + joinGain(i, b);
+            if (gain > bestGain) {
+                best = b;
+                bestGain = gain;
+            }
+        }
+        return best;
+    }
+
+    void move(int i, int b) {
+        int a = classOf[i];
+        for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+            contextCounts.add(Counter.bigramKey(predecessors[k], a), -predecessorCounts[k]);
+            contextCounts.add(Counter.bigramKey(predecessors[k], b), predecessorCounts[k]);
+        }
+        classCounts[a] -= counts[i];
+        classCounts[b] += counts[i];
+        classSizes[a]--;
+        classSizes[b]++;
+        classOf[i] = b;
+    }
+
+    double objective() {
+        double f = 0;
+        for (int slot = 0; slot < contextCounts.keys.length; slot++) {
+            if (contextCounts.keys[slot] != Counter.EMPTY) f += xLogX(contextCounts.values[slot]);
+        }
+        for (long count : classCounts) f -= xLogX(count);
+        return f;
+    }
+
+    // Runs up to maxIterations iterations, fewer if one moves no word
+    void cluster(int threads, int maxIterations) {
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            System.out.println(String.format("Clustering %d words into %d classes: F = %.1f",
+                    words.length, classes, objective()));
+            final int[] proposed = new int[BATCH];
+            for (int iteration = 1; iteration <= maxIterations; iteration++) {
+                long start = System.currentTimeMillis();
+                int moves = 0;
+                for (int batch = 0; batch < words.length; batch += BATCH) {
+                    final int begin = batch;
+                    final int end = Math.min(words.length, batch + BATCH);
+                    if (executor == null) {
+                        for (int i = begin; i < end; i++) proposed[i - begin] = bestClass(i);
+                    } else {
+                        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+                        for (int chunk = begin; chunk < end; chunk += CHUNK) {
+                            final int from = chunk;
+                            final int to = Math.min(end, chunk + CHUNK);
+                            tasks.add(new Callable<Void>() {
+                                public Void call() {
+                                    for (int i = from; i < to; i++) proposed[i - begin] = bestClass(i);
+                                    return null;
+                                }
+                            });
+                        }
+                        for (Future<Void> future : executor.invokeAll(tasks)) future.get();
+                    }
+                    for (int i = begin; i < end; i++) {
+                        int b = proposed[i - begin];
+                        int a = classOf[i];
+                        if (b < 0 || classSizes[a] == 1 || leaveGain(i, a) + joinGain(i, b) <= MIN_GAIN) continue;
+                        move(i, b);
+                        moves++;
+                    }
+                }
+                System.out.println(String.format("Iteration %d: %d moves, F = %.1f, %dms",
+                        iteration, moves, objective(), System.currentTimeMillis() - start));
+                if (moves == 0) break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while clustering", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Clustering thread failed", e.getCause());
+        } finally {
+            if (executor != null) executor.shutdownNow();
+        }
+    }
+
+    // Class of every word id, -1 for words without one
+    int[] wordClasses() {
+        int max = 0;
+        for (int word : words) max = Math.max(max, word);
+        int[] wordClasses = new int[max + 1];
+        Arrays.fill(wordClasses, -1);
+        for (int i = 0; i < words.length; i++) wordClasses[words[i]] = classOf[i];
+        return wordClasses;
+    }
+
+    void write(File file) throws IOException {
+        StringIndexer indexer = EnglishWordIndexer.getIndexer();
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")));
+        try {
+            for (int i = 0; i < words.length; i++) out.println(classOf[i] + "\t" + indexer.get(words[i]) + "\t" + counts[i]);
+        } finally {
+            out.close();
+        }
+    }
+
+    // Class of every word id from a file written by write, -1 for words not in it
+    static int[] read(File file) throws IOException {
+        StringIndexer indexer = EnglishWordIndexer.getIndexer();
+        int[] wordClasses = new int[1 << 10];
+        Arrays.fill(wordClasses, -1);
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().length() == 0) continue;
+                String[] fields = line.split("\t");
+                if (fields.length < 2) throw new IOException("Expected class and word: " + line);
+                int word = indexer.addAndGetIndex(fields[1]);
+                if (word >= wordClasses.length) {
+                    int size = wordClasses.length;
+                    wordClasses = Arrays.copyOf(wordClasses, Integer.highestOneBit(word) << 1);
+                    Arrays.fill(wordClasses, size, wordClasses.length, -1);
+                }
+                wordClasses[word] = Integer.parseInt(fields[0]);
+            }
+        } finally {
+            in.close();
+        }
+        return wordClasses;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: WordClustering <corpus> <classes> <output> [threads] [heldout]");
+            System.exit(1);
+        }
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        LanguageModel lm = LanguageModel.fromCorpus(new File(args[0]), threads);
+        long start = System.currentTimeMillis();
+        WordClustering clustering = new WordClustering(lm, Integer.parseInt(args[1]));
+        clustering.cluster(threads, MAX_ITERATIONS);
+        System.out.println("Clustered on " + threads + " threads in " + (System.currentTimeMillis() - start) + "ms");
+        clustering.write(new File(args[2]));
+
+        ClassLanguageModel classLm = new ClassLanguageModel(lm, clustering.wordClasses());
+        System.out.println(String.format("Tables: %.1f MB for words, %.1f MB for classes",
+                LmBenchmark.tableBytes(lm) / (double)(1 << 20), classLm.bytes() / (double)(1 << 20)));
+        if (args.length > 4) {
+            PerplexityEvaluator evaluator = new PerplexityEvaluator(LmChecks.readSentences(args[4]), threads);
+            try {
+                System.out.println(String.format("Held-out perplexity: %.3f with words, %.3f with classes",
+                        evaluator.perplexity(lm), evaluator.perplexity(classLm)));
+            } finally {
+                evaluator.close();
+            }
+        }
+    }
+}